@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.AddressFormatException;
+import com.google.anoncoin.core.Base58;
+import com.google.anoncoin.core.ECKey;
+import com.google.anoncoin.core.NetworkParameters;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Base58} encoding and decoding of an address, including its version byte and checksum.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base58Benchmark {
+    private byte[] addressBytes;
+    private String address;
+
+    @Setup
+    public void setUp() throws AddressFormatException {
+        address = new ECKey().toAddress(NetworkParameters.prodNet()).toString();
+        addressBytes = Base58.decode(address);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base58.encode(addressBytes);
+    }
+
+    @Benchmark
+    public byte[] decode() throws AddressFormatException {
+        return Base58.decode(address);
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures checking the merkle root of a block of the given size and finding the hash of every transaction in it, by
+ * parsing it into a {@link Block} and verifying its transactions, as {@link BlockChain} does when a block holds
+ * transactions relevant to a wallet, and with a {@link BlockScanner}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockScannerBenchmark {
+    @Param({"100", "1000"})
+    public int numTransactions;
+
+    private NetworkParameters params;
+    private byte[] blockBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        blockBytes = new BenchmarkFixtures(params).createBlock(numTransactions).anoncoinSerialize();
+    }
+
+    @Benchmark
+    public void parseBlock(Blackhole blackhole) throws Exception {
+        Block block = new Block(params, blockBytes);
+        block.verifyTransactions();
+        for (Transaction tx : block.getTransactions())
+            blackhole.consume(tx.getHash());
+    }
+
+    @Benchmark
+    public void scanBlock(final Blackhole blackhole) throws Exception {
+        new BlockScanner(blockBytes).scan(new BlockScanner.Visitor() {
+            public boolean visitTransaction(int index, byte[] bytes, int offset, int length, byte[] hashes,
+                                            int hashOffset) {
+                blackhole.consume(hashes[hashOffset]);
+                return false;
+            }
+
+            public void visitInput(int index, byte[] bytes, int outpointOffset) {
+            }
+
+            public void visitOutput(int index, long value, byte[] bytes, int scriptOffset, int scriptLength) {
+            }
+        });
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.BloomFilter;
+import com.google.anoncoin.core.ECKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BloomFilter#contains(byte[])} for a filter sized like a wallet with a thousand keys, for both an
+ * element that was inserted and one that was not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BloomFilterBenchmark {
+    private static final int NUM_KEYS = 1000;
+
+    private BloomFilter filter;
+    private byte[] present;
+    private byte[] absent;
+
+    @Setup
+    public void setUp() {
+        filter = new BloomFilter(NUM_KEYS * 2, 0.0005, 1234);
+        for (int i = 0; i < NUM_KEYS; i++) {
+            ECKey key = new ECKey();
+            filter.insert(key.getPubKey());
+            filter.insert(key.getPubKeyHash());
+            present = key.getPubKeyHash();
+        }
+        absent = new ECKey().getPubKeyHash();
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return filter.contains(present);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return filter.contains(absent);
+    }
+}
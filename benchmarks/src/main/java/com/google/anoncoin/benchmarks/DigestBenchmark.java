@@ -0,0 +1,59 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Utils#doubleDigest(byte[])} for a block header, a typical transaction and a large block. Each
+ * thread hashes with its own digest, so run with "-t 4" or similar to check that throughput scales with cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestBenchmark {
+    @Param({"80", "250", "100000"})
+    public int size;
+
+    private byte[] input;
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        output = new byte[Utils.SHA256_LENGTH];
+        input = new byte[size];
+        new Random(1).nextBytes(input);
+    }
+
+    @Benchmark
+    public byte[] doubleDigest() {
+        return Utils.doubleDigest(input);
+    }
+
+    @Benchmark
+    public byte[] doubleDigestIntoBuffer() {
+        Utils.doubleDigest(input, 0, input.length, output, 0);
+        return output;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.ECKey;
+import com.google.anoncoin.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ECKey#verify(byte[], byte[])}, which dominates the cost of checking a block's scripts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ECKeyBenchmark {
+    private ECKey key;
+    private byte[] hash;
+    private byte[] signature;
+
+    @Setup
+    public void setUp() {
+        key = new ECKey();
+        hash = new byte[32];
+        new Random(1).nextBytes(hash);
+        signature = key.sign(new Sha256Hash(hash)).encodeToDER();
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return key.verify(hash, signature);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.NetworkParameters;
+import com.google.anoncoin.core.Sha256Hash;
+import com.google.anoncoin.core.StoredTransactionOutput;
+import com.google.anoncoin.core.Utils;
+import com.google.anoncoin.store.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the unspent output work a store does for one block: a batch that looks up and spends some outputs, adds
+ * as many new ones and commits. The store starts out holding {@link #initialOutputs} outputs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FullPrunedBlockStoreBenchmark {
+    private static final int OUTPUTS_PER_BLOCK = 500;
+
+    @Param({"memory", "h2", "mapped"})
+    public String store;
+
+    @Param({"100000"})
+    public int initialOutputs;
+
+    private FullPrunedBlockStore blockStore;
+    private File dir;
+    private Random random;
+    private List<StoredTransactionOutput> unspent;
+
+    @Setup
+    public void setUp() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        dir = File.createTempFile("storebenchmark", null);
+        dir.delete();
+        dir.mkdir();
+        if (store.equals("memory"))
+            blockStore = new MemoryFullPrunedBlockStore(params, 100);
+        else if (store.equals("h2"))
+            blockStore = new H2FullPrunedBlockStore(params, new File(dir, "chain").getAbsolutePath(), 100);
+        else
+            blockStore = new MappedFullPrunedBlockStore(params, dir, 100);
+        random = new Random(1);
+        unspent = new ArrayList<StoredTransactionOutput>(initialOutputs);
+        blockStore.beginDatabaseBatchWrite();
+        for (int i = 0; i < initialOutputs; i++) {
+            StoredTransactionOutput out = createOutput();
+            blockStore.addUnspentTransactionOutput(out);
+            unspent.add(out);
+        }
+        blockStore.commitDatabaseBatchWrite();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        blockStore.close();
+        deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void connectBlock() throws BlockStoreException {
+        blockStore.beginDatabaseBatchWrite();
+        for (int i = 0; i < OUTPUTS_PER_BLOCK; i++) {
+            // Swap a random output to the end and spend it, as a block spends outputs from all over the set.
+            int index = random.nextInt(unspent.size());
+            StoredTransactionOutput spent = unspent.get(index);
+            unspent.set(index, unspent.get(unspent.size() - 1));
+            unspent.remove(unspent.size() - 1);
+            if (blockStore.getTransactionOutput(spent.getHash(), spent.getIndex()) == null)
+                throw new IllegalStateException();
+            blockStore.removeUnspentTransactionOutput(spent);
+            StoredTransactionOutput created = createOutput();
+            blockStore.addUnspentTransactionOutput(created);
+            unspent.add(created);
+        }
+        blockStore.commitDatabaseBatchWrite();
+    }
+
+    private StoredTransactionOutput createOutput() {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        byte[] script = new byte[25];
+        random.nextBytes(script);
+        return new StoredTransactionOutput(new Sha256Hash(hash), random.nextInt(3), Utils.toNanoCoins(1, 0), 1,
+                false, script);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.*;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
+import org.jboss.netty.handler.codec.replay.VoidEnum;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding a "block" message of about 1 MB that arrives from the network in pieces of the given size, with
+ * {@link MessageFrameDecoder} and with a ReplayingDecoder that runs {@link AnoncoinSerializer#deserialize} over
+ * whatever has arrived, as the network code used to. The latter parses the block again each time a piece arrives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecoderBenchmark {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    @Param({"1460", "16384"})
+    public int chunkSize;
+
+    private NetworkParameters params;
+    private AnoncoinSerializer serializer;
+    private byte[] blockMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        serializer = new AnoncoinSerializer(params);
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(params);
+        // Each transaction is a little under 200 bytes.
+        Block block = fixtures.createBlock(BLOCK_SIZE / 200);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(block, bos);
+        blockMessage = bos.toByteArray();
+    }
+
+    @Benchmark
+    public Message frameDecoder() throws Exception {
+        return decode(new MessageFrameDecoder(params, serializer));
+    }
+
+    @Benchmark
+    public Message replayingDecoder() throws Exception {
+        return decode(new ReplayingDecoder<VoidEnum>() {
+            @Override
+            protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer, VoidEnum state)
+                    throws Exception {
+                return serializer.deserialize(new ChannelBufferInputStream(buffer));
+            }
+        });
+    }
+
+    private Message decode(ChannelUpstreamHandler decoder) {
+        DecoderEmbedder<Message> embedder = new DecoderEmbedder<Message>(decoder);
+        for (int i = 0; i < blockMessage.length; i += chunkSize)
+            embedder.offer(ChannelBuffers.wrappedBuffer(blockMessage, i, Math.min(chunkSize, blockMessage.length - i)));
+        return embedder.poll();
+    }
+}
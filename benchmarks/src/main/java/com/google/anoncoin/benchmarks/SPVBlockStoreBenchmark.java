@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.*;
+import com.google.anoncoin.store.BlockStoreException;
+import com.google.anoncoin.store.SPVBlockStore;
+import com.google.common.cache.CacheBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up headers in an {@link SPVBlockStore} whose ring holds {@link #capacity} headers and is full.
+ * The store's caches are turned off, so every lookup goes to the ring, and the time taken should not depend on how
+ * big the ring is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SPVBlockStoreBenchmark {
+    @Param({"5000", "50000", "500000"})
+    public int capacity;
+
+    private NetworkParameters params;
+    private SPVBlockStore blockStore;
+    private File file;
+    private Sha256Hash[] hashes;
+    private Random random;
+    private int nextHeight;
+
+    @Setup
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        file = File.createTempFile("spvbenchmark", null);
+        file.delete();
+        blockStore = new UncachedSPVBlockStore(params, file, capacity);
+        hashes = new Sha256Hash[capacity];
+        for (int i = 0; i < capacity; i++) {
+            StoredBlock block = createStoredBlock(params, i + 1);
+            blockStore.put(block);
+            hashes[i] = block.getHeader().getHash();
+        }
+        nextHeight = capacity + 1;
+        random = new Random(1);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        blockStore.close();
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+    }
+
+    @Benchmark
+    public StoredBlock getStored() throws BlockStoreException {
+        return blockStore.get(hashes[random.nextInt(hashes.length)]);
+    }
+
+    @Benchmark
+    public StoredBlock getMissing() throws BlockStoreException {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return blockStore.get(new Sha256Hash(hash));
+    }
+
+    @Benchmark
+    public void put() throws Exception {
+        blockStore.put(createStoredBlock(params, nextHeight++));
+    }
+
+    /** Headers that differ only in their nonce, which is plenty to give them different hashes. */
+    private static StoredBlock createStoredBlock(NetworkParameters params, int height)
+            throws ProtocolException, VerificationException {
+        byte[] bytes = params.genesisBlock.cloneAsHeader().anoncoinSerialize();
+        Utils.uint32ToByteArrayLE(height, bytes, 76);
+        Block header = new Block(params, bytes);
+        return new StoredBlock(header, header.getWork().multiply(BigInteger.valueOf(height + 1)), height);
+    }
+
+    private static class UncachedSPVBlockStore extends SPVBlockStore {
+        UncachedSPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
+            super(params, file, capacity);
+            blockCache = CacheBuilder.newBuilder().maximumSize(0).build();
+            notFoundCache = CacheBuilder.newBuilder().maximumSize(0).build();
+        }
+    }
+}
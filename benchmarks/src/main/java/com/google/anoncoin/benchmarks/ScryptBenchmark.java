@@ -0,0 +1,70 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.Block;
+import com.google.anoncoin.core.NetworkParameters;
+import com.google.anoncoin.core.Sha256Hash;
+import com.google.anoncoin.crypto.ScryptHasher;
+import com.lambdaworks.crypto.SCrypt;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the allocation free {@link ScryptHasher} with the general purpose scrypt implementation that block
+ * headers used to be hashed with. Run with "-prof gc" to see the difference in garbage produced per hash.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScryptBenchmark {
+    private byte[] header;
+    private byte[] headerMessage;
+    private byte[] out;
+    private NetworkParameters params;
+
+    @Setup
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        headerMessage = params.genesisBlock.cloneAsHeader().anoncoinSerialize();
+        header = new byte[ScryptHasher.HEADER_SIZE];
+        new Random(1).nextBytes(header);
+        out = new byte[ScryptHasher.HASH_SIZE];
+    }
+
+    @Benchmark
+    public byte[] lambdaworksScrypt() throws GeneralSecurityException {
+        return SCrypt.scrypt(header, header, 1024, 1, 1, 32);
+    }
+
+    @Benchmark
+    public byte[] scryptHasher() {
+        ScryptHasher.hashHeader(header, out);
+        return out;
+    }
+
+    @Benchmark
+    public Sha256Hash blockGetScryptHash() throws Exception {
+        return new Block(params, headerMessage).getScryptHash();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AnoncoinSerializer#deserialize(java.io.InputStream)} for a "block" message holding the given
+ * number of signed transactions, and for a single "tx" message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+    @Param({"1", "100", "1000"})
+    public int numTransactions;
+
+    private AnoncoinSerializer serializer;
+    private byte[] blockMessage;
+    private byte[] txMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        serializer = new AnoncoinSerializer(params);
+        Block block = new BenchmarkFixtures(params).createBlock(numTransactions);
+        blockMessage = serialize(block);
+        txMessage = serialize(block.getTransactions().get(1));
+    }
+
+    private byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(message, bos);
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public Message deserializeBlock() throws Exception {
+        return serializer.deserialize(new ByteArrayInputStream(blockMessage));
+    }
+
+    @Benchmark
+    public Message deserializeTransaction() throws Exception {
+        return serializer.deserialize(new ByteArrayInputStream(txMessage));
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.*;
+import com.google.anoncoin.core.Transaction.SigHash;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures signature hashing and script verification for a signed pay-to-pubkey spend, the same shape of transaction
+ * that FullBlockTestGenerator produces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+    private Transaction tx;
+    private Script scriptSig;
+    private Script scriptPubKey;
+    private byte[] connectedScript;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(NetworkParameters.prodNet());
+        Block block = fixtures.createBlock(1);
+        TransactionOutput spent = block.getTransactions().get(0).getOutput(0);
+        tx = block.getTransactions().get(1);
+        scriptSig = tx.getInput(0).getScriptSig();
+        scriptPubKey = spent.getScriptPubKey();
+        connectedScript = spent.getScriptBytes();
+    }
+
+    @Benchmark
+    public Sha256Hash hashTransactionForSignature() throws ScriptException {
+        return tx.hashTransactionForSignature(0, connectedScript, SigHash.ALL, false);
+    }
+
+    @Benchmark
+    public Script correctlySpends() throws ScriptException {
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+        return scriptSig;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.benchmarks;
+
+import com.google.anoncoin.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures asking a {@link Wallet} holding {@link #keys} keys whether an output, key or key hash is one of its own,
+ * which it does for every output of every transaction it is shown. The time taken should not depend on how many keys
+ * the wallet has.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletKeyLookupBenchmark {
+    @Param({"100", "10000", "200000"})
+    public int keys;
+
+    private Wallet wallet;
+    private byte[][] pubKeyHashes;
+    private byte[][] pubKeys;
+    private TransactionOutput[] outputs;
+    private byte[] missingHash;
+    private Random random;
+
+    @Setup
+    public void setUp() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        random = new Random(1);
+        // Keys made from public keys alone, as deriving hundreds of thousands of them from private keys takes too long
+        // and lookups never look at the private key.
+        List<ECKey> keychain = new ArrayList<ECKey>(keys);
+        pubKeyHashes = new byte[keys][];
+        pubKeys = new byte[keys][];
+        outputs = new TransactionOutput[keys];
+        for (int i = 0; i < keys; i++) {
+            byte[] pubKey = new byte[65];
+            random.nextBytes(pubKey);
+            pubKey[0] = 4;
+            ECKey key = new ECKey(null, pubKey);
+            keychain.add(key);
+            pubKeys[i] = pubKey;
+            pubKeyHashes[i] = key.getPubKeyHash();
+            outputs[i] = new TransactionOutput(params, null, BigInteger.ONE, key.toAddress(params));
+        }
+        wallet = new Wallet(params);
+        wallet.addKeys(keychain);
+        missingHash = new ECKey(null, new byte[65]).getPubKeyHash();
+    }
+
+    @Benchmark
+    public boolean isPubKeyHashMine() {
+        return wallet.isPubKeyHashMine(pubKeyHashes[random.nextInt(keys)]);
+    }
+
+    @Benchmark
+    public boolean isPubKeyHashMissing() {
+        return wallet.isPubKeyHashMine(missingHash);
+    }
+
+    @Benchmark
+    public boolean isPubKeyMine() {
+        return wallet.isPubKeyMine(pubKeys[random.nextInt(keys)]);
+    }
+
+    @Benchmark
+    public boolean isOutputMine() {
+        return outputs[random.nextInt(keys)].isMine(wallet);
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import com.google.anoncoin.core.Transaction.SigHash;
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Builds the blocks and transactions the benchmarks run over. Transactions are put together the same way as
+ * FullBlockTestGenerator does: a coinbase paying to a single key, followed by transactions with an invalid output,
+ * a pay-to-pubkey output and an OP_1 output, each spending the pay-to-pubkey output before it with a real
+ * signature.</p>
+ *
+ * <p>The blocks are not solved. Mining scrypt at production difficulty would take far too long for a benchmark
+ * setup, and none of the code being measured checks the proof of work. This class lives in the core package so it
+ * can use the block building methods that are only there for tests.</p>
+ */
+public class BenchmarkFixtures {
+    private final NetworkParameters params;
+    private final ECKey coinbaseOutKey;
+    private final byte[] coinbaseOutKeyPubKey;
+
+    public BenchmarkFixtures(NetworkParameters params) {
+        this.params = params;
+        coinbaseOutKey = new ECKey();
+        coinbaseOutKeyPubKey = coinbaseOutKey.getPubKey();
+    }
+
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /** The key that all coinbases pay to, and that signs every spend. */
+    public ECKey getKey() {
+        return coinbaseOutKey;
+    }
+
+    /**
+     * Returns a block on top of the genesis block holding a coinbase and then numTransactions transactions, each
+     * one spending the pay-to-pubkey output of the transaction before it.
+     */
+    public Block createBlock(int numTransactions) throws ScriptException {
+        Block block = createNextBlock(params.genesisBlock, 1);
+        Transaction prev = block.getTransactions().get(0);
+        int prevIndex = 0;
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction t = new Transaction(params);
+            // Entirely invalid scriptPubKey, as in FullBlockTestGenerator.
+            t.addOutput(new TransactionOutput(params, t, BigInteger.valueOf(0), new byte[] { Script.OP_PUSHDATA1 - 1 }));
+            t.addOutput(new TransactionOutput(params, t, BigInteger.valueOf(1), Script.createOutputScript(coinbaseOutKeyPubKey)));
+            // Spendable output
+            t.addOutput(new TransactionOutput(params, t, BigInteger.ZERO, new byte[] {Script.OP_1}));
+            addOnlyInputToTransaction(t, prev.getOutput(prevIndex));
+            block.addTransaction(t);
+            prev = t;
+            prevIndex = 1;
+        }
+        return block;
+    }
+
+    /**
+     * Returns a chain of the given length on top of the genesis block. Each block spends the coinbase of the block
+     * before it.
+     */
+    public List<Block> createChain(int length) throws ScriptException {
+        List<Block> blocks = new ArrayList<Block>(length);
+        Block prev = params.genesisBlock;
+        for (int height = 1; height <= length; height++) {
+            Block block = createNextBlock(prev, height);
+            if (height > 1) {
+                Transaction t = new Transaction(params);
+                t.addOutput(new TransactionOutput(params, t, BigInteger.valueOf(0), new byte[] { Script.OP_PUSHDATA1 - 1 }));
+                t.addOutput(new TransactionOutput(params, t, BigInteger.valueOf(1), Script.createOutputScript(coinbaseOutKeyPubKey)));
+                t.addOutput(new TransactionOutput(params, t, BigInteger.ZERO, new byte[] {Script.OP_1}));
+                addOnlyInputToTransaction(t, prev.getTransactions().get(0).getOutput(0));
+                block.addTransaction(t);
+            }
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    private Block createNextBlock(Block baseBlock, int height) {
+        BigInteger coinbaseValue = Utils.toNanoCoins(50, 0).shiftRight(height / params.getSubsidyDecreaseBlockCount());
+        Block block = new Block(params);
+        block.setDifficultyTarget(baseBlock.getDifficultyTarget());
+        block.addCoinbaseTransaction(coinbaseOutKeyPubKey, coinbaseValue);
+        block.setPrevBlockHash(baseBlock.getHash());
+        block.setTime(baseBlock.getTimeSeconds() + NetworkParameters.TARGET_SPACING);
+        return block;
+    }
+
+    private void addOnlyInputToTransaction(Transaction t, TransactionOutput prevOut) throws ScriptException {
+        TransactionInput input = new TransactionInput(params, t, new byte[]{}, new TransactionOutPoint(params,
+                prevOut.getIndex(), prevOut.parentTransaction));
+        t.addInput(input);
+
+        Script scriptPubKey = prevOut.getScriptPubKey();
+        Sha256Hash hash = t.hashTransactionForSignature(0, scriptPubKey.program, SigHash.ALL, false);
+
+        // Sign input
+        try {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(73);
+            bos.write(coinbaseOutKey.sign(hash).encodeToDER());
+            bos.write(SigHash.ALL.ordinal() + 1);
+            byte[] signature = bos.toByteArray();
+
+            Preconditions.checkState(scriptPubKey.isSentToRawPubKey());
+            input.setScriptBytes(Script.createInputScript(signature));
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
@@ -86,7 +86,7 @@ public class Address extends VersionedChecksummedBytes {
     public NetworkParameters getParameters() {
         // TODO: There should be a more generic way to get all supported networks.
         NetworkParameters[] networks =
-                new NetworkParameters[] { NetworkParameters.testNet(), NetworkParameters.prodNet() };
+                new NetworkParameters[] { NetworkParameters.prodNet() };
 
         for (NetworkParameters params : networks) {
             for (int code : params.acceptableAddressCodes) {
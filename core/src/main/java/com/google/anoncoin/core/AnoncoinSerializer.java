@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -97,24 +98,44 @@ public class AnoncoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        serializeFrame(message).writeTo(out);
+    }
+
+    /**
+     * Serializes the given message, header and payload together, into a frame that can be written to as many peers
+     * as needed without serializing it again. The payload is written straight into the frame after the space left for
+     * the header, so it isn't copied on the way.
+     */
+    public MessageFrame serializeFrame(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("AnoncoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
 
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.packetMagic, header, 0);
+        int headerLength = 4 + AnoncoinPacketHeader.HEADER_LENGTH;
+        // If the length of the message is known the frame is allocated at its exact size, and never copied.
+        int length = message.length == Message.UNKNOWN_LENGTH ? 32 : message.length;
+        UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(headerLength + length);
+        try {
+            stream.write(new byte[headerLength]);
+            message.anoncoinSerialize(stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen, we are serializing to a memory stream.
+        }
+        byte[] frame = stream.toByteArray();
+        int payloadLength = frame.length - headerLength;
 
-        // The header array is initialized to zero by Java so we don't have to worry about
+        uint32ToByteArrayBE(params.packetMagic, frame, 0);
+
+        // The frame is initialized to zero by Java so we don't have to worry about
         // NULL terminating the string here.
         for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+            frame[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        byte[] payload = message.anoncoinSerialize();
-
-        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(payloadLength, frame, 4 + COMMAND_LEN);
 
+        int checksumOffset = 4 + COMMAND_LEN + 4;
         byte[] checksum = message.getChecksum();
         if (checksum == null) {
             Sha256Hash msgHash = message.getHash();
@@ -126,23 +147,20 @@ public class AnoncoinSerializer {
                 // this is only possible for transactions as block hashes
                 // are hashes of the header only
                 byte[] hash = msgHash.getBytes();
-                int start = 4 + COMMAND_LEN + 4;
-                for (int i = start; i < start + 4; i++)
-                    header[i] = hash[31 - i + start];
+                for (int i = checksumOffset; i < checksumOffset + 4; i++)
+                    frame[i] = hash[31 - i + checksumOffset];
 
             } else {
-                byte[] hash = doubleDigest(payload);
-                System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+                byte[] hash = doubleDigest(frame, headerLength, payloadLength);
+                System.arraycopy(hash, 0, frame, checksumOffset, 4);
             }
         } else {
-            System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
+            System.arraycopy(checksum, 0, frame, checksumOffset, 4);
         }
 
-        out.write(header);
-        out.write(payload);
-
         if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(payload));
+            log.debug("Sending {} message: {}", name, bytesToHexString(frame));
+        return new MessageFrame(message, frame);
     }
 
     /**
@@ -191,10 +209,18 @@ public class AnoncoinSerializer {
             }
             readCursor += bytesRead;
         }
+        return deserializePayload(header, payloadBytes, 0);
+    }
 
+    /**
+     * Deserialize a payload of header.size bytes starting at the given offset in the given array, which may hold other
+     * data around it. Blocks and transactions are parsed where they are rather than copied out first, so if the
+     * serializer retains or lazily parses messages, the array must not be changed afterwards.
+     */
+    public Message deserializePayload(AnoncoinPacketHeader header, byte[] bytes, int offset) throws ProtocolException {
         // Verify the checksum.
         byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        hash = doubleDigest(bytes, offset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -206,17 +232,40 @@ public class AnoncoinSerializer {
             log.debug("Received {} byte '{}' message: {}", new Object[]{
                     header.size,
                     header.command,
-                    Utils.bytesToHexString(payloadBytes)
+                    Utils.bytesToHexString(Arrays.copyOfRange(bytes, offset, offset + header.size))
             });
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, bytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    Utils.bytesToHexString(Arrays.copyOfRange(bytes, offset, offset + header.size)) + "\n", e);
         }
     }
 
+    private Message makeMessage(String command, int length, byte[] bytes, int offset, byte[] hash, byte[] checksum)
+            throws ProtocolException {
+        // Blocks and transactions, which are large and common, are parsed in place.
+        Message message;
+        if (command.equals("block")) {
+            message = new Block(params, bytes, offset, parseLazy, parseRetain, length);
+        } else if (command.equals("tx")) {
+            Transaction tx = new Transaction(params, bytes, offset, null, parseLazy, parseRetain, length);
+            if (hash != null)
+                tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
+            message = tx;
+        } else {
+            byte[] payloadBytes = bytes;
+            if (offset != 0 || length != bytes.length)
+                payloadBytes = Arrays.copyOfRange(bytes, offset, offset + length);
+            return makeMessage(command, length, payloadBytes, hash, checksum);
+        }
+        if (checksum != null)
+            message.setChecksum(checksum);
+        return message;
+    }
+
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
@@ -224,17 +273,10 @@ public class AnoncoinSerializer {
             return new VersionMessage(params, payloadBytes);
         } else if (command.equals("inv")) {
             message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("block")) {
-            message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
         } else if (command.equals("merkleblock")) {
             message = new FilteredBlock(params, payloadBytes);
         } else if (command.equals("getdata")) {
             message = new GetDataMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("tx")) {
-            Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
-            if (hash != null)
-                tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
-            message = tx;
         } else if (command.equals("addr")) {
             message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
         } else if (command.equals("ping")) {
@@ -303,13 +345,16 @@ public class AnoncoinSerializer {
 
 
     public static class AnoncoinPacketHeader {
+        /** The number of bytes in a header, which follows the packet magic. */
+        public static final int HEADER_LENGTH = COMMAND_LEN + 4 + 4;
+
         public final byte[] header;
         public final String command;
         public final int size;
         public final byte[] checksum;
 
         public AnoncoinPacketHeader(InputStream in) throws ProtocolException, IOException {
-            header = new byte[COMMAND_LEN + 4 + 4];
+            header = new byte[HEADER_LENGTH];
             int readCursor = 0;
             while (readCursor < header.length) {
                 int bytesRead = in.read(header, readCursor, header.length - readCursor);
@@ -16,6 +16,7 @@
 
 package com.google.anoncoin.core;
 
+import com.google.anoncoin.crypto.ScryptHasher;
 import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,8 +32,6 @@ import java.util.Date;
 import java.util.List;
 
 import static com.google.anoncoin.core.Utils.doubleDigest;
-import static com.google.anoncoin.core.Utils.scryptDigest;
-import static com.google.anoncoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Anoncoin system.
@@ -92,6 +91,10 @@ public class Block extends Message {
 
     private transient boolean headerBytesValid;
     private transient boolean transactionBytesValid;
+
+    // Works out the merkle root as transactions are added to a block under construction. Null if transactions were
+    // parsed, or have changed since they were added.
+    private transient MerkleHasher merkleHasher;
     
     // Blocks can be encoded in a way that will use more bytes than is optimal (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -131,6 +134,12 @@ public class Block extends Message {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
     }
 
+    /** Constructs a block from the given number of bytes at the given offset in a larger array. */
+    Block(NetworkParameters params, byte[] payloadBytes, int offset, boolean parseLazy, boolean parseRetain,
+          int length) throws ProtocolException {
+        super(params, payloadBytes, offset, parseLazy, parseRetain, length);
+    }
+
     /**
      * <p>A utility method that calculates how much new Anoncoin would be created by the block at the given height.
      * The inflation of Anoncoin is predictable and drops roughly every 4 years (210,000 blocks). At the dawn of
@@ -172,7 +181,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor - offset)));
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -184,7 +193,7 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (bytes.length == cursor) {
+        if (bytes.length == cursor || length == HEADER_SIZE) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -448,6 +457,8 @@ public class Block extends Message {
         // Since we have alternate uncache methods to use internally this will only ever be called by a child
         // transaction so we only need to invalidate that part of the cache.
         unCacheTransactions();
+        // The hash of the transaction has changed, so the tree is worked out again from scratch next time.
+        merkleHasher = null;
     }
 
     private void unCacheHeader() {
@@ -456,6 +467,7 @@ public class Block extends Message {
         if (!transactionBytesValid)
             bytes = null;
         hash = null;
+        scryptHash = null;
         checksum = null;
     }
 
@@ -486,14 +498,30 @@ public class Block extends Message {
         }
     }
     
+    /**
+     * Calculates the scrypt proof of work hash of the header. If we still have the header bytes we were parsed from
+     * they are hashed in place, otherwise the header is serialized first.
+     */
     private Sha256Hash calculateScryptHash() {
-        try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(scryptDigest(bos.toByteArray())));
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen.
+        byte[] result = new byte[ScryptHasher.HASH_SIZE];
+        if (headerBytesValid && bytes != null && bytes.length >= offset + HEADER_SIZE) {
+            ScryptHasher.hashHeader(bytes, offset, result);
+        } else {
+            try {
+                ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+                writeHeader(bos);
+                ScryptHasher.hashHeader(bos.toByteArray(), 0, result);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            }
         }
+        // Reverse in place, the hash is compared to the target as a big endian number.
+        for (int i = 0, j = result.length - 1; i < j; i++, j--) {
+            byte tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return new Sha256Hash(result);
     }
 
     /**
@@ -667,11 +695,6 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -680,9 +703,6 @@ public class Block extends Message {
         //  / \    / \
         // t1 t2 t3 t4
         //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
         // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
         // The interior nodes are hashes of the concenation of the two child hashes.
         //
@@ -702,28 +722,10 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
+        //
+        // See MerkleHasher for how it's worked out.
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        return MerkleHasher.root(transactions);
     }
 
     private void checkTransactions() throws VerificationException {
@@ -809,7 +811,8 @@ public class Block extends Message {
             //TODO check if this is really necessary.
             unCacheHeader();
 
-            merkleRoot = calculateMerkleRoot();
+            // A block under construction keeps track of the root as transactions are added to it.
+            merkleRoot = merkleHasher != null ? merkleHasher.getRoot() : calculateMerkleRoot();
         }
         return merkleRoot;
     }
@@ -837,7 +840,13 @@ public class Block extends Message {
             throw new RuntimeException("Attempted to add a non-coinbase transaction as the first transaction: " + t);
         else if (runSanityChecks && transactions.size() > 0 && t.isCoinBase())
             throw new RuntimeException("Attempted to add a coinbase transaction when there already is one: " + t);
+        if (merkleHasher == null) {
+            merkleHasher = new MerkleHasher();
+            for (Transaction tx : transactions)
+                merkleHasher.add(tx);
+        }
         transactions.add(t);
+        merkleHasher.add(t);
         adjustLength(transactions.size(), t.length);
         // Force a recalculation next time the values are needed.
         merkleRoot = null;
@@ -940,6 +949,7 @@ public class Block extends Message {
     void addCoinbaseTransaction(byte[] pubKeyTo, BigInteger value) {
         unCacheTransactions();
         transactions = new ArrayList<Transaction>();
+        merkleHasher = null;
         Transaction coinbase = new Transaction(params);
         // A real coinbase transaction has some stuff in the scriptSig like the extraNonce and difficulty. The
         // transactions are distinguished by every TX output going to a different key.
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import java.util.Arrays;
+
+/**
+ * <p>Walks over the transactions of a serialized block without building a {@link Block} or any {@link Transaction},
+ * {@link TransactionInput}, {@link TransactionOutput} or {@link Script} objects. For each transaction a
+ * {@link Visitor} is told where it lies in the bytes and its hash, worked out from the bytes where they lie, and if it
+ * asks, where the outpoints of its inputs and the scripts of its outputs lie too. Meanwhile the merkle root of the
+ * block is worked out from the transaction hashes, and checked against the one in the header.</p>
+ *
+ * <p>This is for code that only wants a few of the transactions in a block, like a wallet that looks for the ones
+ * relevant to it: an irrelevant transaction costs a hash and nothing else. The visitor can make a Transaction of the
+ * ones it does want from the bytes it's given.</p>
+ *
+ * <p>Hashes are given in the byte order they're calculated in, which is the reverse of the order a {@link Sha256Hash}
+ * shows. Use {@link #toHash(byte[], int)} to make one.</p>
+ */
+public class BlockScanner {
+    /**
+     * Told about each transaction of a block in turn. The arrays passed are only valid during the call, and must not
+     * be changed.
+     */
+    public interface Visitor {
+        /**
+         * Called for each transaction, with the array it lies in at the given offset and length, and its hash at
+         * hashOffset in the hashes array. Returns true if the visitor wants to be told about its inputs and outputs.
+         */
+        boolean visitTransaction(int index, byte[] bytes, int offset, int length, byte[] hashes, int hashOffset);
+
+        /** Called for each input of a transaction the visitor asked for, with the 36 bytes of its outpoint. */
+        void visitInput(int index, byte[] bytes, int outpointOffset);
+
+        /** Called for each output of a transaction the visitor asked for, with its value and script. */
+        void visitOutput(int index, long value, byte[] bytes, int scriptOffset, int scriptLength);
+    }
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int end;
+    private int cursor;
+
+    /** Creates a scanner over the serialized block that takes up the whole of the given array. */
+    public BlockScanner(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    /** Creates a scanner over the serialized block in the given range of the array. */
+    public BlockScanner(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Passes each transaction of the block to the given visitor, and checks the merkle root of the block.
+     *
+     * @return the length of the block, which may be less than the range given to the constructor
+     * @throws ProtocolException if the bytes aren't a well formed block
+     * @throws VerificationException if the merkle root in the header isn't the one the transactions make
+     */
+    public int scan(Visitor visitor) throws ProtocolException, VerificationException {
+        cursor = offset + Block.HEADER_SIZE;
+        check(cursor <= end);
+        int numTransactions = checkCount(readVarInt(), 4);
+        if (numTransactions == 0)
+            throw new VerificationException("Block had no transactions");
+        // The hashes of the transactions, and room for one more in case the merkle tree needs the last one twice.
+        byte[] hashes = new byte[(numTransactions + 1) * 32];
+        for (int i = 0; i < numTransactions; i++) {
+            int start = cursor;
+            skipTransaction();
+            Utils.doubleDigest(bytes, start, cursor - start, hashes, i * 32);
+            int txEnd = cursor;
+            if (visitor.visitTransaction(i, bytes, start, cursor - start, hashes, i * 32))
+                visitInputsAndOutputs(start, visitor);
+            cursor = txEnd;
+        }
+
+        byte[] root = MerkleHasher.root(hashes, numTransactions);
+        // The merkle root of the header is at offset 36, in the same byte order as the hashes.
+        if (!Arrays.equals(root, Arrays.copyOfRange(bytes, offset + 36, offset + 68))) {
+            throw new VerificationException("Merkle hashes do not match: " + toHash(root, 0) + " vs " +
+                    toHash(bytes, offset + 36));
+        }
+        return cursor - offset;
+    }
+
+    /** Returns the hash at the given offset of the given array, which is in the order it was calculated in. */
+    public static Sha256Hash toHash(byte[] hashes, int offset) {
+        return MerkleHasher.toHash(hashes, offset);
+    }
+
+    private void skipTransaction() throws ProtocolException {
+        cursor += 4;  // Version.
+        int numInputs = checkCount(readVarInt(), 41);
+        for (int i = 0; i < numInputs; i++) {
+            cursor += 36;  // Outpoint.
+            skipScript();
+            cursor += 4;  // Sequence number.
+        }
+        int numOutputs = checkCount(readVarInt(), 9);
+        for (int i = 0; i < numOutputs; i++) {
+            cursor += 8;  // Value.
+            skipScript();
+        }
+        cursor += 4;  // Lock time.
+        check(cursor <= end);
+    }
+
+    // Goes over the transaction at the given offset again, which has already been checked to be well formed.
+    private void visitInputsAndOutputs(int start, Visitor visitor) throws ProtocolException {
+        cursor = start + 4;
+        int numInputs = (int) readVarInt();
+        for (int i = 0; i < numInputs; i++) {
+            visitor.visitInput(i, bytes, cursor);
+            cursor += 36;
+            skipScript();
+            cursor += 4;
+        }
+        int numOutputs = (int) readVarInt();
+        for (int i = 0; i < numOutputs; i++) {
+            long value = Utils.readInt64(bytes, cursor);
+            cursor += 8;
+            int scriptLength = (int) readVarInt();
+            visitor.visitOutput(i, value, bytes, cursor, scriptLength);
+            cursor += scriptLength;
+        }
+    }
+
+    private void skipScript() throws ProtocolException {
+        long scriptLength = readVarInt();
+        check(scriptLength <= end - cursor);
+        cursor += scriptLength;
+    }
+
+    private long readVarInt() throws ProtocolException {
+        check(cursor < end);
+        int first = 0xFF & bytes[cursor];
+        int size = first < 253 ? 1 : first == 253 ? 3 : first == 254 ? 5 : 9;
+        check(cursor + size <= end);
+        long value;
+        if (size == 1)
+            value = first;
+        else if (size == 3)
+            value = (0xFF & bytes[cursor + 1]) | ((0xFF & bytes[cursor + 2]) << 8);
+        else if (size == 5)
+            value = Utils.readUint32(bytes, cursor + 1);
+        else
+            value = Utils.readInt64(bytes, cursor + 1);
+        cursor += size;
+        return value;
+    }
+
+    // Checks a count read from the block against the bytes left, given the fewest bytes each item can take.
+    private int checkCount(long count, int minItemSize) throws ProtocolException {
+        check(count >= 0 && count <= (end - cursor) / minItemSize);
+        return (int) count;
+    }
+
+    private void check(boolean inBounds) throws ProtocolException {
+        if (!inBounds)
+            throw new ProtocolException("Block is truncated or malformed at offset " + (cursor - offset));
+    }
+}
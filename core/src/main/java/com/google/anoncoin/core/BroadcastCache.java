@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps the serialized frames of the transactions a {@link PeerGroup} sends out, so that a transaction that goes to
+ * many peers, whether broadcast or asked for in a getdata after an inv announcing it, is serialized and checksummed
+ * only once. Frames are kept by the hash of their transaction, up to a total size, and the least recently used are
+ * dropped first.</p>
+ *
+ * <p>It also counts what it saves: every time a frame is used again rather than serialized again, the bytes of the
+ * frame and the time it took to serialize it the first time are added up. Thread safe.</p>
+ */
+public class BroadcastCache {
+    /** The total size of the frames kept by default, in bytes. */
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final AnoncoinSerializer serializer;
+    private final Cache<Sha256Hash, Entry> frames;
+
+    private final AtomicLong framesSerialized = new AtomicLong();
+    private final AtomicLong framesReused = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong nanosSaved = new AtomicLong();
+
+    private static class Entry {
+        final MessageFrame frame;
+        // How long it took to serialize the frame.
+        final long nanos;
+
+        Entry(MessageFrame frame, long nanos) {
+            this.frame = frame;
+            this.nanos = nanos;
+        }
+    }
+
+    public BroadcastCache(NetworkParameters params) {
+        this(params, DEFAULT_MAX_BYTES);
+    }
+
+    /** Creates a cache that keeps frames up to the given total size in bytes. */
+    public BroadcastCache(NetworkParameters params, long maxBytes) {
+        this.serializer = new AnoncoinSerializer(params);
+        this.frames = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Sha256Hash, Entry>() {
+                    public int weigh(Sha256Hash hash, Entry entry) {
+                        return entry.frame.size();
+                    }
+                })
+                .build();
+    }
+
+    /** Returns the frame of the given transaction, serializing it only if there's no frame for it yet. */
+    public MessageFrame get(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        Entry entry = frames.getIfPresent(hash);
+        if (entry != null) {
+            framesReused.incrementAndGet();
+            bytesSaved.addAndGet(entry.frame.size());
+            nanosSaved.addAndGet(entry.nanos);
+            return entry.frame;
+        }
+        // Two threads may both serialize the same transaction here. Either frame will do.
+        long start = System.nanoTime();
+        MessageFrame frame = serializer.serializeFrame(tx);
+        frames.put(hash, new Entry(frame, System.nanoTime() - start));
+        framesSerialized.incrementAndGet();
+        return frame;
+    }
+
+    /** Drops the frame of the transaction with the given hash, if there is one. */
+    public void remove(Sha256Hash hash) {
+        frames.invalidate(hash);
+    }
+
+    /** Returns how many frames have been serialized. */
+    public long getFramesSerialized() {
+        return framesSerialized.get();
+    }
+
+    /** Returns how many times a frame has been used again instead of serializing its transaction again. */
+    public long getFramesReused() {
+        return framesReused.get();
+    }
+
+    /** Returns the number of bytes that were sent without being serialized again. */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /** Returns the time in nanoseconds that serializing the reused frames again would have taken. */
+    public long getNanosSaved() {
+        return nanosSaved.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames serialized, %d reused, saving %d bytes and %d us of serialization",
+                getFramesSerialized(), getFramesReused(), getBytesSaved(), getNanosSaved() / 1000);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Counts the blocks, and the work in them, that a {@link Wallet} has seen added to the top of the best chain.</p>
+ *
+ * <p>The {@link TransactionConfidence} of each wallet transaction remembers where the tip was when its depth and
+ * work done were last set, and adds on whatever the tip has moved since when they are read. So a new block costs the
+ * wallet the same however many transactions it has, rather than a visit to every one of them.</p>
+ *
+ * <p>Confidence objects with listeners that want to hear about the transaction getting deeper follow the tip, and
+ * are handed back by {@link #advance(java.math.BigInteger)} so the wallet can tell them about the new block.</p>
+ */
+class ChainTip {
+    /** Where the tip is: how many blocks have been added since the tip was created, and the work in them. */
+    static class Position {
+        final int blocks;
+        final BigInteger work;
+
+        Position(int blocks, BigInteger work) {
+            this.blocks = blocks;
+            this.work = work;
+        }
+    }
+
+    private volatile Position position = new Position(0, BigInteger.ZERO);
+    private final Set<TransactionConfidence> followers = new LinkedHashSet<TransactionConfidence>();
+
+    Position getPosition() {
+        return position;
+    }
+
+    /**
+     * Moves the tip on by a block of the given work, and returns the confidence objects that are following the tip.
+     * The caller should call {@link TransactionConfidence#notifyBlockAdded()} on each of them.
+     */
+    synchronized List<TransactionConfidence> advance(BigInteger work) {
+        Position old = position;
+        position = new Position(old.blocks + 1, old.work.add(work));
+        return new ArrayList<TransactionConfidence>(followers);
+    }
+
+    synchronized void follow(TransactionConfidence confidence) {
+        followers.add(confidence);
+    }
+
+    synchronized void unfollow(TransactionConfidence confidence) {
+        followers.remove(confidence);
+    }
+
+    synchronized int getFollowerCount() {
+        return followers.size();
+    }
+}
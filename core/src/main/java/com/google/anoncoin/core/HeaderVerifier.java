@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Checks the proof of work and timestamps of a batch of block headers using a pool of worker threads, ahead of
+ * the headers being handed to an {@link AbstractBlockChain}.</p>
+ *
+ * <p>Anoncoin uses scrypt for proof of work, which is far more expensive than the double SHA-256 used for block
+ * hashes. {@link AbstractBlockChain#add(Block)} verifies each header whilst holding the chain lock, so during chain
+ * download only one core is ever busy. A HeaderVerifier runs {@link Block#verifyHeader()} for many headers in
+ * parallel. Because each {@link Block} caches its scrypt hash, the later check done by the chain is then only a
+ * comparison against the target.</p>
+ *
+ * <p>Only the checks that do not need the rest of the chain are done here. Linking the headers together and
+ * checking difficulty transitions is still the job of the block chain, so headers must still be added to the chain
+ * in order.</p>
+ */
+public class HeaderVerifier {
+    private static final Logger log = LoggerFactory.getLogger(HeaderVerifier.class);
+
+    /** Batches smaller than this are verified on the calling thread, as handing them off costs more than it saves. */
+    public static final int MIN_PARALLEL_BATCH_SIZE = 4;
+
+    private final ExecutorService executor;
+    private final int numThreads;
+
+    /**
+     * Creates a verifier with one worker thread per available processor.
+     */
+    public HeaderVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a verifier that checks headers using the given number of worker threads.
+     */
+    public HeaderVerifier(int numThreads) {
+        checkArgument(numThreads > 0, "numThreads must be positive");
+        this.numThreads = numThreads;
+        this.executor = Executors.newFixedThreadPool(numThreads, new VerifierThreadFactory());
+    }
+
+    /** Returns how many worker threads this verifier uses. */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Verifies the proof of work and timestamp of every block in the list, in parallel. The blocks may be headers
+     * only or full blocks, in which case only the header is checked.
+     *
+     * @return the same list, so the result can be passed straight on to the block chain in order.
+     * @throws VerificationException for the first block in list order that failed verification.
+     */
+    public List<Block> verify(final List<Block> headers) throws VerificationException {
+        if (headers.size() < MIN_PARALLEL_BATCH_SIZE || numThreads == 1) {
+            for (Block header : headers)
+                header.verifyHeader();
+            return headers;
+        }
+        // Split the list into one contiguous run per thread, rather than a task per header, to keep the overhead of
+        // queueing down for large "headers" messages.
+        int chunkSize = (headers.size() + numThreads - 1) / numThreads;
+        List<Future<VerificationException>> results = new ArrayList<Future<VerificationException>>(numThreads);
+        try {
+            for (int start = 0; start < headers.size(); start += chunkSize) {
+                final List<Block> chunk = headers.subList(start, Math.min(start + chunkSize, headers.size()));
+                results.add(executor.submit(new Callable<VerificationException>() {
+                    public VerificationException call() {
+                        try {
+                            for (Block header : chunk)
+                                header.verifyHeader();
+                        } catch (VerificationException e) {
+                            return e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("HeaderVerifier has been shut down", e);
+        }
+        // Chunks are in list order, so the first failure found here is the first failure in the batch.
+        for (Future<VerificationException> future : results) {
+            VerificationException e;
+            try {
+                e = future.get();
+            } catch (InterruptedException thrownE) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(thrownE);
+            } catch (ExecutionException thrownE) {
+                log.error("Block.verifyHeader threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in Block.verifyHeader: " + thrownE.getCause());
+            }
+            if (e != null) {
+                for (Future<VerificationException> f : results)
+                    f.cancel(false);
+                throw e;
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Stops the worker threads. The verifier cannot be used after this.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class VerifierThreadFactory implements ThreadFactory {
+        static final AtomicInteger poolNumber = new AtomicInteger(1);
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        final String namePrefix;
+
+        VerifierThreadFactory() {
+            namePrefix = "HeaderVerifier-" + poolNumber.getAndIncrement() + "-thread-";
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Works out the merkle root of a list of transaction hashes, without making an array for every node of the tree
+ * as {@link Block} used to. Hashes here are in the byte order they're calculated in, which is the reverse of the order
+ * a {@link Sha256Hash} shows.</p>
+ *
+ * <p>{@link #root(byte[], int)} reduces hashes that lie one after another in a single array in place, each level of
+ * the tree overwriting the one below it. An instance works the root out incrementally instead, as hashes are added
+ * one at a time: it only keeps the root of each complete subtree on the right edge of the tree, at most one for each
+ * level, so adding a hash and asking for the root both take a number of hashing steps that grows with the log of the
+ * number of hashes. A block under construction uses one so that it doesn't hash the whole tree again for each
+ * transaction added.</p>
+ *
+ * <p>Both give the same root as the reference client, where the last node of a level with an odd number of nodes is
+ * paired with itself.</p>
+ */
+class MerkleHasher {
+    // The root of the complete subtree of 2^level hashes at each level whose bit is set in count.
+    private final byte[] subtrees = new byte[32 * 32];
+    // Where a pair of nodes is put together to be hashed.
+    private final byte[] pair = new byte[64];
+    private int count;
+
+    /** Adds the given hash, in the order it was calculated in, as the next leaf of the tree. */
+    void add(byte[] hash, int offset) {
+        checkArgument(count < Integer.MAX_VALUE, "Too many hashes");
+        System.arraycopy(hash, offset, pair, 32, 32);
+        count++;
+        // Merge with the subtrees on the right edge that now have a sibling of the same size.
+        int level = 0;
+        for (; (count & (1 << level)) == 0; level++) {
+            System.arraycopy(subtrees, level * 32, pair, 0, 32);
+            Utils.doubleDigest(pair, 0, 64, pair, 32);
+        }
+        System.arraycopy(pair, 32, subtrees, level * 32, 32);
+    }
+
+    /** Adds the hash of the given transaction. */
+    void add(Transaction tx) {
+        add(Utils.reverseBytes(tx.getHash().getBytes()), 0);
+    }
+
+    /** Returns the number of hashes added. */
+    int size() {
+        return count;
+    }
+
+    /** Returns the merkle root of the hashes added so far. There must be at least one. */
+    Sha256Hash getRoot() {
+        checkArgument(count > 0, "No hashes to work out the merkle root of");
+        // Start from the smallest subtree on the right edge. Until it's the whole tree, pair it with itself, as the
+        // last node of a level with an odd number of nodes is, then merge the result with the subtrees on its left.
+        int level = Integer.numberOfTrailingZeros(count);
+        System.arraycopy(subtrees, level * 32, pair, 32, 32);
+        long n = count;
+        while (n != 1L << level) {
+            System.arraycopy(pair, 32, pair, 0, 32);
+            Utils.doubleDigest(pair, 0, 64, pair, 32);
+            // As many hashes as there would be if this level had had its pair.
+            n += 1L << level;
+            level++;
+            for (; (n & (1L << level)) == 0; level++) {
+                System.arraycopy(subtrees, level * 32, pair, 0, 32);
+                Utils.doubleDigest(pair, 0, 64, pair, 32);
+            }
+        }
+        return toHash(pair, 32);
+    }
+
+    /**
+     * Works out the merkle root of the given number of hashes that lie one after another at the start of the array, in
+     * place, and returns it in the order it was calculated in. The array must have room for one more hash.
+     */
+    static byte[] root(byte[] hashes, int count) {
+        checkArgument(count > 0 && hashes.length >= (count + 1) * 32);
+        for (int levelSize = count; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            // The last node of a level with an odd number of nodes is paired with itself.
+            if (levelSize % 2 == 1)
+                System.arraycopy(hashes, (levelSize - 1) * 32, hashes, levelSize * 32, 32);
+            for (int left = 0; left < levelSize; left += 2)
+                Utils.doubleDigest(hashes, left * 32, 64, hashes, left / 2 * 32);
+        }
+        return Arrays.copyOf(hashes, 32);
+    }
+
+    /** Returns the merkle root of the given transactions. */
+    static Sha256Hash root(List<Transaction> transactions) {
+        byte[] hashes = new byte[(transactions.size() + 1) * 32];
+        for (int i = 0; i < transactions.size(); i++) {
+            byte[] hash = transactions.get(i).getHash().getBytes();
+            for (int j = 0; j < 32; j++)
+                hashes[i * 32 + j] = hash[31 - j];
+        }
+        return toHash(root(hashes, transactions.size()), 0);
+    }
+
+    /** Returns the hash at the given offset of the given array, which is in the order it was calculated in. */
+    static Sha256Hash toHash(byte[] hashes, int offset) {
+        return new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(hashes, offset, offset + 32)));
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>A message as it goes out on the wire, header and payload together in one array. Made by
+ * {@link AnoncoinSerializer#serializeFrame(Message)}.</p>
+ *
+ * <p>A frame never changes once it's made, so the same one can be written to any number of peers: each write reads
+ * its own read-only view of the bytes, and relaying a message to many peers serializes it only once. See
+ * {@link Peer#sendFrame(MessageFrame)}.</p>
+ */
+public final class MessageFrame {
+    private final Message message;
+    private final byte[] bytes;
+
+    MessageFrame(Message message, byte[] bytes) {
+        this.message = message;
+        this.bytes = bytes;
+    }
+
+    /** Returns the message this frame was serialized from. */
+    public Message getMessage() {
+        return message;
+    }
+
+    /** Returns the number of bytes in the frame, header included. */
+    public int size() {
+        return bytes.length;
+    }
+
+    /** Returns a new read-only buffer over the frame, to be written to one channel. */
+    public ChannelBuffer toChannelBuffer() {
+        return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(bytes));
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageFrame(" + message.getClass().getSimpleName() + ", " + bytes.length + " bytes)";
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import com.google.anoncoin.core.AnoncoinSerializer.AnoncoinPacketHeader;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+/**
+ * <p>Splits the bytes coming in from a peer into Anoncoin messages. The header of each message is read once, as soon
+ * as it has all arrived, and then the decoder just waits until the whole payload the header gives the size of is
+ * there, so a large block coming in many pieces isn't parsed until its last piece arrives.</p>
+ *
+ * <p>The payload is handed to {@link AnoncoinSerializer#deserializePayload(AnoncoinPacketHeader, byte[], int)} where
+ * it lies in the buffer if the buffer is backed by one array, and is otherwise copied out once. As the buffers the
+ * payload is parsed from may be used again, it's always copied if the serializer keeps hold of what it parses.</p>
+ */
+public class MessageFrameDecoder extends FrameDecoder {
+    private final long packetMagic;
+    private final AnoncoinSerializer serializer;
+    // The header of the message whose payload is still arriving, if any.
+    private AnoncoinPacketHeader header;
+
+    public MessageFrameDecoder(NetworkParameters params, AnoncoinSerializer serializer) {
+        this.packetMagic = params.packetMagic;
+        this.serializer = serializer;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (header == null) {
+            if (!seekToPacketMagic(buffer))
+                return null;
+            if (buffer.readableBytes() < 4 + AnoncoinPacketHeader.HEADER_LENGTH)
+                return null;
+            buffer.skipBytes(4);
+            header = serializer.deserializeHeader(
+                    new ChannelBufferInputStream(buffer, AnoncoinPacketHeader.HEADER_LENGTH));
+        }
+        if (buffer.readableBytes() < header.size)
+            return null;
+
+        AnoncoinPacketHeader header = this.header;
+        this.header = null;
+        byte[] bytes;
+        int offset;
+        if (buffer.hasArray() && !serializer.isParseLazyMode() && !serializer.isParseRetainMode()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + buffer.readerIndex();
+            buffer.skipBytes(header.size);
+        } else {
+            bytes = new byte[header.size];
+            offset = 0;
+            buffer.readBytes(bytes);
+        }
+        return serializer.deserializePayload(header, bytes, offset);
+    }
+
+    /**
+     * Skips anything before the next packet magic, as Satoshi's implementation does, leaving the buffer at the start
+     * of it. Returns false if the buffer has no whole magic yet, in which case anything that could be the start of one
+     * is kept.
+     */
+    private boolean seekToPacketMagic(ChannelBuffer buffer) {
+        int end = buffer.writerIndex() - 4;
+        for (int i = buffer.readerIndex(); i <= end; i++) {
+            if (isMagicAt(buffer, i)) {
+                buffer.readerIndex(i);
+                return true;
+            }
+        }
+        buffer.readerIndex(Math.max(buffer.readerIndex(), end + 1));
+        return false;
+    }
+
+    private boolean isMagicAt(ChannelBuffer buffer, int index) {
+        for (int i = 0; i < 4; i++) {
+            if (buffer.getByte(index + i) != (byte) (packetMagic >>> ((3 - i) * 8)))
+                return false;
+        }
+        return true;
+    }
+}
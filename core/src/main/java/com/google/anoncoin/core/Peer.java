@@ -18,7 +18,9 @@ package com.google.anoncoin.core;
 
 import com.google.anoncoin.store.BlockStore;
 import com.google.anoncoin.store.BlockStoreException;
+import com.google.anoncoin.utils.ListenerRegistration;
 import com.google.anoncoin.utils.Locks;
+import com.google.anoncoin.utils.Threading;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
@@ -34,6 +36,7 @@ import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -60,7 +63,7 @@ public class Peer {
     private final NetworkParameters params;
     private final AbstractBlockChain blockChain;
     private volatile PeerAddress vAddress;
-    private final CopyOnWriteArrayList<PeerEventListener> eventListeners;
+    private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> eventListeners;
     private final CopyOnWriteArrayList<PeerLifecycleListener> lifecycleListeners;
     // Whether to try and download blocks and transactions from this peer. Set to false by PeerGroup if not the
     // primary peer. This is to avoid redundant work and concurrency problems with downloading the same chain
@@ -88,6 +91,8 @@ public class Peer {
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
+    // If set, transactions sent in answer to a getdata are sent as frames from here, rather than serialized again.
+    private volatile BroadcastCache vBroadcastCache;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -106,6 +111,8 @@ public class Peer {
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
+    // If set, used to check the proof of work of downloaded headers in parallel before they are added to the chain.
+    private volatile HeaderVerifier vHeaderVerifier;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
     // whilst waiting for the response. Is not used for downloads Peer generates itself.
     private static class GetDataRequest {
@@ -147,7 +154,7 @@ public class Peer {
         this.blockChain = chain;  // Allowed to be null.
         this.vDownloadData = chain != null;
         this.getDataFutures = new CopyOnWriteArrayList<GetDataRequest>();
-        this.eventListeners = new CopyOnWriteArrayList<PeerEventListener>();
+        this.eventListeners = new CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>>();
         this.lifecycleListeners = new CopyOnWriteArrayList<PeerLifecycleListener>();
         this.fastCatchupTimeSecs = params.genesisBlock.getTimeSeconds();
         this.isAcked = false;
@@ -167,12 +174,27 @@ public class Peer {
         this.versionMessage.appendToSubVer(thisSoftwareName, thisSoftwareVersion, null);
     }
 
+    /**
+     * Adds a listener whose callbacks are run by {@link Threading#USER_THREAD}, except for those described in
+     * {@link #addEventListener(PeerEventListener, java.util.concurrent.Executor)}.
+     */
     public void addEventListener(PeerEventListener listener) {
-        eventListeners.add(listener);
+        addEventListener(listener, Threading.USER_THREAD);
+    }
+
+    /**
+     * Adds a listener whose callbacks are run by the given executor. With {@link Threading#SAME_THREAD} they're run on
+     * the network thread that handles this peer, which waits for them to return. Whatever the executor,
+     * {@link PeerEventListener#onPreMessageReceived(Peer, Message)} and
+     * {@link PeerEventListener#getData(Peer, GetDataMessage)} are run on the network thread, as it needs their
+     * answers to carry on, so they must be quick.
+     */
+    public void addEventListener(PeerEventListener listener, Executor executor) {
+        eventListeners.add(new ListenerRegistration<PeerEventListener>(listener, executor));
     }
 
     public boolean removeEventListener(PeerEventListener listener) {
-        return eventListeners.remove(listener);
+        return ListenerRegistration.removeFromList(listener, eventListeners);
     }
 
     void addLifecycleListener(PeerLifecycleListener listener) {
@@ -246,8 +268,8 @@ public class Peer {
         try {
             // Allow event listeners to filter the message stream. Listeners are allowed to drop messages by
             // returning null.
-            for (PeerEventListener listener : eventListeners) {
-                m = listener.onPreMessageReceived(this, m);
+            for (ListenerRegistration<PeerEventListener> registration : eventListeners) {
+                m = registration.listener.onPreMessageReceived(this, m);
                 if (m == null) break;
             }
             if (m == null) return;
@@ -307,15 +329,19 @@ public class Peer {
             } else {
                 log.warn("Received unhandled message: {}", m);
             }
-        } catch (Throwable throwable) {
+        } catch (final Throwable throwable) {
             log.warn("Caught exception in peer thread: {}", throwable.getMessage());
             throwable.printStackTrace();
-            for (PeerEventListener listener : eventListeners) {
-                try {
-                    listener.onException(throwable);
-                } catch (Exception e1) {
-                    e1.printStackTrace();
-                }
+            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            registration.listener.onException(throwable);
+                        } catch (Exception e1) {
+                            e1.printStackTrace();
+                        }
+                    }
+                });
             }
         }
     }
@@ -391,6 +417,16 @@ public class Peer {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            HeaderVerifier verifier = vHeaderVerifier;
+            if (verifier != null) {
+                // Check the proof of work of every header we are going to add in parallel, so adding them to the
+                // chain one by one below only has to link them up.
+                int numToAdd = 0;
+                while (numToAdd < m.getBlockHeaders().size() &&
+                        m.getBlockHeaders().get(numToAdd).getTimeSeconds() < fastCatchupTimeSecs)
+                    numToAdd++;
+                verifier.verify(m.getBlockHeaders().subList(0, numToAdd));
+            }
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 if (header.getTimeSeconds() < fastCatchupTimeSecs) {
@@ -433,8 +469,8 @@ public class Peer {
     private void processGetData(GetDataMessage getdata) throws IOException {
         log.info("{}: Received getdata message: {}", vAddress, getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
-        for (PeerEventListener listener : eventListeners) {
-            List<Message> listenerItems = listener.getData(this, getdata);
+        for (ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            List<Message> listenerItems = registration.listener.getData(this, getdata);
             if (listenerItems == null) continue;
             items.addAll(listenerItems);
         }
@@ -442,8 +478,12 @@ public class Peer {
             return;
         }
         log.info("{}: Sending {} items gathered from listeners to peer", vAddress, items.size());
+        BroadcastCache broadcastCache = vBroadcastCache;
         for (Message item : items) {
-            sendMessage(item);
+            if (broadcastCache != null && item instanceof Transaction)
+                sendFrame(broadcastCache.get((Transaction) item));
+            else
+                sendMessage(item);
         }
     }
 
@@ -516,8 +556,14 @@ public class Peer {
         }
         // Tell all listeners about this tx so they can decide whether to keep it or not. If no listener keeps a
         // reference around then the memory pool will forget about it after a while too because it uses weak references.
-        for (PeerEventListener listener : eventListeners)
-            listener.onTransaction(this, tx);
+        final Transaction fTx = tx;
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    registration.listener.onTransaction(Peer.this, fTx);
+                }
+            });
+        }
     }
 
     /**
@@ -801,8 +847,13 @@ public class Peer {
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
         final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - blockChain.getBestChainHeight());
-        for (PeerEventListener listener : eventListeners)
-            listener.onBlocksDownloaded(Peer.this, m, blocksLeft);
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    registration.listener.onBlocksDownloaded(Peer.this, m, blocksLeft);
+                }
+            });
+        }
     }
 
     private void processInv(InventoryMessage inv) throws IOException {
@@ -1019,6 +1070,15 @@ public class Peer {
         return Channels.write(vChannel, m);
     }
 
+    /**
+     * Sends the given message, already serialized, on the peers Channel. The same frame can be sent to many peers
+     * without serializing the message again for each of them.
+     */
+    public ChannelFuture sendFrame(MessageFrame frame) {
+        // This does not need to be locked.
+        return Channels.write(vChannel, frame);
+    }
+
     // Keep track of the last request we made to the peer in blockChainDownload so we can avoid redundant and harmful
     // getblocks requests. This does not have to be synchronized because blockChainDownload cannot be called from
     // multiple threads simultaneously.
@@ -1123,8 +1183,13 @@ public class Peer {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (PeerEventListener listener : eventListeners)
-                listener.onChainDownloadStarted(this, blocksLeft);
+            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                    }
+                });
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             blockChainDownload(Sha256Hash.ZERO_HASH);
         }
@@ -1257,6 +1322,22 @@ public class Peer {
         return vPeerVersionMessage.clientVersion >= 70001;
     }
 
+    /**
+     * Sets the {@link HeaderVerifier} used to check the proof of work of downloaded headers in parallel before they
+     * are added to the chain. If null, headers are checked one at a time by the chain itself.
+     */
+    public void setHeaderVerifier(HeaderVerifier verifier) {
+        this.vHeaderVerifier = verifier;
+    }
+
+    /**
+     * Sets the {@link BroadcastCache} that transactions returned by {@link PeerEventListener#getData} are sent from,
+     * so a transaction that many peers ask for is only serialized once. If null, each one is serialized as it's sent.
+     */
+    public void setBroadcastCache(BroadcastCache broadcastCache) {
+        this.vBroadcastCache = broadcastCache;
+    }
+
     /**
      * Returns true if this peer will try and download things it is sent in "inv" messages. Normally you only need
      * one peer to be downloading data. Defaults to true.
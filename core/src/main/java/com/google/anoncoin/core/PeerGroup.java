@@ -20,7 +20,9 @@ package com.google.anoncoin.core;
 import com.google.anoncoin.core.Peer.PeerHandler;
 import com.google.anoncoin.discovery.PeerDiscovery;
 import com.google.anoncoin.discovery.PeerDiscoveryException;
+import com.google.anoncoin.utils.ListenerRegistration;
 import com.google.anoncoin.utils.Locks;
+import com.google.anoncoin.utils.Threading;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.*;
@@ -87,7 +89,7 @@ public class PeerGroup extends AbstractIdleService {
     // Callback for events related to chain download
     private PeerEventListener downloadListener;
     // Callbacks for events related to peer connection/disconnection
-    private final CopyOnWriteArrayList<PeerEventListener> peerEventListeners;
+    private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
     private CopyOnWriteArraySet<PeerDiscovery> peerDiscoverers;
     // The version message to use for new connections.
@@ -107,6 +109,10 @@ public class PeerGroup extends AbstractIdleService {
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
     private final NetworkParameters params;
+    // Serializes messages that go to several peers, once for all of them.
+    private final AnoncoinSerializer serializer;
+    // Frames of the transactions we send out, which often go to many peers.
+    private final BroadcastCache broadcastCache;
     private final AbstractBlockChain chain;
     private long fastCatchupTimeSecs;
     private final CopyOnWriteArrayList<Wallet> wallets;
@@ -163,6 +169,8 @@ public class PeerGroup extends AbstractIdleService {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
     private int lastBloomFilterElementCount;
+    // Checks the proof of work of downloaded headers in parallel. Given to every new peer, can be null.
+    private volatile HeaderVerifier vHeaderVerifier;
 
     /**
      * Creates a PeerGroup with the given parameters. No chain is provided so this node will report its chain height
@@ -203,6 +211,8 @@ public class PeerGroup extends AbstractIdleService {
      */
     public PeerGroup(NetworkParameters params, AbstractBlockChain chain, ClientBootstrap bootstrap) {
         this.params = params;
+        this.serializer = new AnoncoinSerializer(params);
+        this.broadcastCache = new BroadcastCache(params);
         this.chain = chain;  // Can be null.
         this.fastCatchupTimeSecs = params.genesisBlock.getTimeSeconds();
         this.wallets = new CopyOnWriteArrayList<Wallet>();
@@ -232,7 +242,7 @@ public class PeerGroup extends AbstractIdleService {
         pendingPeers = Collections.synchronizedList(new ArrayList<Peer>());
         channels = new DefaultChannelGroup();
         peerDiscoverers = new CopyOnWriteArraySet<PeerDiscovery>(); 
-        peerEventListeners = new CopyOnWriteArrayList<PeerEventListener>();
+        peerEventListeners = new CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>>();
     }
 
     /**
@@ -265,6 +275,7 @@ public class PeerGroup extends AbstractIdleService {
                 ChannelPipeline p = Channels.pipeline();
 
                 Peer peer = new Peer(params, chain, ver, memoryPool);
+                peer.setHeaderVerifier(vHeaderVerifier);
                 peer.addLifecycleListener(startupListener);
                 pendingPeers.add(peer);
                 TCPNetworkConnection codec = new TCPNetworkConnection(params, peer.getVersionMessage());
@@ -305,6 +316,22 @@ public class PeerGroup extends AbstractIdleService {
         }
     }
 
+    /**
+     * <p>Sets a {@link HeaderVerifier} that peers use to check the proof of work of downloaded block headers on a
+     * pool of worker threads, instead of one at a time under the block chain lock. This speeds up the initial chain
+     * download considerably on multi-core machines. Applies to current and future peers. Pass null to go back to
+     * verifying headers on the network thread.</p>
+     *
+     * <p>The verifier is not shut down by the PeerGroup, as it may be shared with other code.</p>
+     */
+    public void setHeaderVerifier(HeaderVerifier verifier) {
+        vHeaderVerifier = verifier;
+        for (Peer peer : getConnectedPeers())
+            peer.setHeaderVerifier(verifier);
+        for (Peer peer : getPendingPeers())
+            peer.setHeaderVerifier(verifier);
+    }
+
     /** The maximum number of connections that we will create to peers. */
     public int getMaxConnections() {
         lock.lock();
@@ -432,16 +459,26 @@ public class PeerGroup extends AbstractIdleService {
      *     <li>Blocks are downloaded by the download peer.</li>
      *     </li>
      * </ol>
-     * <p>The listener will be locked during callback execution, which in turn will cause network message processing
-     * to stop until the listener returns.</p>
+     * <p>The callbacks are run by {@link Threading#USER_THREAD}, so network message processing carries on while they
+     * run. See {@link Peer#addEventListener(PeerEventListener, java.util.concurrent.Executor)} for the callbacks that
+     * are still run on the network thread.</p>
      */
     public void addEventListener(PeerEventListener listener) {
-        peerEventListeners.add(checkNotNull(listener));
+        addEventListener(listener, Threading.USER_THREAD);
+    }
+
+    /**
+     * Adds a listener like {@link #addEventListener(PeerEventListener)}, but whose callbacks are run by the given
+     * executor. With {@link Threading#SAME_THREAD} they're run on the network thread, which stops processing messages
+     * until the listener returns.
+     */
+    public void addEventListener(PeerEventListener listener, Executor executor) {
+        peerEventListeners.add(new ListenerRegistration<PeerEventListener>(checkNotNull(listener), executor));
     }
 
     /** The given event listener will no longer be called with events. */
     public boolean removeEventListener(PeerEventListener listener) {
-        return peerEventListeners.remove(checkNotNull(listener));
+        return ListenerRegistration.removeFromList(checkNotNull(listener), peerEventListeners);
     }
 
     /**
@@ -602,7 +639,7 @@ public class PeerGroup extends AbstractIdleService {
             // if a key is added. Of course, by then we may have downloaded the chain already. Ideally adding keys would
             // automatically rewind the block chain and redownload the blocks to find transactions relevant to those keys,
             // all transparently and in the background. But we are a long way from that yet.
-            wallet.addEventListener(walletEventListener);
+            wallet.addEventListener(walletEventListener, Threading.SAME_THREAD);
             recalculateFastCatchupAndFilter();
             updateVersionMessageRelayTxesBeforeFilter(getVersionMessage());
         } finally {
@@ -799,8 +836,11 @@ public class PeerGroup extends AbstractIdleService {
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
             }
-            // Make sure the peer knows how to upload transactions that are requested from us.
-            peer.addEventListener(getDataListener);
+            // Make sure the peer knows how to upload transactions that are requested from us. They are sent from the
+            // broadcast cache, so a transaction we announced to all our peers is serialized once for all the ones
+            // that ask for it.
+            peer.setBroadcastCache(broadcastCache);
+            peer.addEventListener(getDataListener, Threading.SAME_THREAD);
             // Now tell the peers about any transactions we have which didn't appear in the chain yet. These are not
             // necessarily spends we created. They may also be transactions broadcast across the network that we saw,
             // which are relevant to us, and which we therefore wish to help propagate (ie they send us coins).
@@ -812,12 +852,18 @@ public class PeerGroup extends AbstractIdleService {
             // TODO: Find a way to balance the desire to propagate useful transactions against DoS attacks.
             announcePendingWalletTransactions(wallets, Collections.singletonList(peer));
             // And set up event listeners for clients. This will allow them to find out about new transactions and blocks.
-            for (PeerEventListener listener : peerEventListeners) {
-                peer.addEventListener(listener);
+            for (ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
+                peer.addEventListener(registration.listener, registration.executor);
             }
             setupPingingForNewPeer(peer);
-            for (PeerEventListener listener : peerEventListeners)
-                listener.onPeerConnected(peer, peers.size());
+            final int peerCount = peers.size();
+            for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        registration.listener.onPeerConnected(peer, peerCount);
+                    }
+                });
+            }
         } finally {
             lock.unlock();
         }
@@ -883,9 +929,10 @@ public class PeerGroup extends AbstractIdleService {
             return true;
         }
         boolean success = false;
+        MessageFrame frame = serializer.serializeFrame(inv);
         for (Peer p : announceToPeers) {
             log.info("{}: Announcing {} pending wallet transactions", p.getAddress(), inv.getItems().size());
-            p.sendMessage(inv);
+            p.sendFrame(frame);
             success = true;
         }
         return success;
@@ -1003,19 +1050,25 @@ public class PeerGroup extends AbstractIdleService {
             }
         }
         peer.removeEventListener(getDataListener);
+        peer.setBroadcastCache(null);
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
-        for (PeerEventListener listener : peerEventListeners) {
-            listener.onPeerDisconnected(peer, peers.size());
-            peer.removeEventListener(listener);
+        final int peerCount = peers.size();
+        for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    registration.listener.onPeerDisconnected(peer, peerCount);
+                }
+            });
+            peer.removeEventListener(registration.listener);
         }
     }
 
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
         try {
-            peer.addEventListener(downloadListener);
+            peer.addEventListener(downloadListener, Threading.SAME_THREAD);
             setDownloadPeer(peer);
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
@@ -1046,10 +1099,18 @@ public class PeerGroup extends AbstractIdleService {
                     removeEventListener(this);
                 }
             }
-        });
+        }, Threading.SAME_THREAD);
         return future;
     }
 
+    /**
+     * Returns the cache of serialized transactions that this group sends to its peers, which counts the bytes and
+     * time saved by not serializing them again for each peer.
+     */
+    public BroadcastCache getBroadcastCache() {
+        return broadcastCache;
+    }
+
     /**
      * Returns the number of connections that are required before transactions will be broadcast. If there aren't
      * enough, {@link PeerGroup#broadcastTransaction(Transaction)} will wait until the minimum number is reached so
@@ -1171,11 +1232,12 @@ public class PeerGroup extends AbstractIdleService {
                         }
                         // We're done! It's important that the PeerGroup lock is not held (by this thread) at this
                         // point to avoid triggering inversions when the Future completes.
-                        log.info("broadcastTransaction: {} complete", pinnedTx.getHashAsString());
+                        log.info("broadcastTransaction: {} complete, broadcast cache: {}", pinnedTx.getHashAsString(),
+                                broadcastCache);
                         tx.getConfidence().removeEventListener(this);
                         future.set(pinnedTx);  // RE-ENTRANCY POINT
                     }
-                });
+                }, Threading.SAME_THREAD);
 
                 // Satoshis code sends an inv in this case and then lets the peer request the tx data. We just
                 // blast out the TX here for a couple of reasons. Firstly it's simpler: in the case where we have
@@ -1187,7 +1249,7 @@ public class PeerGroup extends AbstractIdleService {
                 // to skip the inv here - we wouldn't send invs anyway.
                 //
                 // TODO: The peer we picked might be dead by now. If we can't write the message, pick again and retry.
-                ChannelFuture sendComplete = somePeer.sendMessage(pinnedTx);
+                ChannelFuture sendComplete = somePeer.sendFrame(broadcastCache.get(pinnedTx));
                 // If we've been limited to talk to only one peer, we can't wait to hear back because the
                 // remote peer won't tell us about transactions we just announced to it for obvious reasons.
                 // So we just have to assume we're done, at that point. This happens when we're not given
@@ -20,13 +20,8 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
-import org.jboss.netty.handler.codec.replay.VoidEnum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -180,7 +175,11 @@ public class TCPNetworkConnection implements NetworkConnection {
         return "[" + remoteIp.getHostAddress() + "]:" + params.port;
     }
 
-    public class NetworkHandler extends ReplayingDecoder<VoidEnum> implements ChannelDownstreamHandler {
+    public class NetworkHandler extends MessageFrameDecoder implements ChannelDownstreamHandler {
+        public NetworkHandler() {
+            super(params, serializer);
+        }
+
         @Override
         public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
             super.channelConnected(ctx, e);
@@ -194,26 +193,20 @@ public class TCPNetworkConnection implements NetworkConnection {
             // useful data in it. We need to know the peer protocol version before we can talk to it.
         }
 
-        // Attempt to decode a Anoncoin message passing upstream in the channel.
-        //
-        // By extending ReplayingDecoder, reading past the end of buffer will throw a special Error
-        // causing the channel to read more and retry.
-        //
-        // On VMs/systems where exception handling is slow, this will impact performance.  On the
-        // other hand, implementing a FrameDecoder will increase code complexity due to having
-        // to implement retries ourselves.
-        //
-        // TODO: consider using a decoder state and checkpoint() if performance is an issue.
+        // Attempt to decode a Anoncoin message passing upstream in the channel. Returns null until the whole message
+        // has arrived.
         @Override
-        protected Object decode(ChannelHandlerContext ctx, Channel chan,
-                                ChannelBuffer buffer, VoidEnum state) throws Exception {
-            Message message = serializer.deserialize(new ChannelBufferInputStream(buffer));
+        protected Object decode(ChannelHandlerContext ctx, Channel chan, ChannelBuffer buffer) throws Exception {
+            Object message = super.decode(ctx, chan, buffer);
             if (message instanceof VersionMessage)
-                onVersionMessage(message);
+                onVersionMessage((Message) message);
             return message;
         }
 
-        /** Serialize outgoing Anoncoin messages passing downstream in the channel. */
+        /**
+         * Serialize outgoing Anoncoin messages passing downstream in the channel. A {@link MessageFrame} is already
+         * serialized, and is written as it is.
+         */
         public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent evt) throws Exception {
             if (!(evt instanceof MessageEvent)) {
                 ctx.sendDownstream(evt);
@@ -221,11 +214,12 @@ public class TCPNetworkConnection implements NetworkConnection {
             }
 
             MessageEvent e = (MessageEvent) evt;
-            Message message = (Message)e.getMessage();
-
-            ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
-            serializer.serialize(message, new ChannelBufferOutputStream(buffer));
-            write(ctx, e.getFuture(), buffer, e.getRemoteAddress());
+            MessageFrame frame;
+            if (e.getMessage() instanceof MessageFrame)
+                frame = (MessageFrame) e.getMessage();
+            else
+                frame = serializer.serializeFrame((Message) e.getMessage());
+            write(ctx, e.getFuture(), frame.toChannelBuffer(), e.getRemoteAddress());
         }
 
         public TCPNetworkConnection getOwnerObject() {
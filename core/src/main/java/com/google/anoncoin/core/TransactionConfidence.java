@@ -16,12 +16,22 @@
 
 package com.google.anoncoin.core;
 
+import com.google.anoncoin.utils.ListenerRegistration;
+import com.google.anoncoin.utils.Threading;
 import com.google.common.base.Preconditions;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
@@ -47,8 +57,10 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link com.google.anoncoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * <p>The block depth and work done of a transaction in a {@link Wallet} are worked out from the top of the wallet's
+ * view of the best chain when they are read, so they are always up to date without the wallet having to touch every
+ * transaction for each new block. Confidence objects that aren't in a wallet can be kept up to date via the
+ * {@link com.google.anoncoin.core.TransactionConfidence#notifyWorkDone(Block)} method.</p>
  * To make a copy that won't be changed, use {@link com.google.anoncoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -63,12 +75,19 @@ public class TransactionConfidence implements Serializable {
     /** The Transaction that this confidence object is associated with. */
     private Transaction transaction;
     // Lazily created listeners array.
-    private transient CopyOnWriteArrayList<Listener> listeners;
+    private transient CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // If the transaction is in a wallet, the depth and work done above are as of when the wallet's chain tip was at
+    // setAt, and the blocks added to the tip since then are added on when they are read.
+    private transient ChainTip chainTip;
+    private transient ChainTip.Position setAt;
+    // How deep the listeners that asked to hear about new blocks want to know about, and the depth they last heard.
+    private transient Map<Listener, Integer> listenerDepths;
+    private transient int notifiedDepth;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -150,7 +169,8 @@ public class TransactionConfidence implements Serializable {
     public TransactionConfidence(Transaction tx) {
         // Assume a default number of peers for our set.
         broadcastBy = new CopyOnWriteArrayList<PeerAddress>();
-        listeners = new CopyOnWriteArrayList<Listener>();
+        listeners = new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
+        listenerDepths = new HashMap<Listener, Integer>();
         transaction = tx;
     }
 
@@ -168,23 +188,76 @@ public class TransactionConfidence implements Serializable {
     }
 
     /**
-     * <p>Adds an event listener that will be run when this confidence object is updated. The listener will be locked and
-     * is likely to be invoked on a peer thread.</p>
+     * <p>Adds an event listener that will be run by {@link Threading#USER_THREAD} when this confidence object is
+     * updated.</p>
      *
      * <p>Note that this is NOT called when every block arrives. Instead it is called when the transaction
      * transitions between confidence states, ie, from not being seen in the chain to being seen (not necessarily in
      * the best chain). If you want to know when the transaction gets buried under another block, implement a
      * {@link BlockChainListener}, attach it to a {@link BlockChain} and then use the getters on the
-     * confidence object to determine the new depth.</p>
+     * confidence object to determine the new depth, or use {@link #addEventListener(Listener, int)}.</p>
      */
     public void addEventListener(Listener listener) {
+        addEventListener(listener, Threading.USER_THREAD);
+    }
+
+    /**
+     * Adds an event listener like {@link #addEventListener(Listener)}, that is run by the given executor. With
+     * {@link Threading#SAME_THREAD} it's run on the thread that updated the confidence, which is likely to be a peer
+     * thread, and may hold the wallet lock. Adding a listener that's already there keeps the executor it had.
+     */
+    public void addEventListener(Listener listener, Executor executor) {
+        Preconditions.checkNotNull(listener);
+        Preconditions.checkNotNull(executor);
+        addIfAbsent(listener, executor);
+    }
+
+    /**
+     * <p>Adds an event listener that runs when the confidence type changes, like one added by
+     * {@link #addEventListener(Listener)}, and also each time the transaction is buried under another block until
+     * it is the given number of blocks deep. Adding a listener that's already there changes how deep it wants to
+     * know about.</p>
+     *
+     * <p>The blocks are counted by the {@link Wallet} the transaction is in, so this has no effect for transactions
+     * that aren't in one. Only transactions with such a listener that are not yet deep enough cost the wallet
+     * anything when a block arrives, so keep the depth as low as will do.</p>
+     *
+     * <p>The listener is run by {@link Threading#USER_THREAD}.</p>
+     */
+    public void addEventListener(Listener listener, int depth) {
+        addEventListener(listener, depth, Threading.USER_THREAD);
+    }
+
+    /**
+     * Adds an event listener like {@link #addEventListener(Listener, int)}, that is run by the given executor, as
+     * described in {@link #addEventListener(Listener, Executor)}.
+     */
+    public void addEventListener(Listener listener, int depth, Executor executor) {
         Preconditions.checkNotNull(listener);
-        listeners.addIfAbsent(listener);
+        Preconditions.checkArgument(depth > 0, "Depth must be positive: %s", depth);
+        Preconditions.checkNotNull(executor);
+        addIfAbsent(listener, executor);
+        synchronized (this) {
+            listenerDepths.put(listener, depth);
+            updateFollowing();
+        }
     }
 
     public void removeEventListener(Listener listener) {
         Preconditions.checkNotNull(listener);
-        listeners.remove(listener);
+        synchronized (this) {
+            ListenerRegistration.removeFromList(listener, listeners);
+            if (listenerDepths.remove(listener) != null)
+                updateFollowing();
+        }
+    }
+
+    private synchronized void addIfAbsent(Listener listener, Executor executor) {
+        for (ListenerRegistration<Listener> registration : listeners) {
+            if (registration.listener == listener)
+                return;
+        }
+        listeners.add(new ListenerRegistration<Listener>(listener, executor));
     }
 
     /**
@@ -224,7 +297,11 @@ public class TransactionConfidence implements Serializable {
         synchronized (this) {
             if (confidenceType == this.confidenceType)
                 return;
+            // Blocks only bury a transaction while it's building.
+            rebase();
             this.confidenceType = confidenceType;
+            notifiedDepth = currentDepth();
+            updateFollowing();
         }
         runListeners();
     }
@@ -302,16 +379,19 @@ public class TransactionConfidence implements Serializable {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top.
-     * Updates the internal counter that tracks how deeply buried the block is.
-     * Work is the value of block.getWork().
+     * Called when the tx appears on the best chain and a new block is added to the top. Updates the internal counter
+     * that tracks how deeply buried the block is. Work is the value of block.getWork(). The {@link Wallet} keeps the
+     * confidence of its own transactions up to date, so this is only needed for transactions that aren't in one.
      */
     public void notifyWorkDone(Block block) throws VerificationException {
         boolean notify = false;
         synchronized (this) {
             if (getConfidenceType() == ConfidenceType.BUILDING) {
+                rebase();
                 this.depth++;
                 this.workDone = this.workDone.add(block.getWork());
+                notifiedDepth = depth;
+                updateFollowing();
                 notify = true;
             }
         }
@@ -319,6 +399,82 @@ public class TransactionConfidence implements Serializable {
             runListeners();
     }
 
+    /**
+     * Called by the wallet when a block is added to its chain tip, if this object is following the tip. Runs the
+     * listeners that want to know the transaction is now deeper.
+     */
+    void notifyBlockAdded() {
+        List<ListenerRegistration<Listener>> toRun = new ArrayList<ListenerRegistration<Listener>>();
+        synchronized (this) {
+            int depth = currentDepth();
+            if (confidenceType == ConfidenceType.BUILDING && depth > notifiedDepth) {
+                notifiedDepth = depth;
+                for (ListenerRegistration<Listener> registration : listeners) {
+                    Integer listenerDepth = listenerDepths.get(registration.listener);
+                    if (listenerDepth != null && listenerDepth >= depth)
+                        toRun.add(registration);
+                }
+            }
+            updateFollowing();
+        }
+        runListeners(toRun);
+    }
+
+    /**
+     * Has the depth and work done follow the given chain tip from now on, or stop following one if it's null. Called
+     * by the wallet the transaction is in.
+     */
+    synchronized void setChainTip(ChainTip chainTip) {
+        if (chainTip == this.chainTip)
+            return;
+        rebase();
+        if (this.chainTip != null)
+            this.chainTip.unfollow(this);
+        this.chainTip = chainTip;
+        setAt = chainTip == null ? null : chainTip.getPosition();
+        updateFollowing();
+    }
+
+    /** Adds what the chain tip has moved since the depth and work done were set to them. */
+    private void rebase() {
+        if (chainTip == null)
+            return;
+        ChainTip.Position now = chainTip.getPosition();
+        if (confidenceType == ConfidenceType.BUILDING) {
+            depth += now.blocks - setAt.blocks;
+            workDone = workDone.add(now.work.subtract(setAt.work));
+        }
+        setAt = now;
+    }
+
+    private int currentDepth() {
+        if (chainTip == null || confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        return depth + chainTip.getPosition().blocks - setAt.blocks;
+    }
+
+    private BigInteger currentWorkDone() {
+        if (chainTip == null || confidenceType != ConfidenceType.BUILDING)
+            return workDone;
+        return workDone.add(chainTip.getPosition().work.subtract(setAt.work));
+    }
+
+    /** Follows the chain tip for as long as a listener wants to hear about the transaction getting deeper. */
+    private void updateFollowing() {
+        if (chainTip == null)
+            return;
+        boolean follow = false;
+        if (confidenceType == ConfidenceType.BUILDING) {
+            int depth = currentDepth();
+            for (int listenerDepth : listenerDepths.values())
+                follow |= listenerDepth > depth;
+        }
+        if (follow)
+            chainTip.follow(this);
+        else
+            chainTip.unfollow(this);
+    }
+
     /**
      * Depth in the chain is an approximation of how much time has elapsed since the transaction has been confirmed. On
      * average there is supposed to be a new block every 10 minutes, but the actual rate may vary. The reference
@@ -337,14 +493,17 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING) {
             throw new IllegalStateException("Confidence type is not BUILDING");
         }
-        return depth;
+        return currentDepth();
     }
 
     /*
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        rebase();
         this.depth = depth;
+        notifiedDepth = depth;
+        updateFollowing();
     }
 
     /**
@@ -360,10 +519,11 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING) {
             throw new IllegalStateException("Confidence type is not BUILDING");
         }
-        return workDone;
+        return currentWorkDone();
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        rebase();
         this.workDone = workDone;
     }
 
@@ -406,8 +566,29 @@ public class TransactionConfidence implements Serializable {
     }
 
     private void runListeners() {
-        for (Listener listener : listeners)
-            listener.onConfidenceChanged(transaction);
+        runListeners(listeners);
+    }
+
+    private void runListeners(List<ListenerRegistration<Listener>> registrations) {
+        for (final ListenerRegistration<Listener> registration : registrations) {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    registration.listener.onConfidenceChanged(transaction);
+                }
+            });
+        }
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        // Write the depth and work done as they are now, rather than as they were when last set.
+        rebase();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
+        listenerDepths = new HashMap<Listener, Integer>();
     }
 
     /**
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * <p>The outputs a {@link Wallet} could spend, kept in order of age and of value as transactions come and go, so that
+ * a {@link Wallet.IndexedCoinSelector} can walk through just as many of them as it needs in the order it wants, rather
+ * than being handed every candidate to sort for each spend.</p>
+ *
+ * <p>Outputs are aged by the height of the block their transaction appeared in, and pending transactions come after
+ * all of those. Outputs that are already spent, and those of coinbases that can't be spent yet, are skipped. The index
+ * belongs to its wallet and may only be used while the wallet is locked, as it is when a coin selector is called.</p>
+ */
+public class UnspentOutputIndex {
+    // Pending transactions are younger than anything in the chain.
+    static final int PENDING_HEIGHT = Integer.MAX_VALUE;
+
+    private static class Entry {
+        final TransactionOutput output;
+        final int height;
+        final BigInteger value;
+        final BigInteger txHash;
+        final int index;
+
+        Entry(TransactionOutput output, int height, BigInteger value, BigInteger txHash, int index) {
+            this.output = output;
+            this.height = height;
+            this.value = value;
+            this.txHash = txHash;
+            this.index = index;
+        }
+    }
+
+    // Transactions of the same age are put in hash order, the same as DefaultCoinSelector sorts them.
+    private static final Comparator<Entry> AGE_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.height != b.height)
+                return a.height < b.height ? -1 : 1;
+            int result = a.txHash.compareTo(b.txHash);
+            if (result != 0)
+                return result;
+            return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> VALUE_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int result = a.value.compareTo(b.value);
+            return result != 0 ? result : AGE_ORDER.compare(a, b);
+        }
+    };
+
+    private static final Predicate<Entry> SPENDABLE = new Predicate<Entry>() {
+        public boolean apply(Entry entry) {
+            return entry.output.isAvailableForSpending() && entry.output.parentTransaction.isMature();
+        }
+    };
+
+    private static final Function<Entry, TransactionOutput> TO_OUTPUT = new Function<Entry, TransactionOutput>() {
+        public TransactionOutput apply(Entry entry) {
+            return entry.output;
+        }
+    };
+
+    private final TreeSet<Entry> byAge = new TreeSet<Entry>(AGE_ORDER);
+    private final TreeSet<Entry> byValue = new TreeSet<Entry>(VALUE_ORDER);
+    private final Map<Sha256Hash, List<Entry>> byTransaction = new HashMap<Sha256Hash, List<Entry>>();
+
+    /**
+     * Puts the outputs of a transaction that are the given wallet's and not yet spent in the index, in place of any of
+     * its outputs that were there before. The transaction appeared in the block at the given height, or is pending if
+     * that's {@link #PENDING_HEIGHT}.
+     */
+    void put(Transaction tx, int height, Wallet wallet) {
+        remove(tx.getHash());
+        BigInteger txHash = tx.getHash().toBigInteger();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        List<Entry> entries = null;
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            if (!output.isAvailableForSpending() || !output.isMine(wallet))
+                continue;
+            Entry entry = new Entry(output, height, output.getValue(), txHash, i);
+            byAge.add(entry);
+            byValue.add(entry);
+            if (entries == null)
+                entries = new ArrayList<Entry>(1);
+            entries.add(entry);
+        }
+        if (entries != null)
+            byTransaction.put(tx.getHash(), entries);
+    }
+
+    /** Takes the outputs of the given transaction out of the index. */
+    void remove(Sha256Hash txHash) {
+        List<Entry> entries = byTransaction.remove(txHash);
+        if (entries == null)
+            return;
+        for (Entry entry : entries) {
+            byAge.remove(entry);
+            byValue.remove(entry);
+        }
+    }
+
+    /** Returns the outputs that can be spent, those from the oldest transactions first. */
+    public Iterable<TransactionOutput> oldestFirst() {
+        return spendable(byAge);
+    }
+
+    /** Returns the outputs that can be spent, those from the newest transactions first. */
+    public Iterable<TransactionOutput> newestFirst() {
+        return spendable(byAge.descendingSet());
+    }
+
+    /** Returns the outputs that can be spent, the smallest first. Outputs of the same value come oldest first. */
+    public Iterable<TransactionOutput> smallestFirst() {
+        return spendable(byValue);
+    }
+
+    /** Returns the outputs that can be spent, the largest first. */
+    public Iterable<TransactionOutput> largestFirst() {
+        return spendable(byValue.descendingSet());
+    }
+
+    /**
+     * Returns the outputs that can be spent and are worth at least the given value, the smallest first. The first of
+     * them, if there is one, is the smallest single output that covers the value.
+     */
+    public Iterable<TransactionOutput> coveringFirst(BigInteger value) {
+        Entry smallest = new Entry(null, Integer.MIN_VALUE, value, BigInteger.valueOf(-1), Integer.MIN_VALUE);
+        return spendable(byValue.tailSet(smallest, true));
+    }
+
+    /** Returns how many outputs are in the index, including any that turn out to be spent when they're reached. */
+    public int size() {
+        return byAge.size();
+    }
+
+    private static Iterable<TransactionOutput> spendable(Iterable<Entry> entries) {
+        return Iterables.unmodifiableIterable(Iterables.transform(Iterables.filter(entries, SPENDABLE), TO_OUTPUT));
+    }
+}
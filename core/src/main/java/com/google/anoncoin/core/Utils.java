@@ -18,6 +18,7 @@ package com.google.anoncoin.core;
 
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 import org.spongycastle.util.encoders.Hex;
+import com.google.anoncoin.crypto.ScryptHasher;
 import com.lambdaworks.crypto.SCrypt;
 
 import java.io.IOException;
@@ -25,6 +26,8 @@ import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
@@ -36,14 +39,21 @@ import static com.google.common.base.Preconditions.checkArgument;
  * To enable debug logging from the library, run with -Danoncoinj.logging=true on your command line.
  */
 public class Utils {
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    // Each thread gets its own digest, so hashing on the network and script verification threads doesn't contend
+    // on a single lock. MessageDigest objects are not thread safe.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
         }
-    }
+    };
+
+    /** The length in bytes of a SHA-256 hash. */
+    public static final int SHA256_LENGTH = 32;
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String ANONCOIN_SIGNED_MESSAGE_HEADER = "Anoncoin Signed Message:\n";
@@ -162,11 +172,18 @@ public class Utils {
         return doubleDigest(input, 0, input.length);
     }
     
+    /**
+     * Calculates scrypt(N=1024, r=1, p=1) of the input, using it as both password and salt. This is the Anoncoin
+     * proof of work function. Block headers are hashed with {@link ScryptHasher}, which does not allocate any memory,
+     * other input sizes fall back to the general purpose implementation.
+     */
     public static byte[] scryptDigest(byte[] input) {
+        if (input.length == ScryptHasher.HEADER_SIZE)
+            return ScryptHasher.hashHeader(input);
         try {
             return SCrypt.scrypt(input, input, 1024, 1, 1, 32);
-        } catch (Exception e) {
-            return null;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);  // Cannot happen, HMAC-SHA256 is always available.
         }
     }
 
@@ -175,20 +192,34 @@ public class Utils {
      * standard procedure in Anoncoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
+        byte[] output = new byte[SHA256_LENGTH];
+        doubleDigest(input, offset, length, output, 0);
+        return output;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range)) and writes the 32 byte result into output starting at outOffset, instead
+     * of allocating a new array. The output range may overlap the input.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] output, int outOffset) {
+        checkArgument(outOffset >= 0 && outOffset + SHA256_LENGTH <= output.length, "Output buffer too small");
+        MessageDigest digest = Utils.digest.get();
+        try {
             digest.reset();
             digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+            digest.digest(output, outOffset, SHA256_LENGTH);
+            digest.update(output, outOffset, SHA256_LENGTH);
+            digest.digest(output, outOffset, SHA256_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen, the output range was checked above.
         }
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -196,13 +227,12 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] first = digest.digest();
+        return digest.digest(first);
     }
 
     /**
@@ -293,16 +323,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
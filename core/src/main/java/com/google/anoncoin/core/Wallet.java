@@ -17,6 +17,7 @@
 package com.google.anoncoin.core;
 
 import com.google.anoncoin.crypto.KeyCrypterScrypt;
+import org.anoncoinj.wallet.Protos;
 import org.anoncoinj.wallet.Protos.Wallet.EncryptionType;
 import org.spongycastle.crypto.params.KeyParameter;
 
@@ -24,11 +25,19 @@ import com.google.anoncoin.core.TransactionConfidence.ConfidenceType;
 import com.google.anoncoin.core.WalletTransaction.Pool;
 import com.google.anoncoin.crypto.KeyCrypter;
 import com.google.anoncoin.crypto.KeyCrypterException;
+import com.google.anoncoin.store.TransactionArchive;
+import com.google.anoncoin.store.WalletJournal;
 import com.google.anoncoin.store.WalletProtobufSerializer;
+import com.google.anoncoin.utils.ListenerRegistration;
 import com.google.anoncoin.utils.Locks;
+import com.google.anoncoin.utils.Threading;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -38,11 +47,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.anoncoin.core.Utils.anoncoinValueToFriendlyString;
@@ -50,7 +62,7 @@ import static com.google.common.base.Preconditions.*;
 
 // To do list:
 //
-// - Make the keychain member protected and switch it to be a hashmap of some kind so key lookup ops are faster.
+// - Make the keychain member protected.
 // - Refactor how keys are managed to better handle things like deterministic wallets in future.
 // - Decompose the class where possible: break logic out into classes that can be customized/replaced by the user.
 //     - [Auto]saving to a backing store
@@ -119,6 +131,11 @@ public class Wallet implements Serializable, BlockChainListener {
     // Balance:
     // Take all the candidates for spending from unspent and pending. Select the ones that are actually available
     // according to our spend policy. Sum them up.
+    //
+    // Lazy loading:
+    // The pools are TransactionPools, so a large wallet can be loaded with its keys but without its transactions,
+    // which are added by a TransactionLoader the first time any pool is used for more than knowing which transactions
+    // are in it. See loadTransactionsLazily().
 
     /**
      * Map of txhash->Transactions that have not made it into the best chain yet. They are eligible to move there but
@@ -179,12 +196,21 @@ public class Wallet implements Serializable, BlockChainListener {
      */
     public ArrayList<ECKey> keychain;
 
+    // The keychain indexed by public key hash and by public key, so that finding the key for an output doesn't scan
+    // the whole keychain. Byte arrays don't compare by content but ByteBuffers do, so the bytes are wrapped in those.
+    // As the keychain is public and can be changed directly, it's kept as a KeyList, which counts every change made
+    // to it, and the indexes are rebuilt if it's not the list at the count they were built from.
+    private transient Map<ByteBuffer, ECKey> keysByPubKeyHash;
+    private transient Map<ByteBuffer, ECKey> keysByPubKey;
+    private transient KeyList indexedKeychain;
+    private transient int indexedKeychainChanges;
+
     private final NetworkParameters params;
 
     private Sha256Hash lastBlockSeenHash;
     private int lastBlockSeenHeight = -1;
 
-    private transient CopyOnWriteArrayList<WalletEventListener> eventListeners;
+    private transient CopyOnWriteArrayList<WalletListenerRegistration> eventListeners;
 
     // Auto-save code. This all should be generalized in future to not be file specific so you can easily store the
     // wallet into a database using the same mechanism. However we need to inform stores of each specific change with
@@ -195,10 +221,45 @@ public class Wallet implements Serializable, BlockChainListener {
     private transient boolean dirty;  // Is a write of the wallet necessary?
     private transient AutosaveEventListener autosaveEventListener;
     private transient long autosaveDelayMs;
+    // If journalCheckpointSize is set, auto-saves append the transactions that changed and the keys that were added to
+    // a journal, and write the whole wallet as a checkpoint only once the journal has grown that big, or after changes
+    // the journal can't record. The journal records where the chain tip is relative to journalTip, where it was at the
+    // checkpoint, as transactions in the chain aren't written again each time they get buried.
+    private transient long journalCheckpointSize;
+    private transient WalletJournal journal;
+    private transient Set<Sha256Hash> journalChanges;
+    private transient int journalKeys;
+    private transient ChainTip.Position journalTip;
+    private transient boolean journalCheckpointNeeded;
+    // Held while an auto-save is written out, which happens after the wallet has been unlocked, so that the auto-save
+    // file and the journal are only written by one thread at a time, in the order the saves were taken. It's taken
+    // while the wallet is locked, and the wallet isn't locked again until it's released.
+    private transient ReentrantLock saveLock;
+
+    // Adds the transactions to the pools the first time they're wanted, if the wallet was loaded without them. Until
+    // then the pools know which transactions they hold but not what they are.
+    private transient volatile TransactionLoader transactionLoader;
+    // Where the chain tip was when the transactions to be loaded were saved.
+    private transient ChainTip.Position transactionLoaderTip;
 
     // A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
+    // How many blocks deep the listener above follows transactions as they get buried.
+    private transient int confidenceNotificationDepth;
+
+    // The blocks we have seen added to the best chain. The confidence objects of our transactions work out their
+    // depth and work done from it, so a new block doesn't have to visit each of them.
+    private transient ChainTip chainTip;
+
+    // Where spent transactions that are buried deep enough go instead of the spent pool, if the wallet has one.
+    private transient TransactionArchive archive;
+
+    /**
+     * By default the wallet tells its event listeners about transactions getting buried under new blocks until they
+     * are this deep, and after that only about changes in the confidence type.
+     */
+    public static final int DEFAULT_CONFIDENCE_NOTIFICATION_DEPTH = 6;
 
     // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
@@ -227,7 +288,30 @@ public class Wallet implements Serializable, BlockChainListener {
         public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates);
     }
 
-    public static class DefaultCoinSelector implements CoinSelector {
+    /**
+     * A CoinSelector that can pick outputs straight from the wallet's {@link UnspentOutputIndex}, which keeps them in
+     * order of age and value, instead of from a list of every candidate. The wallet uses this rather than the list
+     * version of select when the selector implements it.
+     */
+    public interface IndexedCoinSelector extends CoinSelector {
+        public CoinSelection select(BigInteger target, UnspentOutputIndex index);
+    }
+
+    public static class DefaultCoinSelector implements IndexedCoinSelector {
+        public CoinSelection select(BigInteger biTarget, UnspentOutputIndex index) {
+            long target = biTarget.longValue();
+            long total = 0;
+            LinkedList<TransactionOutput> selected = Lists.newLinkedList();
+            // The index already has them in the order the list version sorts them into, oldest first.
+            for (TransactionOutput output : index.oldestFirst()) {
+                if (total >= target) break;
+                if (!shouldSelect(output.parentTransaction)) continue;
+                selected.add(output);
+                total += output.getValue().longValue();
+            }
+            return new CoinSelection(BigInteger.valueOf(total), selected);
+        }
+
         public CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
             long target = biTarget.longValue();
             long total = 0;
@@ -294,6 +378,15 @@ public class Wallet implements Serializable, BlockChainListener {
 
     private transient CoinSelector coinSelector = new DefaultCoinSelector();
 
+    // The balances, worked out the first time they are asked for after the wallet last changed, so polling them is
+    // cheap. They are read without the lock but only ever set or cleared with it held: anything that can change which
+    // outputs are ours, spendable or selected must call balanceMayHaveChanged() before it lets go of the lock.
+    private transient volatile BigInteger estimatedBalance, availableBalance;
+    // The outputs in unspent and pending that could be spent, in order for coin selectors. Kept up to date as
+    // transactions change, except after big changes like a re-org, when it's set to null to be rebuilt from the pools
+    // the next time it's wanted.
+    private transient UnspentOutputIndex outputIndex;
+
     // The keyCrypter for the wallet. This specifies the algorithm used for encrypting and decrypting the private keys.
     private KeyCrypter keyCrypter;
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
@@ -317,22 +410,27 @@ public class Wallet implements Serializable, BlockChainListener {
     public Wallet(NetworkParameters params, KeyCrypter keyCrypter) {
         this.keyCrypter = keyCrypter;
         this.params = checkNotNull(params);
-        keychain = new ArrayList<ECKey>();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        inactive = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
-        eventListeners = new CopyOnWriteArrayList<WalletEventListener>();
+        keychain = new KeyList();
+        unspent = new TransactionPool();
+        spent = new TransactionPool();
+        inactive = new TransactionPool();
+        pending = new TransactionPool();
+        dead = new TransactionPool();
+        eventListeners = new CopyOnWriteArrayList<WalletListenerRegistration>();
         createTransientState();
     }
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        saveLock = Locks.lock("wallet-save");
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx) {
                 lock.lock();
+                // Whether the coin selector will spend a transaction's outputs depends on its confidence, and how
+                // old the index thinks they are on when the transaction appeared.
+                balanceMayHaveChanged();
+                transactionChanged(tx);
                 // The invokers unlock us immediately so if an exception is thrown, the lock will be already open.
                 invokeOnTransactionConfidenceChanged(tx);
                 // Many onWalletChanged events will not occur because they are suppressed, eg, because:
@@ -349,6 +447,9 @@ public class Wallet implements Serializable, BlockChainListener {
             }
         };
         acceptTimeLockedTransactions = false;
+        confidenceNotificationDepth = DEFAULT_CONFIDENCE_NOTIFICATION_DEPTH;
+        chainTip = new ChainTip();
+        journalChanges = new HashSet<Sha256Hash>();
     }
 
     public NetworkParameters getNetworkParameters() {
@@ -380,26 +481,23 @@ public class Wallet implements Serializable, BlockChainListener {
     }
 
     private void saveToFile(File temp, File destFile) throws IOException {
+        boolean checkpoint;
+        lock.lock();
+        try {
+            checkpoint = journalCheckpointSize > 0 && destFile.equals(autosaveToFile);
+        } finally {
+            lock.unlock();
+        }
+        if (checkpoint) {
+            checkpoint(temp, destFile);
+            return;
+        }
         FileOutputStream stream = null;
         try {
             stream = new FileOutputStream(temp);
             saveToFileStream(stream);
-            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
-            // to not write through to physical media for at least a few seconds, but this is the best we can do.
-            stream.flush();
-            stream.getFD().sync();
-            stream.close();
+            syncAndRename(stream, temp, destFile);
             stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                canonical.delete();
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
-            }
             lock.lock();
             try {
                 if (destFile.equals(autosaveToFile)) {
@@ -415,6 +513,167 @@ public class Wallet implements Serializable, BlockChainListener {
         }
     }
 
+    private static void syncAndRename(FileOutputStream stream, File temp, File destFile) throws IOException {
+        // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
+        // to not write through to physical media for at least a few seconds, but this is the best we can do.
+        stream.flush();
+        stream.getFD().sync();
+        stream.close();
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            canonical.delete();
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
+    /**
+     * Writes the whole wallet to the auto-save file and starts a new, empty journal to go with it. The wallet is only
+     * locked while it's serialized, and whatever changes after that goes in the new journal.
+     */
+    private void checkpoint(File temp, File destFile) throws IOException {
+        WalletJournal journal;
+        Protos.Wallet walletProto = null;
+        lock.lock();
+        try {
+            checkTransactionsLoaded();
+            saveLock.lock();
+            try {
+                if (this.journal == null)
+                    this.journal = new WalletJournal(destFile);
+                journal = this.journal;
+                walletProto = journal.newSnapshot(new WalletProtobufSerializer().walletToProto(this));
+                journalChanges.clear();
+                journalKeys = keychain.size();
+                journalTip = chainTip.getPosition();
+                journalCheckpointNeeded = false;
+                dirty = false;
+            } finally {
+                if (walletProto == null)
+                    saveLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+        boolean written = false;
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                walletProto.writeTo(stream);
+                syncAndRename(stream, temp, destFile);
+                stream = null;
+            } finally {
+                if (stream != null)
+                    stream.close();
+            }
+            journal.start();
+            written = true;
+        } finally {
+            saveLock.unlock();
+            if (!written)
+                requireCheckpoint();
+        }
+        log.info("Wrote wallet checkpoint to {}", destFile);
+    }
+
+    /**
+     * Appends the transactions that changed and the keys that were added since the last auto-save to the journal, and
+     * returns true, or returns false without writing anything if the whole wallet has to be written instead. The
+     * record is taken with the wallet locked, but written to the journal and forced to the disk after it's unlocked.
+     */
+    private boolean appendToJournal() throws IOException {
+        WalletJournal journal;
+        Protos.Wallet changes = null;
+        int tipBlocks = 0;
+        BigInteger tipWork = null;
+        long generation = 0;
+        lock.lock();
+        try {
+            checkTransactionsLoaded();
+            saveLock.lock();
+            try {
+                journal = this.journal;
+                changes = journalChangesToProto();
+                if (changes != null) {
+                    ChainTip.Position tip = chainTip.getPosition();
+                    tipBlocks = tip.blocks - journalTip.blocks;
+                    tipWork = tip.work.subtract(journalTip.work);
+                    generation = journal.getGeneration();
+                    journalChanges.clear();
+                    journalKeys = keychain.size();
+                    dirty = false;
+                }
+            } finally {
+                if (changes == null)
+                    saveLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (changes == null)
+            return false;
+        boolean appended = false;
+        try {
+            appended = journal.append(changes, tipBlocks, tipWork, generation);
+        } finally {
+            saveLock.unlock();
+            // The changes that were taken out of journalChanges aren't in the journal, so only a checkpoint has them.
+            if (!appended)
+                requireCheckpoint();
+        }
+        return appended;
+    }
+
+    /**
+     * Returns a record of the transactions that changed and the keys that were added since the last auto-save, or
+     * null if the journal can't take one and the whole wallet has to be written instead.
+     */
+    private Protos.Wallet journalChangesToProto() {
+        checkState(lock.isHeldByCurrentThread() && saveLock.isHeldByCurrentThread());
+        if (journal == null || !journal.isStarted() || journalCheckpointNeeded || keychain.size() < journalKeys)
+            return null;
+        if (journal.size() >= journalCheckpointSize)
+            return null;
+        List<WalletTransaction> changed = new ArrayList<WalletTransaction>(journalChanges.size());
+        for (Sha256Hash hash : journalChanges) {
+            Transaction tx = getTransaction(hash);
+            // A transaction that was taken out of the wallet can only be forgotten by a checkpoint.
+            if (tx == null)
+                return null;
+            changed.add(new WalletTransaction(getPool(tx), tx));
+        }
+        List<ECKey> added = keychain.subList(journalKeys, keychain.size());
+        return new WalletProtobufSerializer().walletChangesToProto(this, changed, added);
+    }
+
+    private void requireCheckpoint() {
+        lock.lock();
+        try {
+            journalCheckpointNeeded = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeJournal() {
+        checkState(lock.isLocked());
+        if (journal == null)
+            return;
+        // Waits for an auto-save that's being written to finish with the journal.
+        saveLock.lock();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Failed to close wallet journal", e);
+        } finally {
+            saveLock.unlock();
+        }
+        journal = null;
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -510,16 +769,10 @@ public class Wallet implements Serializable, BlockChainListener {
                         }
                     }
 
-                    req.wallet.lock.lock();
-                    try {
-                        if (req.wallet.dirty) {
-                            if (req.wallet.autoSave()) {
-                                // Something went wrong, abort!
-                                break;
-                            }
-                        }
-                    } finally {
-                        req.wallet.lock.unlock();
+                    // The wallet is only locked while what's saved is taken, not while it's written out.
+                    if (req.wallet.autoSave()) {
+                        // Something went wrong, abort!
+                        break;
                     }
                 } catch (InterruptedException e) {
                     log.error("Auto-save thread interrupted during wait", e);
@@ -576,18 +829,23 @@ public class Wallet implements Serializable, BlockChainListener {
     /** Returns true if the auto-save thread should abort */
     private boolean autoSave() {
         lock.lock();
+        final boolean dirty = this.dirty;
         final Sha256Hash lastBlockSeenHash = this.lastBlockSeenHash;
         final AutosaveEventListener autosaveEventListener = this.autosaveEventListener;
         final File autosaveToFile = this.autosaveToFile;
         lock.unlock();
+        if (!dirty)
+            return false;
         try {
             log.info("Auto-saving wallet, last seen block is {}", lastBlockSeenHash);
-            File directory = autosaveToFile.getAbsoluteFile().getParentFile();
-            File temp = File.createTempFile("wallet", null, directory);
-            if (autosaveEventListener != null)
-                autosaveEventListener.onBeforeAutoSave(temp);
-            // This will clear the dirty flag.
-            saveToFile(temp, autosaveToFile);
+            if (!appendToJournal()) {
+                File directory = autosaveToFile.getAbsoluteFile().getParentFile();
+                File temp = File.createTempFile("wallet", null, directory);
+                if (autosaveEventListener != null)
+                    autosaveEventListener.onBeforeAutoSave(temp);
+                // This will clear the dirty flag.
+                saveToFile(temp, autosaveToFile);
+            }
             if (autosaveEventListener != null)
                 autosaveEventListener.onAfterAutoSave(autosaveToFile);
         } catch (Exception e) {
@@ -611,14 +869,14 @@ public class Wallet implements Serializable, BlockChainListener {
 
         /**
          * Called on the auto-save thread when a new temporary file is created but before the wallet data is saved
-         * to it. If you want to do something here like adjust permissions, go ahead and do so. The wallet is locked
-         * whilst this method is run.
+         * to it. If you want to do something here like adjust permissions, go ahead and do so. The wallet is not
+         * locked whilst this method is run on the auto-save thread.
          */
         public void onBeforeAutoSave(File tempFile);
 
         /**
          * Called on the auto-save thread after the newly created temporary file has been filled with data and renamed.
-         * The wallet is locked whilst this method is run.
+         * The wallet is not locked whilst this method is run on the auto-save thread.
          */
         public void onAfterAutoSave(File newlySavedFile);
     }
@@ -637,7 +895,7 @@ public class Wallet implements Serializable, BlockChainListener {
      * will not wait for the background thread.</b></p>
      *
      * <p>An event listener can be provided. If a delay >0 was specified, it will be called on a background thread
-     * with the wallet locked when an auto-save occurs. If delay is zero or you do something that always triggers
+     * when an auto-save occurs, without the wallet locked. If delay is zero or you do something that always triggers
      * an immediate save, like adding a key, the event listener will be invoked on the calling threads.</p>
      *
      * @param f The destination file to save to.
@@ -651,6 +909,7 @@ public class Wallet implements Serializable, BlockChainListener {
         try {
             Preconditions.checkArgument(delayTime >= 0);
             autosaveToFile = Preconditions.checkNotNull(f);
+            closeJournal();
             if (delayTime > 0) {
                 autosaveEventListener = eventListener;
                 autosaveDelayMs = TimeUnit.MILLISECONDS.convert(delayTime, timeUnit);
@@ -660,6 +919,33 @@ public class Wallet implements Serializable, BlockChainListener {
         }
     }
 
+    /**
+     * <p>Makes auto-saves append just the transactions that changed and the keys that were added to a journal kept
+     * next to the auto-save file, as described in {@link WalletJournal}, rather than rewrite the whole wallet each
+     * time, which for a large wallet syncing the chain is a lot of writing for very little change. The whole wallet
+     * is written out as a checkpoint by the first auto-save, once the journal has grown to the given number of bytes,
+     * and after changes to much of the wallet like a re-org or encryption. {@link #loadFromFile(java.io.File)} plays
+     * the journal back, so the two files must be kept, copied and backed up together.</p>
+     *
+     * <p>Appending to the journal doesn't create a temporary file, so {@link AutosaveEventListener#onBeforeAutoSave}
+     * is only called before checkpoints. The description and extensions are only written by checkpoints, so save the
+     * wallet after changing them.</p>
+     *
+     * @param checkpointSize how big the journal grows before the wallet is written out in full, or zero to always
+     *                       write out the whole wallet, which is the default.
+     */
+    public void setAutosaveJournal(long checkpointSize) {
+        checkArgument(checkpointSize >= 0);
+        lock.lock();
+        try {
+            journalCheckpointSize = checkpointSize;
+            // Start afresh with a checkpoint, or without a journal.
+            closeJournal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void queueAutoSave() {
         lock.lock();
         try {
@@ -667,7 +953,8 @@ public class Wallet implements Serializable, BlockChainListener {
             if (autosaveDelayMs == 0) {
                 // No delay time was specified, so save now.
                 try {
-                    saveToFile(autosaveToFile);
+                    if (!appendToJournal())
+                        saveToFile(autosaveToFile);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -692,6 +979,7 @@ public class Wallet implements Serializable, BlockChainListener {
     public void saveToFileStream(OutputStream f) throws IOException {
         lock.lock();
         try {
+            checkTransactionsLoaded();
             new WalletProtobufSerializer().writeWallet(this, f);
         } finally {
             lock.unlock();
@@ -707,9 +995,19 @@ public class Wallet implements Serializable, BlockChainListener {
      * Returns a wallet deserialized from the given file.
      */
     public static Wallet loadFromFile(File f) throws IOException {
+        File journalFile = WalletJournal.fileFor(f);
         FileInputStream stream = new FileInputStream(f);
         try {
-            return loadFromFileStream(stream);
+            if (!journalFile.exists())
+                return loadFromFileStream(stream);
+            // The wallet file was auto-saved with a journal, which has to be played back onto it.
+            Protos.Wallet walletProto = WalletProtobufSerializer.parseToProto(new BufferedInputStream(stream));
+            walletProto = WalletJournal.replay(walletProto, journalFile);
+            Wallet wallet = new WalletProtobufSerializer().readWallet(walletProto);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
         } finally {
             stream.close();
         }
@@ -800,6 +1098,8 @@ public class Wallet implements Serializable, BlockChainListener {
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
+        for (Transaction tx : getTransactions(true, true))
+            trackConfidence(tx);
     }
     
     /**
@@ -1125,7 +1425,9 @@ public class Wallet implements Serializable, BlockChainListener {
                 ignoreNextNewBlock.add(txHash);
             }
         }
+        transactionChanged(tx);
 	// Implements revision d64f55589694
+        balanceMayHaveChanged();
         BigInteger newBalance = getBalance();
         log.info("Balance is now: " + anoncoinValueToFriendlyString(getBalance()));
 
@@ -1156,6 +1458,7 @@ public class Wallet implements Serializable, BlockChainListener {
         // Wallet change notification will be sent shortly after the block is finished processing, in notifyNewBestBlock
         onWalletChangedSuppressions--;
 
+        balanceMayHaveChanged();
         checkState(isConsistent());
         queueAutoSave();
     }
@@ -1179,20 +1482,28 @@ public class Wallet implements Serializable, BlockChainListener {
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
+            // The BUILDING transactions work out their depth and work done from the chain tip, so moving it on is
+            // all it takes to bury them all under the new block.
             onWalletChangedSuppressions++;
-            Set<Transaction> transactions = getTransactions(true, false);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
-                }
-            }
+            BigInteger work = block.getHeader().getWork();
+            List<TransactionConfidence> following = chainTip.advance(work);
+            // Transactions that were processed in receive() due to appearing in this block already count it, so take
+            // it back off them, as counting it twice would result in miscounting.
+            List<Transaction> appearedInBlock = new ArrayList<Transaction>(ignoreNextNewBlock.size());
+            for (Sha256Hash txHash : ignoreNextNewBlock) {
+                Transaction tx = getTransaction(txHash);
+                if (tx != null)
+                    appearedInBlock.add(tx);
+            }
+            ignoreNextNewBlock.clear();
+            subtractDepthAndWorkDone(1, work, appearedInBlock);
+            for (Transaction tx : appearedInBlock)
+                transactionChanged(tx);
+            // Only the transactions with confidence listeners that want to know how deep they are get told.
+            for (TransactionConfidence confidence : following)
+                confidence.notifyBlockAdded();
+            // Coinbases mature as they get buried.
+            balanceMayHaveChanged();
             queueAutoSave();
             onWalletChangedSuppressions--;
             invokeOnWalletChanged();
@@ -1386,14 +1697,27 @@ public class Wallet implements Serializable, BlockChainListener {
                 unspent.put(tx.getHash(), tx);
             }
         }
+        // Some of its outputs have been spent or unspent even if it didn't move.
+        transactionChanged(tx);
     }
 
     /**
      * Adds an event listener object. Methods on this object are called when something interesting happens,
-     * like receiving money.
+     * like receiving money. They are run by {@link Threading#USER_THREAD}, so they don't hold up the thread that
+     * made the change to the wallet, and may run after the wallet has changed again.
      */
     public void addEventListener(WalletEventListener listener) {
-        eventListeners.add(listener);
+        addEventListener(listener, Threading.USER_THREAD);
+    }
+
+    /**
+     * Adds an event listener object whose methods are run by the given executor. With {@link Threading#SAME_THREAD}
+     * they're run on the thread that changed the wallet, often a network thread, which waits for them to return.
+     * Confidence changes to a transaction, and wallet changes, that happen while one is waiting to be run are passed
+     * on as that one event.
+     */
+    public void addEventListener(WalletEventListener listener, Executor executor) {
+        eventListeners.add(new WalletListenerRegistration(listener, executor));
     }
 
     /**
@@ -1401,7 +1725,7 @@ public class Wallet implements Serializable, BlockChainListener {
      * false if that listener was never added.
      */
     public boolean removeEventListener(WalletEventListener listener) {
-        return eventListeners.remove(listener);
+        return ListenerRegistration.removeFromList(listener, eventListeners);
     }
 
     /**
@@ -1430,6 +1754,7 @@ public class Wallet implements Serializable, BlockChainListener {
             // This also registers txConfidenceListener so wallet listeners get informed.
             log.info("->pending: {}", tx.getHashAsString());
             addWalletTransaction(Pool.PENDING, tx);
+            balanceMayHaveChanged();
 
             // Event listeners may re-enter so we cannot make assumptions about wallet state after this loop completes.
             try {
@@ -1447,6 +1772,7 @@ public class Wallet implements Serializable, BlockChainListener {
                 throw new RuntimeException(e);
             }
 
+            balanceMayHaveChanged();
             checkState(isConsistent());
             queueAutoSave();
         } finally {
@@ -1522,11 +1848,166 @@ public class Wallet implements Serializable, BlockChainListener {
         lock.lock();
         try {
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+            balanceMayHaveChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the transactions of a wallet that was loaded without them. See
+     * {@link Wallet#loadTransactionsLazily(TransactionLoader, java.util.Map)}.
+     */
+    public interface TransactionLoader {
+        /**
+         * Adds the transactions to the wallet using {@link Wallet#addWalletTransaction(WalletTransaction)}, with
+         * those in the best chain buried under the given number of blocks, and work, that the wallet has seen added
+         * to the chain since they were saved. Called with the wallet locked.
+         */
+        void loadTransactions(Wallet wallet, int blocksAdded, BigInteger workAdded);
+    }
+
+    /**
+     * <p>Has the wallet get its transactions from the given loader the first time they are wanted, rather than now.
+     * This is intended for deserialization code, such as {@link WalletProtobufSerializer}, loading large wallets that
+     * have no transactions yet. Until the transactions are loaded, the wallet knows which pool each of them is in from
+     * the given map, so can say how many there are, and whether it has one, without loading them.</p>
+     *
+     * <p>Anything that looks at the transactions loads them, on whatever thread it's called from, as do new blocks
+     * and transactions that might be relevant. Ask for the balance, for example, to load them straight away.</p>
+     */
+    public void loadTransactionsLazily(TransactionLoader loader, Map<Sha256Hash, Pool> pools) {
+        lock.lock();
+        try {
+            checkState(getTransactions(true, true).isEmpty(), "Wallet already has transactions");
+            for (TransactionPool pool : getPools())
+                pool.unloaded = new HashSet<Sha256Hash>();
+            for (Map.Entry<Sha256Hash, Pool> entry : pools.entrySet()) {
+                Pool pool = entry.getValue();
+                if (pool == Pool.PENDING_INACTIVE) {
+                    ((TransactionPool) pending).unloaded.add(entry.getKey());
+                    ((TransactionPool) inactive).unloaded.add(entry.getKey());
+                } else {
+                    ((TransactionPool) getPoolMap(pool)).unloaded.add(entry.getKey());
+                }
+            }
+            transactionLoaderTip = chainTip.getPosition();
+            transactionLoader = checkNotNull(loader);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the wallet still has transactions to load. See {@link #loadTransactionsLazily}. */
+    public boolean hasTransactionsToLoad() {
+        return transactionLoader != null;
+    }
+
+    // Adds the transactions if the wallet was loaded without them.
+    private void maybeLoadTransactions() {
+        if (transactionLoader == null)
+            return;
+        lock.lock();
+        try {
+            TransactionLoader loader = transactionLoader;
+            if (loader == null)
+                return;
+            // The loader adds to the pools, which must act as ordinary maps while it does.
+            List<TransactionPool> pools = getPools();
+            List<Set<Sha256Hash>> unloaded = new ArrayList<Set<Sha256Hash>>(pools.size());
+            for (TransactionPool pool : pools) {
+                unloaded.add(pool.unloaded);
+                pool.unloaded = null;
+            }
+            transactionLoader = null;
+            // The transactions are as they were saved, so the journal doesn't need them.
+            Set<Sha256Hash> changedBefore = new HashSet<Sha256Hash>(journalChanges);
+            ChainTip.Position tip = chainTip.getPosition();
+            long start = System.currentTimeMillis();
+            boolean loaded = false;
+            try {
+                loader.loadTransactions(this, tip.blocks - transactionLoaderTip.blocks,
+                        tip.work.subtract(transactionLoaderTip.work));
+                loaded = true;
+            } finally {
+                journalChanges.retainAll(changedBefore);
+                if (!loaded) {
+                    // Put the wallet back as it was, so that it doesn't look as if the transactions that did load
+                    // are all it has, and get saved that way.
+                    for (int i = 0; i < pools.size(); i++) {
+                        pools.get(i).transactions.clear();
+                        pools.get(i).unloaded = unloaded.get(i);
+                    }
+                    transactionLoader = loader;
+                }
+            }
+            log.info("Loaded {} wallet transactions in {} msec", getPoolSize(Pool.ALL),
+                    System.currentTimeMillis() - start);
+            if (!isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
         } finally {
             lock.unlock();
         }
     }
 
+    // Loads the transactions if they haven't been yet, so that the wallet is never saved with only some of them, and
+    // throws if they can't be.
+    private void checkTransactionsLoaded() {
+        maybeLoadTransactions();
+        checkState(transactionLoader == null, "The wallet's transactions could not be loaded");
+    }
+
+    private List<TransactionPool> getPools() {
+        return ImmutableList.of((TransactionPool) unspent, (TransactionPool) spent, (TransactionPool) pending,
+                (TransactionPool) inactive, (TransactionPool) dead);
+    }
+
+    private Map<Sha256Hash, Transaction> getPoolMap(Pool pool) {
+        switch (pool) {
+            case UNSPENT: return unspent;
+            case SPENT: return spent;
+            case PENDING: return pending;
+            case INACTIVE: return inactive;
+            case DEAD: return dead;
+            default: throw new IllegalArgumentException("Not a single pool: " + pool);
+        }
+    }
+
+    /**
+     * A pool of transactions by hash, which loads the wallet's transactions the first time it's used if the wallet
+     * was loaded without them. Until then it only knows the hashes of its transactions.
+     */
+    private class TransactionPool extends ForwardingMap<Sha256Hash, Transaction> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final HashMap<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+        private transient volatile Set<Sha256Hash> unloaded;
+
+        @Override
+        protected Map<Sha256Hash, Transaction> delegate() {
+            maybeLoadTransactions();
+            return transactions;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Set<Sha256Hash> unloaded = this.unloaded;
+            return unloaded != null ? unloaded.contains(key) : delegate().containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            Set<Sha256Hash> unloaded = this.unloaded;
+            return unloaded != null ? unloaded.size() : delegate().size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+    }
+
     /**
      * Adds the given transaction to the given pools and registers a confidence change listener on it.
      */
@@ -1555,9 +2036,48 @@ public class Wallet implements Serializable, BlockChainListener {
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
-        // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
-        // registration requests. That makes the code in the wallet simpler.
-        tx.getConfidence().addEventListener(txConfidenceListener);
+        trackConfidence(tx);
+        transactionChanged(tx);
+    }
+
+    /**
+     * Has the confidence of the given transaction follow our chain tip, and relay its changes to our event listeners.
+     */
+    private void trackConfidence(Transaction tx) {
+        // This is safe even if the listener has been added before, as TransactionConfidence only updates the depth of
+        // a listener registered twice. That makes the code in the wallet simpler.
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setChainTip(chainTip);
+        confidence.addEventListener(txConfidenceListener, confidenceNotificationDepth, Threading.SAME_THREAD);
+    }
+
+    /**
+     * Sets how many blocks deep the wallet follows each transaction, telling its event listeners via
+     * {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)} each time it's buried under
+     * another block. Changes in confidence type are always passed on. The default is
+     * {@link #DEFAULT_CONFIDENCE_NOTIFICATION_DEPTH}. Each transaction that isn't yet this deep costs a little work
+     * for each new block, so wallets with many recent transactions should keep it low.
+     */
+    public void setConfidenceNotificationDepth(int depth) {
+        checkArgument(depth > 0, "Depth must be positive: %s", depth);
+        lock.lock();
+        try {
+            confidenceNotificationDepth = depth;
+            for (Transaction tx : getTransactions(true, true))
+                trackConfidence(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks deep the wallet tells its event listeners about transactions getting buried. */
+    public int getConfidenceNotificationDepth() {
+        lock.lock();
+        try {
+            return confidenceNotificationDepth;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -1567,6 +2087,40 @@ public class Wallet implements Serializable, BlockChainListener {
         return getRecentTransactions(0, false);
     }
 
+    /**
+     * Returns the same transactions as {@link #getTransactionsByTime()}, followed in order by those in the archive,
+     * if the wallet has one. Archived transactions are read from disk one at a time as the iterator gets to them.
+     */
+    public Iterator<Transaction> getAllTransactionsByTime() {
+        lock.lock();
+        try {
+            List<Transaction> transactions = getTransactionsByTime();
+            if (archive == null)
+                return transactions.iterator();
+            final Iterator<Transaction> archived = archive.getTransactionsByTime(getLastBlockSeenHeight());
+            Iterator<Transaction> archivedLocked = new AbstractIterator<Transaction>() {
+                @Override
+                protected Transaction computeNext() {
+                    lock.lock();
+                    try {
+                        return archived.hasNext() ? archived.next() : endOfData();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            };
+            List<Iterator<Transaction>> tiers = ImmutableList.of(transactions.iterator(), archivedLocked);
+            return Iterators.mergeSorted(tiers,
+                    Collections.reverseOrder(new Comparator<Transaction>() {
+                        public int compare(Transaction t1, Transaction t2) {
+                            return t1.getUpdateTime().compareTo(t2.getUpdateTime());
+                        }
+                    }));
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included. <p>
@@ -1621,6 +2175,8 @@ public class Wallet implements Serializable, BlockChainListener {
                 return tx;
             else if ((tx = dead.get(hash)) != null)
                 return tx;
+            else if (archive != null)
+                return archive.get(hash, getLastBlockSeenHeight());
             return null;
         } finally {
             lock.unlock();
@@ -1641,6 +2197,9 @@ public class Wallet implements Serializable, BlockChainListener {
                 pending.clear();
                 inactive.clear();
                 dead.clear();
+                outputIndex = null;
+                journalCheckpointNeeded = true;
+                balanceMayHaveChanged();
                 queueAutoSave();
             } else {
                 throw new UnsupportedOperationException();
@@ -1676,6 +2235,15 @@ public class Wallet implements Serializable, BlockChainListener {
         }
     }
 
+    /** Returns the pool the given transaction is saved in, as worked out by {@link #getWalletTransactions()}. */
+    private Pool getPool(Transaction tx) {
+        EnumSet<Pool> pools = getContainingPools(tx);
+        if (pools.contains(Pool.PENDING) && pools.contains(Pool.INACTIVE))
+            return Pool.PENDING_INACTIVE;
+        checkState(!pools.isEmpty(), "Transaction %s is not in the wallet", tx.getHashAsString());
+        return pools.iterator().next();
+    }
+
     int getPoolSize(WalletTransaction.Pool pool) {
         lock.lock();
         try {
@@ -1926,17 +2494,9 @@ public class Wallet implements Serializable, BlockChainListener {
             log.info("Completing send tx with {} outputs totalling {}",
                     req.tx.getOutputs().size(), anoncoinValueToFriendlyString(value));
 
-            // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
-            // with the actual outputs that'll be used to gather the required amount of value. In this way, users
-            // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
-            LinkedList<TransactionOutput> candidates = calculateSpendCandidates(true);
-            // Of the coins we could spend, pick some that we actually will spend.
-            CoinSelection selection = coinSelector.select(value, candidates);
+            // Ask a coin selector to provide us with the actual outputs that'll be used to gather the required amount
+            // of value, out of the coins we could spend. In this way, users can customize coin selection policies.
+            CoinSelection selection = select(coinSelector, value);
             // Can we afford this?
             if (selection.valueGathered.compareTo(value) < 0) {
                 log.warn("Insufficient value in wallet for send, missing " +
@@ -2038,9 +2598,8 @@ public class Wallet implements Serializable, BlockChainListener {
         int added = 0;
         lock.lock();
         try {
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (hasKey(key)) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2050,8 +2609,13 @@ public class Wallet implements Serializable, BlockChainListener {
                     }
                 }
                 keychain.add(key);
+                indexKey(key);
                 added++;
             }
+            if (added > 0) {
+                outputIndex = null;
+                balanceMayHaveChanged();
+            }
             if (autosaveToFile != null) {
                 autoSave();
             }
@@ -2059,10 +2623,14 @@ public class Wallet implements Serializable, BlockChainListener {
             lock.unlock();
         }
 
-        for (ECKey key : keys) {
+        for (final ECKey key : keys) {
             // TODO: Change this interface to be batch-oriented.
-            for (WalletEventListener listener : eventListeners) {
-                listener.onKeyAdded(key);
+            for (final WalletListenerRegistration registration : eventListeners) {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        registration.listener.onKeyAdded(key);
+                    }
+                });
             }
         }
         return added;
@@ -2075,22 +2643,25 @@ public class Wallet implements Serializable, BlockChainListener {
      * @return ECKey object or null if no such key was found.
      */
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
+        if (pubkeyHash == null)
+            return null;
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            checkKeyIndexes();
+            return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
+        if (key == null)
+            return false;
         lock.lock();
         try {
-            return keychain.contains(key);
+            // Keys are equal when their public keys are, so this is the same test as the keychain containing it.
+            return key.equals(findKeyFromPubKey(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2108,17 +2679,119 @@ public class Wallet implements Serializable, BlockChainListener {
      * @return ECKey or null if no such key was found.
      */
     public ECKey findKeyFromPubKey(byte[] pubkey) {
+        if (pubkey == null)
+            return null;
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            checkKeyIndexes();
+            return keysByPubKey.get(ByteBuffer.wrap(pubkey));
         } finally {
             lock.unlock();
         }
     }
 
+    /** Rebuilds the key indexes if the keychain has been replaced or changed other than through {@link #addKeys}. */
+    private void checkKeyIndexes() {
+        checkState(lock.isLocked());
+        // A list assigned to the keychain from outside, or read by Java serialization, doesn't count its changes.
+        if (!(keychain instanceof KeyList))
+            keychain = new KeyList(keychain);
+        if (indexedKeychain == keychain && indexedKeychainChanges == indexedKeychain.getChanges())
+            return;
+        keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        keysByPubKey = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        indexedKeychain = (KeyList) keychain;
+        for (ECKey key : keychain)
+            indexKey(key);
+        outputIndex = null;
+        journalCheckpointNeeded = true;
+        balanceMayHaveChanged();
+    }
+
+    /** Adds a key that has just been added to the end of the keychain to the indexes, which must be up to date. */
+    private void indexKey(ECKey key) {
+        // The first key in the keychain wins, as it did when the keychain was searched.
+        ByteBuffer pubKeyHash = ByteBuffer.wrap(key.getPubKeyHash());
+        if (!keysByPubKeyHash.containsKey(pubKeyHash))
+            keysByPubKeyHash.put(pubKeyHash, key);
+        ByteBuffer pubKey = ByteBuffer.wrap(key.getPubKey());
+        if (!keysByPubKey.containsKey(pubKey))
+            keysByPubKey.put(pubKey, key);
+        indexedKeychainChanges = indexedKeychain.getChanges();
+    }
+
+    /**
+     * The list the keychain is kept in. It counts every change made to it, including the ones ArrayList doesn't count
+     * as structural such as set(), so the key indexes can tell when they are out of date. It's written out by Java
+     * serialization as a plain ArrayList.
+     */
+    private static class KeyList extends ArrayList<ECKey> {
+        private static final long serialVersionUID = 1L;
+
+        KeyList() {
+        }
+
+        KeyList(Collection<ECKey> keys) {
+            super(keys);
+        }
+
+        @Override
+        public ECKey set(int index, ECKey key) {
+            modCount++;
+            return super.set(index, key);
+        }
+
+        @Override
+        public List<ECKey> subList(final int fromIndex, int toIndex) {
+            // ArrayList's own views set elements straight into its array without counting it, so this one goes
+            // through the list's methods instead.
+            checkPositionIndexes(fromIndex, toIndex, size());
+            final int initialSize = toIndex - fromIndex;
+            return new AbstractList<ECKey>() {
+                private int size = initialSize;
+
+                @Override
+                public ECKey get(int index) {
+                    checkElementIndex(index, size);
+                    return KeyList.this.get(fromIndex + index);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public ECKey set(int index, ECKey key) {
+                    checkElementIndex(index, size);
+                    return KeyList.this.set(fromIndex + index, key);
+                }
+
+                @Override
+                public void add(int index, ECKey key) {
+                    checkPositionIndex(index, size);
+                    KeyList.this.add(fromIndex + index, key);
+                    size++;
+                }
+
+                @Override
+                public ECKey remove(int index) {
+                    checkElementIndex(index, size);
+                    size--;
+                    return KeyList.this.remove(fromIndex + index);
+                }
+            };
+        }
+
+        int getChanges() {
+            return modCount;
+        }
+
+        private Object writeReplace() {
+            return new ArrayList<ECKey>(this);
+        }
+    }
+
     /**
      * Returns true if this wallet contains a keypair with the given public key.
      */
@@ -2159,21 +2832,28 @@ public class Wallet implements Serializable, BlockChainListener {
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. The balance is remembered until the
+     * wallet next changes, so asking again before then is cheap and doesn't wait for the wallet lock. Keys added to
+     * the {@link #keychain} directly rather than through {@link #addKeys(java.util.List)} are only counted once
+     * something else about the wallet changes.
      */
     public BigInteger getBalance(BalanceType balanceType) {
+        BigInteger balance = balanceType == BalanceType.AVAILABLE ? availableBalance : estimatedBalance;
+        if (balance != null)
+            return balance;
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                balance = availableBalance = selectBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
                 LinkedList<TransactionOutput> all = calculateSpendCandidates(false);
                 BigInteger value = BigInteger.ZERO;
                 for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                balance = estimatedBalance = value;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
+            return balance;
         } finally {
             lock.unlock();
         }
@@ -2184,17 +2864,76 @@ public class Wallet implements Serializable, BlockChainListener {
      * as many coins as possible and returns the total.
      */
     public BigInteger getBalance(CoinSelector selector) {
+        checkNotNull(selector);
         lock.lock();
         try {
-            checkNotNull(selector);
-            LinkedList<TransactionOutput> candidates = calculateSpendCandidates(true);
-            CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-            return selection.valueGathered;
+            if (selector == coinSelector)
+                return getBalance(BalanceType.AVAILABLE);
+            return selectBalance(selector);
         } finally {
             lock.unlock();
         }
     }
 
+    private BigInteger selectBalance(CoinSelector selector) {
+        return select(selector, NetworkParameters.MAX_MONEY).valueGathered;
+    }
+
+    /**
+     * Has the selector pick outputs worth the target value from those that can be spent: from the output index if it
+     * can use it, or else from a list of all of them.
+     */
+    private CoinSelection select(CoinSelector selector, BigInteger target) {
+        checkState(lock.isLocked());
+        if (selector instanceof IndexedCoinSelector)
+            return ((IndexedCoinSelector) selector).select(target, getOutputIndex());
+        return selector.select(target, calculateSpendCandidates(true));
+    }
+
+    private UnspentOutputIndex getOutputIndex() {
+        checkState(lock.isLocked());
+        if (outputIndex == null) {
+            outputIndex = new UnspentOutputIndex();
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+                indexOutputs(tx);
+        }
+        return outputIndex;
+    }
+
+    /** Called when a transaction has changed pool, or had its outputs or confidence change. */
+    private void transactionChanged(Transaction tx) {
+        checkState(lock.isLocked());
+        indexOutputs(tx);
+        if (journal != null)
+            journalChanges.add(tx.getHash());
+    }
+
+    /** Updates the output index for a transaction that has changed pool, or had its outputs or confidence change. */
+    private void indexOutputs(Transaction tx) {
+        checkState(lock.isLocked());
+        if (outputIndex == null)
+            return;
+        Sha256Hash hash = tx.getHash();
+        Transaction wtx = unspent.get(hash);
+        if (wtx == null)
+            wtx = pending.get(hash);
+        if (wtx == null) {
+            outputIndex.remove(hash);
+            return;
+        }
+        TransactionConfidence confidence = wtx.getConfidence();
+        int height = confidence.getConfidenceType() == ConfidenceType.BUILDING ?
+                confidence.getAppearedAtChainHeight() : UnspentOutputIndex.PENDING_HEIGHT;
+        outputIndex.put(wtx, height, this);
+    }
+
+    /** Forgets the balances, so they are worked out afresh the next time they are asked for. */
+    private void balanceMayHaveChanged() {
+        checkState(lock.isLocked());
+        estimatedBalance = null;
+        availableBalance = null;
+    }
+
     @Override
     public String toString() {
         return toString(false, null);
@@ -2298,6 +3037,10 @@ public class Wallet implements Serializable, BlockChainListener {
             // transactions in the old branch, all transactions in the new branch and find the difference of those sets.
             //
             // receive() has been called on the block that is triggering the re-org before this is called.
+            //
+            // Transactions are buried and unburied all over the wallet, which the journal can't record, so any save
+            // from now on, including by the listeners told about the re-org, has to write the whole wallet.
+            journalCheckpointNeeded = true;
 
             List<Sha256Hash> oldBlockHashes = new ArrayList<Sha256Hash>(oldBlocks.size());
             List<Sha256Hash> newBlockHashes = new ArrayList<Sha256Hash>(newBlocks.size());
@@ -2518,11 +3261,15 @@ public class Wallet implements Serializable, BlockChainListener {
                 reprocessUnincludedTxAfterReorg(pool, tx);
             }
 
+            balanceMayHaveChanged();
             log.info("post-reorg balance is {}", Utils.anoncoinValueToFriendlyString(getBalance()));
             // Inform event listeners that a re-org took place. They should save the wallet at this point.
             invokeOnReorganize();
             onWalletChangedSuppressions--;
             invokeOnWalletChanged();
+            outputIndex = null;
+            journalCheckpointNeeded = true;
+            balanceMayHaveChanged();
             checkState(isConsistent());
         } finally {
             lock.unlock();
@@ -2709,7 +3456,7 @@ public class Wallet implements Serializable, BlockChainListener {
             checkNotNull(keyCrypter);
             checkState(getEncryptionType() == EncryptionType.UNENCRYPTED, "Wallet is already encrypted");
             // Create a new arraylist that will contain the encrypted keys
-            ArrayList<ECKey> encryptedKeyChain = new ArrayList<ECKey>();
+            ArrayList<ECKey> encryptedKeyChain = new KeyList();
             for (ECKey key : keychain) {
                 if (key.isEncrypted()) {
                     // Key is already encrypted - add as is.
@@ -2741,9 +3488,11 @@ public class Wallet implements Serializable, BlockChainListener {
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            checkKeyIndexes();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
+            journalCheckpointNeeded = true;
 
             if (autosaveToFile != null) {
                 autoSave();
@@ -2769,7 +3518,7 @@ public class Wallet implements Serializable, BlockChainListener {
             checkNotNull(keyCrypter);
 
             // Create a new arraylist that will contain the decrypted keys
-            ArrayList<ECKey> decryptedKeyChain = new ArrayList<ECKey>();
+            ArrayList<ECKey> decryptedKeyChain = new KeyList();
 
             for (ECKey key : keychain) {
                 // Decrypt the key.
@@ -2784,9 +3533,11 @@ public class Wallet implements Serializable, BlockChainListener {
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            checkKeyIndexes();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
+            journalCheckpointNeeded = true;
 
             if (autosaveToFile != null) {
                 autoSave();
@@ -3039,6 +3790,7 @@ public class Wallet implements Serializable, BlockChainListener {
         lock.lock();
         try {
             this.coinSelector = coinSelector;
+            balanceMayHaveChanged();
         } finally {
             lock.unlock();
         }
@@ -3052,8 +3804,8 @@ public class Wallet implements Serializable, BlockChainListener {
         checkState(lock.isLocked());
         lock.unlock();
         try {
-            for (WalletEventListener listener : eventListeners) {
-                listener.onTransactionConfidenceChanged(this, tx);
+            for (WalletListenerRegistration registration : eventListeners) {
+                registration.onTransactionConfidenceChanged(this, tx);
             }
         } finally {
             lock.lock();
@@ -3069,32 +3821,40 @@ public class Wallet implements Serializable, BlockChainListener {
         if (onWalletChangedSuppressions > 0) return;
         lock.unlock();
         try {
-            for (WalletEventListener listener : eventListeners) {
-                listener.onWalletChanged(this);
+            for (WalletListenerRegistration registration : eventListeners) {
+                registration.onWalletChanged(this);
             }
         } finally {
             lock.lock();
         }
     }
 
-    private void invokeOnCoinsReceived(Transaction tx, BigInteger balance, BigInteger newBalance) {
+    private void invokeOnCoinsReceived(final Transaction tx, final BigInteger balance, final BigInteger newBalance) {
         checkState(lock.isLocked());
         lock.unlock();
         try {
-            for (WalletEventListener listener : eventListeners) {
-                listener.onCoinsReceived(Wallet.this, tx, balance, newBalance);
+            for (final WalletListenerRegistration registration : eventListeners) {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        registration.listener.onCoinsReceived(Wallet.this, tx, balance, newBalance);
+                    }
+                });
             }
         } finally {
             lock.lock();
         }
     }
 
-    private void invokeOnCoinsSent(Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+    private void invokeOnCoinsSent(final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance) {
         checkState(lock.isLocked());
         lock.unlock();
         try {
-            for (WalletEventListener listener : eventListeners) {
-                listener.onCoinsSent(Wallet.this, tx, prevBalance, newBalance);
+            for (final WalletListenerRegistration registration : eventListeners) {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        registration.listener.onCoinsSent(Wallet.this, tx, prevBalance, newBalance);
+                    }
+                });
             }
         } finally {
             lock.lock();
@@ -3105,14 +3865,144 @@ public class Wallet implements Serializable, BlockChainListener {
         checkState(lock.isLocked());
         lock.unlock();
         try {
-            for (WalletEventListener listener : eventListeners) {
-                listener.onReorganize(Wallet.this);
+            for (final WalletListenerRegistration registration : eventListeners) {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        registration.listener.onReorganize(Wallet.this);
+                    }
+                });
             }
         } finally {
             lock.lock();
         }
     }
-	
+
+    /**
+     * A wallet event listener and its executor, which remembers the confidence and wallet change events it has queued
+     * and not yet run. Another change that comes along before then doesn't need an event of its own, as the listener
+     * will see it when the queued one runs. The queued event is forgotten just before it runs, so that changes made
+     * while the listener is running are always passed on.
+     */
+    private static class WalletListenerRegistration extends ListenerRegistration<WalletEventListener> {
+        private final Set<Sha256Hash> queuedConfidenceChanges = Collections.synchronizedSet(new HashSet<Sha256Hash>());
+        private final AtomicBoolean queuedWalletChange = new AtomicBoolean();
+
+        WalletListenerRegistration(WalletEventListener listener, Executor executor) {
+            super(listener, executor);
+        }
+
+        void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+            if (!queuedConfidenceChanges.add(tx.getHash()))
+                return;
+            executor.execute(new Runnable() {
+                public void run() {
+                    queuedConfidenceChanges.remove(tx.getHash());
+                    listener.onTransactionConfidenceChanged(wallet, tx);
+                }
+            });
+        }
+
+        void onWalletChanged(final Wallet wallet) {
+            if (!queuedWalletChange.compareAndSet(false, true))
+                return;
+            executor.execute(new Runnable() {
+                public void run() {
+                    queuedWalletChange.set(false);
+                    listener.onWalletChanged(wallet);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets where spent transactions go when they're archived by {@link #archiveSpentTransactions(int)}, or evicted by
+     * {@link #trim(int)}, which then keeps them rather than dropping them. Archived transactions are still returned by
+     * {@link #getTransaction(Sha256Hash)} and {@link #getAllTransactionsByTime()}, read back from the archive. The
+     * archive isn't saved with the wallet, so it must be set again each time the wallet is loaded.
+     */
+    public void setTransactionArchive(TransactionArchive archive) {
+        lock.lock();
+        try {
+            this.archive = archive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the archive set by {@link #setTransactionArchive(TransactionArchive)}, or null if there isn't one. */
+    public TransactionArchive getTransactionArchive() {
+        lock.lock();
+        try {
+            return archive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the spent transactions that are at least the given number of blocks deep, and whose outputs were spent by
+     * transactions at least as deep, out of memory and into the archive. Returns how many were moved. Triggers auto
+     * saving.
+     *
+     * @throws IllegalStateException if the wallet has no archive
+     * @throws IOException if the transactions could not be written to the archive, in which case they stay in the
+     * wallet
+     */
+    public int archiveSpentTransactions(int minDepth) throws IOException {
+        lock.lock();
+        try {
+            checkState(archive != null, "Wallet has no transaction archive");
+            List<Transaction> candidates = new ArrayList<Transaction>();
+            for (Transaction tx : spent.values()) {
+                if (isBuried(tx, minDepth) && spendersAreBuried(tx, minDepth))
+                    candidates.add(tx);
+            }
+            if (candidates.isEmpty())
+                return 0;
+            moveToArchive(candidates);
+            journalCheckpointNeeded = true;
+            queueAutoSave();
+            log.info("Archived {} spent transactions, {} are now in the archive", candidates.size(), archive.size());
+            return candidates.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isBuried(Transaction tx, int minDepth) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING && confidence.getDepthInBlocks() >= minDepth;
+    }
+
+    private static boolean spendersAreBuried(Transaction tx, int minDepth) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null && !isBuried(spentBy.getParentTransaction(), minDepth))
+                return false;
+        }
+        return true;
+    }
+
+    // Writes the given spent transactions to the archive, and once they're safely there lets go of them.
+    private void moveToArchive(List<Transaction> transactions) throws IOException {
+        checkState(lock.isLocked());
+        int height = getLastBlockSeenHeight();
+        for (Transaction tx : transactions)
+            archive.add(tx, height);
+        archive.force();
+        for (Transaction tx : transactions) {
+            spent.remove(tx.getHash());
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.removeEventListener(txConfidenceListener);
+            confidence.setChainTip(null);
+            // Let the transactions that spent it forget it too, as they would if the wallet were saved and loaded.
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spentBy = output.getSpentBy();
+                if (spentBy != null)
+                    spentBy.disconnect();
+            }
+        }
+    }
 
     /**
      * Trims the wallet to a reasonable size, currently by evicting spent transactions.
@@ -3122,6 +4012,9 @@ public class Wallet implements Serializable, BlockChainListener {
      *
      * As a general rule of thumb one transaction takes about 2 kB of heap memory.
      *
+     * If the wallet has an archive, see {@link #setTransactionArchive(TransactionArchive)}, the evicted transactions
+     * are moved to it rather than dropped.
+     *
      * @param minTransactionsToKeep
      *            minumum number of transactions to keep in wallet
      */
@@ -3168,8 +4061,18 @@ public class Wallet implements Serializable, BlockChainListener {
             }
     
             // Evict transactions from spent pool. Keep pending and dead for now.
-            for (final Transaction tx : candidates)
-                spent.remove(tx.getHash());
+            if (archive != null) {
+                try {
+                    moveToArchive(candidates);
+                } catch (IOException e) {
+                    log.error("Could not archive spent transactions, keeping them", e);
+                    return;
+                }
+            } else {
+                for (final Transaction tx : candidates)
+                    spent.remove(tx.getHash());
+            }
+            journalCheckpointNeeded = true;
     
             queueAutoSave();
     
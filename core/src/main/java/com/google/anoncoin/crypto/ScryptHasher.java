@@ -0,0 +1,306 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.crypto;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates the scrypt proof of work hash of a block header, that is scrypt(N=1024, r=1, p=1) with the 80 byte
+ * header used as both the password and the salt, producing 32 bytes.</p>
+ *
+ * <p>A general purpose scrypt implementation allocates the 128 KB scratchpad and several smaller buffers on every
+ * call, which adds up to a lot of garbage during chain download. Because the parameters and input size never change
+ * for proof of work, this class keeps all its working memory in one object per thread and reuses it, so
+ * {@link #hashHeader(byte[], byte[])} does not allocate at all once a thread has warmed up. The PBKDF2-HMAC-SHA256
+ * steps are specialised for the fixed input length, so the HMAC key schedule and the header block are only
+ * hashed once per call.</p>
+ *
+ * <p>Instances are not thread safe. Use the static methods, which pick the instance belonging to the calling
+ * thread.</p>
+ */
+public final class ScryptHasher {
+    /** The size of a block header in bytes, which is the only input size this class handles. */
+    public static final int HEADER_SIZE = 80;
+    /** The size of the resulting hash in bytes. */
+    public static final int HASH_SIZE = 32;
+
+    private static final int N = 1024;
+
+    private static final int[] SHA256_IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] SHA256_K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final ThreadLocal<ScryptHasher> threadHasher = new ThreadLocal<ScryptHasher>() {
+        @Override
+        protected ScryptHasher initialValue() {
+            return new ScryptHasher();
+        }
+    };
+
+    // The header as big endian words, ready to be fed to SHA-256.
+    private final int[] headerWords = new int[HEADER_SIZE / 4];
+    // SHA-256 states after absorbing the HMAC inner and outer pads, and the inner pad followed by the first 64
+    // bytes of the header. These are shared by all the HMAC invocations for one header.
+    private final int[] innerPadState = new int[8];
+    private final int[] outerPadState = new int[8];
+    private final int[] innerHeaderState = new int[8];
+    private final int[] state = new int[8];
+    private final int[] block = new int[16];
+    private final int[] schedule = new int[64];
+    // The scrypt working block (B in the scrypt paper) as little endian words, and the scratchpad (V).
+    private final int[] x = new int[32];
+    private final int[] v = new int[32 * N];
+
+    /**
+     * Creates a hasher with its own working memory. Most callers should use the static methods instead.
+     */
+    public ScryptHasher() {
+    }
+
+    /**
+     * Calculates the scrypt hash of an 80 byte block header into out, using the working memory of the calling
+     * thread. The result is in the same byte order as the reference scrypt implementation.
+     */
+    public static void hashHeader(byte[] header, byte[] out) {
+        threadHasher.get().hash(header, 0, out, 0);
+    }
+
+    /**
+     * Calculates the scrypt hash of the 80 byte block header starting at headerOffset into the first 32 bytes of
+     * out, using the working memory of the calling thread. This lets a header be hashed inside a larger message
+     * without copying it out first.
+     */
+    public static void hashHeader(byte[] header, int headerOffset, byte[] out) {
+        threadHasher.get().hash(header, headerOffset, out, 0);
+    }
+
+    /**
+     * Calculates the scrypt hash of an 80 byte block header and returns it in a new array.
+     */
+    public static byte[] hashHeader(byte[] header) {
+        byte[] out = new byte[HASH_SIZE];
+        hashHeader(header, out);
+        return out;
+    }
+
+    /**
+     * Calculates the scrypt hash of the 80 bytes at headerOffset, writing 32 bytes to out at outOffset.
+     */
+    public void hash(byte[] header, int headerOffset, byte[] out, int outOffset) {
+        checkArgument(headerOffset >= 0 && header.length - headerOffset >= HEADER_SIZE, "Header too short");
+        checkArgument(outOffset >= 0 && out.length - outOffset >= HASH_SIZE, "Output buffer too short");
+        for (int i = 0; i < headerWords.length; i++)
+            headerWords[i] = readIntBE(header, headerOffset + i * 4);
+
+        prepareHmacKey();
+
+        // B = PBKDF2-HMAC-SHA256(header, header, 1, 128). All four blocks share the state after the inner pad and
+        // the first 64 bytes of the header, so only the last block of the inner hash differs between them.
+        System.arraycopy(innerPadState, 0, innerHeaderState, 0, 8);
+        compress(innerHeaderState, headerWords, 0);
+        for (int i = 0; i < 4; i++) {
+            System.arraycopy(innerHeaderState, 0, state, 0, 8);
+            block[0] = headerWords[16];
+            block[1] = headerWords[17];
+            block[2] = headerWords[18];
+            block[3] = headerWords[19];
+            block[4] = i + 1;
+            block[5] = 0x80000000;
+            for (int j = 6; j < 15; j++)
+                block[j] = 0;
+            block[15] = (64 + HEADER_SIZE + 4) * 8;
+            compress(state, block, 0);
+            finishHmac();
+            for (int j = 0; j < 8; j++)
+                x[i * 8 + j] = Integer.reverseBytes(state[j]);
+        }
+
+        romix();
+
+        // Result = PBKDF2-HMAC-SHA256(header, B, 1, 32), a single block.
+        System.arraycopy(innerPadState, 0, state, 0, 8);
+        for (int j = 0; j < 16; j++)
+            block[j] = Integer.reverseBytes(x[j]);
+        compress(state, block, 0);
+        for (int j = 0; j < 16; j++)
+            block[j] = Integer.reverseBytes(x[16 + j]);
+        compress(state, block, 0);
+        block[0] = 1;
+        block[1] = 0x80000000;
+        for (int j = 2; j < 15; j++)
+            block[j] = 0;
+        block[15] = (64 + 128 + 4) * 8;
+        compress(state, block, 0);
+        finishHmac();
+        for (int j = 0; j < 8; j++)
+            writeIntBE(state[j], out, outOffset + j * 4);
+    }
+
+    // The HMAC key is the header, which is longer than the SHA-256 block size, so the key actually used is the hash
+    // of the header padded with zeros.
+    private void prepareHmacKey() {
+        System.arraycopy(SHA256_IV, 0, state, 0, 8);
+        compress(state, headerWords, 0);
+        block[0] = headerWords[16];
+        block[1] = headerWords[17];
+        block[2] = headerWords[18];
+        block[3] = headerWords[19];
+        block[4] = 0x80000000;
+        for (int j = 5; j < 15; j++)
+            block[j] = 0;
+        block[15] = HEADER_SIZE * 8;
+        compress(state, block, 0);
+
+        for (int j = 0; j < 8; j++)
+            block[j] = state[j] ^ 0x36363636;
+        for (int j = 8; j < 16; j++)
+            block[j] = 0x36363636;
+        System.arraycopy(SHA256_IV, 0, innerPadState, 0, 8);
+        compress(innerPadState, block, 0);
+
+        for (int j = 0; j < 8; j++)
+            block[j] = state[j] ^ 0x5c5c5c5c;
+        for (int j = 8; j < 16; j++)
+            block[j] = 0x5c5c5c5c;
+        System.arraycopy(SHA256_IV, 0, outerPadState, 0, 8);
+        compress(outerPadState, block, 0);
+    }
+
+    // Takes the inner hash held in state and replaces it with the outer hash, completing an HMAC.
+    private void finishHmac() {
+        System.arraycopy(state, 0, block, 0, 8);
+        block[8] = 0x80000000;
+        for (int j = 9; j < 15; j++)
+            block[j] = 0;
+        block[15] = (64 + 32) * 8;
+        System.arraycopy(outerPadState, 0, state, 0, 8);
+        compress(state, block, 0);
+    }
+
+    private void romix() {
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(x, 0, v, i * 32, 32);
+            blockMix();
+        }
+        for (int i = 0; i < N; i++) {
+            int j = (x[16] & (N - 1)) * 32;
+            for (int k = 0; k < 32; k++)
+                x[k] ^= v[j + k];
+            blockMix();
+        }
+    }
+
+    // BlockMix with r = 1: the first half is mixed with the second, then the second with the new first.
+    private void blockMix() {
+        salsa20_8Xor(x, 0, 16);
+        salsa20_8Xor(x, 16, 0);
+    }
+
+    // Replaces the 16 words at b[off] with Salsa20/8(b[off..] ^ b[src..]).
+    private static void salsa20_8Xor(int[] b, int off, int src) {
+        int j00 = b[off] ^ b[src], j01 = b[off + 1] ^ b[src + 1];
+        int j02 = b[off + 2] ^ b[src + 2], j03 = b[off + 3] ^ b[src + 3];
+        int j04 = b[off + 4] ^ b[src + 4], j05 = b[off + 5] ^ b[src + 5];
+        int j06 = b[off + 6] ^ b[src + 6], j07 = b[off + 7] ^ b[src + 7];
+        int j08 = b[off + 8] ^ b[src + 8], j09 = b[off + 9] ^ b[src + 9];
+        int j10 = b[off + 10] ^ b[src + 10], j11 = b[off + 11] ^ b[src + 11];
+        int j12 = b[off + 12] ^ b[src + 12], j13 = b[off + 13] ^ b[src + 13];
+        int j14 = b[off + 14] ^ b[src + 14], j15 = b[off + 15] ^ b[src + 15];
+        int x00 = j00, x01 = j01, x02 = j02, x03 = j03, x04 = j04, x05 = j05, x06 = j06, x07 = j07;
+        int x08 = j08, x09 = j09, x10 = j10, x11 = j11, x12 = j12, x13 = j13, x14 = j14, x15 = j15;
+        for (int i = 0; i < 8; i += 2) {
+            // Columns.
+            x04 ^= Integer.rotateLeft(x00 + x12, 7);  x08 ^= Integer.rotateLeft(x04 + x00, 9);
+            x12 ^= Integer.rotateLeft(x08 + x04, 13); x00 ^= Integer.rotateLeft(x12 + x08, 18);
+            x09 ^= Integer.rotateLeft(x05 + x01, 7);  x13 ^= Integer.rotateLeft(x09 + x05, 9);
+            x01 ^= Integer.rotateLeft(x13 + x09, 13); x05 ^= Integer.rotateLeft(x01 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x06, 7);  x02 ^= Integer.rotateLeft(x14 + x10, 9);
+            x06 ^= Integer.rotateLeft(x02 + x14, 13); x10 ^= Integer.rotateLeft(x06 + x02, 18);
+            x03 ^= Integer.rotateLeft(x15 + x11, 7);  x07 ^= Integer.rotateLeft(x03 + x15, 9);
+            x11 ^= Integer.rotateLeft(x07 + x03, 13); x15 ^= Integer.rotateLeft(x11 + x07, 18);
+            // Rows.
+            x01 ^= Integer.rotateLeft(x00 + x03, 7);  x02 ^= Integer.rotateLeft(x01 + x00, 9);
+            x03 ^= Integer.rotateLeft(x02 + x01, 13); x00 ^= Integer.rotateLeft(x03 + x02, 18);
+            x06 ^= Integer.rotateLeft(x05 + x04, 7);  x07 ^= Integer.rotateLeft(x06 + x05, 9);
+            x04 ^= Integer.rotateLeft(x07 + x06, 13); x05 ^= Integer.rotateLeft(x04 + x07, 18);
+            x11 ^= Integer.rotateLeft(x10 + x09, 7);  x08 ^= Integer.rotateLeft(x11 + x10, 9);
+            x09 ^= Integer.rotateLeft(x08 + x11, 13); x10 ^= Integer.rotateLeft(x09 + x08, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);  x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[off] = j00 + x00; b[off + 1] = j01 + x01; b[off + 2] = j02 + x02; b[off + 3] = j03 + x03;
+        b[off + 4] = j04 + x04; b[off + 5] = j05 + x05; b[off + 6] = j06 + x06; b[off + 7] = j07 + x07;
+        b[off + 8] = j08 + x08; b[off + 9] = j09 + x09; b[off + 10] = j10 + x10; b[off + 11] = j11 + x11;
+        b[off + 12] = j12 + x12; b[off + 13] = j13 + x13; b[off + 14] = j14 + x14; b[off + 15] = j15 + x15;
+    }
+
+    // One SHA-256 compression of the 16 words at in[off] into h.
+    private void compress(int[] h, int[] in, int off) {
+        int[] w = schedule;
+        System.arraycopy(in, off, w, 0, 16);
+        for (int t = 16; t < 64; t++) {
+            int w15 = w[t - 15], w2 = w[t - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = hh + s1 + ch + SHA256_K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        h[0] += a; h[1] += b; h[2] += c; h[3] += d;
+        h[4] += e; h[5] += f; h[6] += g; h[7] += hh;
+    }
+
+    private static int readIntBE(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) |
+                ((bytes[offset + 1] & 0xFF) << 16) |
+                ((bytes[offset + 2] & 0xFF) << 8) |
+                (bytes[offset + 3] & 0xFF);
+    }
+
+    private static void writeIntBE(int val, byte[] out, int offset) {
+        out[offset] = (byte) (val >>> 24);
+        out[offset + 1] = (byte) (val >>> 16);
+        out[offset + 2] = (byte) (val >>> 8);
+        out[offset + 3] = (byte) val;
+    }
+}
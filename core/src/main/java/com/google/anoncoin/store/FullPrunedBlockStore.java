@@ -21,6 +21,9 @@ import com.google.anoncoin.core.StoredBlock;
 import com.google.anoncoin.core.StoredTransactionOutput;
 import com.google.anoncoin.core.StoredUndoableBlock;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
  * 
@@ -77,6 +80,14 @@ public interface FullPrunedBlockStore extends BlockStore {
      * Gets a {@link StoredTransactionOutput} with the given hash and index, or null if none is found
      */
     StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * Gets the {@link StoredTransactionOutput}s for all of the given outpoints at once. Outpoints which have no
+     * unspent output are left out of the returned map. The result is the same as calling
+     * {@link #getTransactionOutput(Sha256Hash, long)} for each outpoint, but stores can do it in one pass.
+     */
+    Map<StoredTransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<StoredTransactionOutPoint> outPoints) throws BlockStoreException;
     
     /**
      * Adds a {@link StoredTransactionOutput} to the list of unspent TransactionOutputs
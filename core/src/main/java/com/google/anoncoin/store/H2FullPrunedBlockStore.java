@@ -26,8 +26,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -46,11 +47,28 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private Sha256Hash verifiedChainHeadHash;
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
-    private ThreadLocal<Connection> conn;
-    private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
 
+    // Connections not in use by any thread, and every connection open, which is what counts towards maxConnections.
+    private final LinkedList<PooledConnection> idleConnections = new LinkedList<PooledConnection>();
+    private final List<PooledConnection> allConnections = new LinkedList<PooledConnection>();
+    // The connection a thread holds on to between beginDatabaseBatchWrite and the commit or abort.
+    private final ThreadLocal<PooledConnection> batchConnection = new ThreadLocal<PooledConnection>();
+    // The most connections open at once. Threads wanting one beyond that wait for another thread to release theirs.
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    // Connections being made outside the lock, which count towards maxConnections but aren't in allConnections yet.
+    private int connectionsBeingMade;
+    // Set by close(). Connections in use at the time are closed as they are released, and no new ones are handed out.
+    private boolean closed;
+
+    /** The number of database connections the store opens at most, unless changed with setMaxConnections. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    // The most transactions whose outputs are looked up by a single query in getTransactionOutputs. Shorter lists
+    // are padded to a power of two, so only a few different statements ever get prepared.
+    private static final int MAX_HASHES_PER_QUERY = 512;
+
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
         + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
@@ -89,6 +107,59 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + "CONSTRAINT openOutputs_fk FOREIGN KEY (id) REFERENCES openOutputsIndex(id)"
         + ")";
 
+    static final String SELECT_OPEN_OUTPUT = "SELECT openOutputsIndex.height, openOutputs.value, openOutputs.scriptBytes "
+        + "FROM openOutputsIndex NATURAL JOIN openOutputs "
+        + "WHERE openOutputsIndex.hash = ? AND openOutputs.index = ?";
+    static final String SELECT_OPEN_OUTPUT_INDEXES = "SELECT openOutputs.index "
+        + "FROM openOutputsIndex NATURAL JOIN openOutputs "
+        + "WHERE openOutputsIndex.hash = ?";
+    static final String MERGE_OPEN_OUTPUT_INDEX = "MERGE INTO openOutputsIndex(hash, height) KEY(hash) VALUES(?, ?)";
+    static final String MERGE_OPEN_OUTPUT = "MERGE INTO openOutputs(id, index, value, scriptBytes) KEY(id, index) "
+        + "VALUES((SELECT id FROM openOutputsIndex WHERE hash = ?), ?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs "
+        + "WHERE id = (SELECT id FROM openOutputsIndex WHERE hash = ?) AND index = ?";
+    static final String DELETE_UNUSED_OPEN_OUTPUT_INDEX = "DELETE FROM openOutputsIndex "
+        + "WHERE hash = ? AND NOT EXISTS (SELECT * FROM openOutputs WHERE openOutputs.id = openOutputsIndex.id)";
+
+    /**
+     * A database connection, the statements prepared on it so far, and the unspent output changes of the batch
+     * being written on it.
+     */
+    private static class PooledConnection {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        boolean inBatch;
+        // Output changes made in the current batch which have not been sent to the database yet. A null value means
+        // the output was removed. They are all sent at once, as JDBC batches, when the batch is committed.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> pendingOutputs =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Outputs read from the database during the current batch, which saves reading them again to check they
+        // exist when they are removed.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> readOutputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /** Returns a statement for the given SQL, preparing it only the first time it is asked for. */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement s = statements.get(sql);
+            if (s == null) {
+                s = connection.prepareStatement(sql);
+                statements.put(sql, s);
+            }
+            return s;
+        }
+
+        void close() throws SQLException {
+            for (PreparedStatement s : statements.values())
+                s.close();
+            statements.clear();
+            connection.close();
+        }
+    }
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -100,9 +171,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.params = params;
         this.fullStoreDepth = fullStoreDepth;
         connectionURL = "jdbc:h2:" + dbName + ";create=true";
-        
-        conn = new ThreadLocal<Connection>();
-        allConnections = new LinkedList<Connection>();
 
         try {
             Class.forName(driver);
@@ -111,15 +179,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             log.error("check CLASSPATH for H2 jar ", e);
         }
         
-        maybeConnect();
-        
+        PooledConnection c = acquireConnection();
         try {
             // Create tables if needed
-            if (!tableExists("settings"))
-                createTables();
-            initFromDatabase();
+            if (!tableExists(c, "settings"))
+                createTables(c);
+            initFromDatabase(c);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection(c);
         }
     }
     
@@ -136,58 +205,166 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public H2FullPrunedBlockStore(NetworkParameters params, String dbName, int fullStoreDepth, int cacheSize) throws BlockStoreException {
         this(params, dbName, fullStoreDepth);
         
+        PooledConnection c = acquireConnection();
         try {
-            Statement s = conn.get().createStatement();
+            Statement s = c.connection.createStatement();
             s.executeUpdate("SET CACHE_SIZE " + cacheSize);
             s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection(c);
         }
     }
-    
-    private synchronized void maybeConnect() throws BlockStoreException {
+
+    /**
+     * Sets the most database connections the store will have open at once. A thread that needs a connection when
+     * that many are in use waits until another thread is done with one. Lowering the limit closes connections as
+     * they are released, until there are no more than the new limit.
+     */
+    public void setMaxConnections(int maxConnections) {
+        checkArgument(maxConnections > 0, "maxConnections must be positive");
+        synchronized (idleConnections) {
+            this.maxConnections = maxConnections;
+            // Threads waiting for a connection may now be allowed to make one.
+            idleConnections.notifyAll();
+        }
+    }
+
+    /** Returns the most database connections the store will have open at once. */
+    public int getMaxConnections() {
+        synchronized (idleConnections) {
+            return maxConnections;
+        }
+    }
+
+    /**
+     * Returns the connection this thread should use: the one it is writing a batch on if there is one, otherwise an
+     * idle connection from the pool, or a new one if none are idle and fewer than maxConnections are open. If the
+     * pool is full, waits for another thread to release a connection. Must be handed back with releaseConnection.
+     */
+    private PooledConnection acquireConnection() throws BlockStoreException {
+        PooledConnection c = batchConnection.get();
+        if (c != null)
+            return c;
+        synchronized (idleConnections) {
+            while (true) {
+                if (closed)
+                    throw new BlockStoreException("The block store has been closed");
+                if (!idleConnections.isEmpty() || allConnections.size() + connectionsBeingMade < maxConnections)
+                    break;
+                try {
+                    idleConnections.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BlockStoreException(e);
+                }
+            }
+            c = idleConnections.poll();
+            if (c != null)
+                return c;
+            // Count the connection before it is made, so other threads can't make one past the limit meanwhile.
+            connectionsBeingMade++;
+        }
         try {
-            if (conn.get() != null)
-                return;
-            
-            conn.set(DriverManager.getConnection(connectionURL));
-            allConnections.add(conn.get());
-            log.info("Made a new connection to database " + connectionURL);
+            c = new PooledConnection(DriverManager.getConnection(connectionURL));
         } catch (SQLException ex) {
+            synchronized (idleConnections) {
+                connectionsBeingMade--;
+                idleConnections.notify();
+            }
             throw new BlockStoreException(ex);
         }
+        boolean wasClosed;
+        synchronized (idleConnections) {
+            connectionsBeingMade--;
+            wasClosed = closed;
+            if (!wasClosed)
+                allConnections.add(c);
+        }
+        if (wasClosed) {
+            closeConnection(c);
+            throw new BlockStoreException("The block store has been closed");
+        }
+        log.info("Made a new connection to database " + connectionURL);
+        return c;
     }
-    
-    public synchronized void close() {
-        for (Connection conn : allConnections) {
-            try {
-                conn.rollback();
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
+
+    /**
+     * Puts a connection back in the pool, unless this thread is writing a batch on it, and wakes a thread waiting for
+     * one. If the pool has more connections than maxConnections allows, or the store has been closed, the connection
+     * is closed instead.
+     */
+    private void releaseConnection(PooledConnection c) {
+        if (c.inBatch)
+            return;
+        synchronized (idleConnections) {
+            if (!closed && allConnections.size() + connectionsBeingMade <= maxConnections) {
+                idleConnections.add(c);
+                idleConnections.notify();
+                return;
             }
         }
-        allConnections.clear();
+        discardConnection(c);
+    }
+
+    /** Takes a connection out of the pool for good and closes it, making room for a new one. */
+    private void discardConnection(PooledConnection c) {
+        synchronized (idleConnections) {
+            allConnections.remove(c);
+            idleConnections.notify();
+        }
+        closeConnection(c);
+    }
+
+    private static void closeConnection(PooledConnection c) {
+        try {
+            c.connection.rollback();
+            c.close();
+        } catch (SQLException ex) {
+            log.warn("Failed to close a database connection", ex);
+        }
+    }
+
+    /**
+     * Closes the connections that are idle. Connections other threads are using are closed when they are released,
+     * so their work isn't cut off part way through. No connections are handed out once this has been called.
+     */
+    public void close() {
+        List<PooledConnection> idle;
+        synchronized (idleConnections) {
+            closed = true;
+            idle = new ArrayList<PooledConnection>(idleConnections);
+            allConnections.removeAll(idle);
+            idleConnections.clear();
+            // Threads waiting for a connection will now give up.
+            idleConnections.notifyAll();
+        }
+        for (PooledConnection c : idle)
+            closeConnection(c);
     }
 
     public void resetStore() throws BlockStoreException {
-        maybeConnect();
+        PooledConnection c = acquireConnection();
         try {
-            Statement s = conn.get().createStatement();
+            Statement s = c.connection.createStatement();
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE headers");
             s.executeUpdate("DROP TABLE undoableBlocks");
             s.executeUpdate("DROP TABLE openOutputs");
             s.executeUpdate("DROP TABLE openOutputsIndex");
             s.close();
-            createTables();
-            initFromDatabase();
+            createTables(c);
+            initFromDatabase(c);
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            releaseConnection(c);
         }
     }
 
-    private void createTables() throws SQLException, BlockStoreException {
-        Statement s = conn.get().createStatement();
+    private void createTables(PooledConnection c) throws SQLException, BlockStoreException {
+        Statement s = c.connection.createStatement();
         log.debug("H2FullPrunedBlockStore : CREATE headers table");
         s.executeUpdate(CREATE_HEADERS_TABLE);
 
@@ -209,18 +386,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
         s.close();
-        createNewStore(params);
+        createNewStore(c, params);
     }
 
-    private void initFromDatabase() throws SQLException, BlockStoreException {
-        Statement s = conn.get().createStatement();
+    private void initFromDatabase(PooledConnection c) throws SQLException, BlockStoreException {
+        Statement s = c.connection.createStatement();
         ResultSet rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
         if (!rs.next()) {
             throw new BlockStoreException("corrupt H2 block store - no chain head pointer");
         }
         Sha256Hash hash = new Sha256Hash(rs.getBytes(1));
         rs.close();
-        this.chainHeadBlock = get(hash);
+        this.chainHeadBlock = get(c, hash, false);
         this.chainHeadHash = hash;
         if (this.chainHeadBlock == null)
         {
@@ -234,7 +411,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         hash = new Sha256Hash(rs.getBytes(1));
         rs.close();
         s.close();
-        this.verifiedChainHeadBlock = get(hash);
+        this.verifiedChainHeadBlock = get(c, hash, false);
         this.verifiedChainHeadHash = hash;
         if (this.verifiedChainHeadBlock == null)
         {
@@ -242,7 +419,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
-    private void createNewStore(NetworkParameters params) throws BlockStoreException {
+    private void createNewStore(PooledConnection c, NetworkParameters params) throws SQLException, BlockStoreException {
         try {
             // Set up the genesis block. When we start out fresh, it is by
             // definition the top of the chain.
@@ -251,16 +428,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // its database - the genesis transaction isn't actually in the db so its spent flags can never be updated.
             List<Transaction> genesisTransactions = Lists.newLinkedList();
             StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.genesisBlock.getHash(), genesisTransactions);
-            put(storedGenesisHeader, storedGenesis);
-            setChainHead(storedGenesisHeader);
-            setVerifiedChainHead(storedGenesisHeader);
+            put(c, storedGenesisHeader, storedGenesis);
+            setChainHead(c, storedGenesisHeader);
+            setVerifiedChainHead(c, storedGenesisHeader);
         } catch (VerificationException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
     }
 
-    private boolean tableExists(String table) throws SQLException {
-        Statement s = conn.get().createStatement();
+    private boolean tableExists(PooledConnection c, String table) throws SQLException {
+        Statement s = c.connection.createStatement();
         try {
             ResultSet results = s.executeQuery("SELECT * FROM " + table + " WHERE 1 = 2");
             results.close();
@@ -278,8 +455,17 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
      * This does not take database indexes into account
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
-        maybeConnect();
-        Statement s = conn.get().createStatement();
+        PooledConnection c = acquireConnection();
+        try {
+            dumpSizes(c);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    private void dumpSizes(PooledConnection c) throws SQLException, BlockStoreException {
+        flushOutputs(c);
+        Statement s = c.connection.createStatement();
         long size = 0;
         long totalSize = 0;
         int count = 0;
@@ -354,10 +540,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
     
     
-    private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
+    private void putUpdateStoredBlock(PooledConnection c, StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    c.prepare("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
                             + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
@@ -368,35 +554,46 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeAnoncoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if (e.getErrorCode() != 23505 || !wasUndoable)
                 throw e;
             
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = c.prepare("UPDATE headers SET wasUndoable=? WHERE hash=?");
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
     public void put(StoredBlock storedBlock) throws BlockStoreException {
-        maybeConnect();
+        PooledConnection c = acquireConnection();
         try {
-            putUpdateStoredBlock(storedBlock, false);
+            putUpdateStoredBlock(c, storedBlock, false);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection(c);
         }
     }
     
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
-        maybeConnect();
+        PooledConnection c = acquireConnection();
+        try {
+            put(c, storedBlock, undoableBlock);
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    private void put(PooledConnection c, StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws SQLException, BlockStoreException {
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
         System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -424,47 +621,37 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
         
         try {
-            try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
-                s.setBytes(1, hashBytes);
-                s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BLOB);
-                } else {
-                    s.setNull(3, Types.BLOB);
-                    s.setBytes(4, transactions);
-                }
-                s.executeUpdate();
-                s.close();
-                try {
-                    putUpdateStoredBlock(storedBlock, true);
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
-                    throw new BlockStoreException(e);
-                
-                // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
-                s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BLOB);
-                } else {
-                    s.setNull(1, Types.BLOB);
-                    s.setBytes(2, transactions);
-                }
-                s.executeUpdate();
-                s.close();
+            PreparedStatement s =
+                    c.prepare("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                            + " VALUES(?, ?, ?, ?)");
+            s.setBytes(1, hashBytes);
+            s.setInt(2, height);
+            if (transactions == null) {
+                s.setBytes(3, txOutChanges);
+                s.setNull(4, Types.BLOB);
+            } else {
+                s.setNull(3, Types.BLOB);
+                s.setBytes(4, transactions);
             }
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+            s.executeUpdate();
+            putUpdateStoredBlock(c, storedBlock, true);
+        } catch (SQLException e) {
+            if (e.getErrorCode() != 23505)
+                throw e;
+            
+            // There is probably an update-or-insert statement, but it wasn't obvious from the docs
+            PreparedStatement s =
+                    c.prepare("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+                            + " WHERE hash = ?");
+            s.setBytes(3, hashBytes);
+            if (transactions == null) {
+                s.setBytes(1, txOutChanges);
+                s.setNull(2, Types.BLOB);
+            } else {
+                s.setNull(1, Types.BLOB);
+                s.setBytes(2, transactions);
+            }
+            s.executeUpdate();
         }
     }
 
@@ -474,16 +661,23 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             return chainHeadBlock;
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
-        maybeConnect();
-        PreparedStatement s = null;
+        PooledConnection c = acquireConnection();
         try {
-            s = conn.get()
-                .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            return get(c, hash, wasUndoableOnly);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    private StoredBlock get(PooledConnection c, Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        ResultSet results = null;
+        try {
+            PreparedStatement s = c.prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -508,10 +702,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
     
@@ -524,16 +715,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
     
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        PooledConnection c = acquireConnection();
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = c.prepare("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -575,10 +765,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
+            releaseConnection(c);
         }
     }
 
@@ -587,206 +775,357 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        Sha256Hash hash = chainHead.getHeader().getHash();
-        this.chainHeadHash = hash;
-        this.chainHeadBlock = chainHead;
-        maybeConnect();
+        PooledConnection c = acquireConnection();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
-            s.setString(2, CHAIN_HEAD_SETTING);
-            s.setBytes(1, hash.getBytes());
-            s.executeUpdate();
-            s.close();
+            setChainHead(c, chainHead);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection(c);
         }
     }
+
+    private void setChainHead(PooledConnection c, StoredBlock chainHead) throws SQLException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.chainHeadHash = hash;
+        this.chainHeadBlock = chainHead;
+        PreparedStatement s = c.prepare("UPDATE settings SET value = ? WHERE name = ?");
+        s.setString(2, CHAIN_HEAD_SETTING);
+        s.setBytes(1, hash.getBytes());
+        s.executeUpdate();
+    }
     
     public StoredBlock getVerifiedChainHead() throws BlockStoreException {
         return verifiedChainHeadBlock;
     }
 
     public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
-        Sha256Hash hash = chainHead.getHeader().getHash();
-        this.verifiedChainHeadHash = hash;
-        this.verifiedChainHeadBlock = chainHead;
-        maybeConnect();
+        PooledConnection c = acquireConnection();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
-            s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
-            s.setBytes(1, hash.getBytes());
-            s.executeUpdate();
-            s.close();
+            setVerifiedChainHead(c, chainHead);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection(c);
         }
+    }
+
+    private void setVerifiedChainHead(PooledConnection c, StoredBlock chainHead) throws SQLException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.verifiedChainHeadHash = hash;
+        this.verifiedChainHeadBlock = chainHead;
+        PreparedStatement s = c.prepare("UPDATE settings SET value = ? WHERE name = ?");
+        s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
+        s.setBytes(1, hash.getBytes());
+        s.executeUpdate();
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
-            setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+            setChainHead(c, chainHead);
+        removeUndoableBlocksWhereHeightIsLessThan(c, chainHead.getHeight() - fullStoreDepth);
+    }
+
+    private void removeUndoableBlocksWhereHeightIsLessThan(PooledConnection c, int height) throws SQLException {
+        PreparedStatement s = c.prepare("DELETE FROM undoableBlocks WHERE height <= ?");
+        s.setInt(1, height);
+        s.executeUpdate();
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PooledConnection c = acquireConnection();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
-            s.setInt(1, height);
-            s.executeUpdate();
-            s.close();
+            return getTransactionOutput(c, new StoredTransactionOutPoint(hash, index));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection(c);
         }
     }
 
-    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+    /** Looks an output up in the current batch's changes before going to the database. */
+    private StoredTransactionOutput getTransactionOutput(PooledConnection c, StoredTransactionOutPoint outPoint)
+            throws SQLException {
+        if (c.pendingOutputs.containsKey(outPoint))
+            return c.pendingOutputs.get(outPoint);
+        if (c.readOutputs.containsKey(outPoint))
+            return c.readOutputs.get(outPoint);
+        PreparedStatement s = c.prepare(SELECT_OPEN_OUTPUT);
+        s.setBytes(1, outPoint.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) outPoint.getIndex());
+        ResultSet results = s.executeQuery();
         try {
-            s = conn.get()
-                .prepareStatement("SELECT openOutputsIndex.height, openOutputs.value, openOutputs.scriptBytes " +
-                		"FROM openOutputsIndex NATURAL JOIN openOutputs " +
-                		"WHERE openOutputsIndex.hash = ? AND openOutputs.index = ?");
-            s.setBytes(1, hash.getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            StoredTransactionOutput txout = null;
+            if (results.next()) {
+                // Parse it.
+                int height = results.getInt(1);
+                BigInteger value = new BigInteger(results.getBytes(2));
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                txout = new StoredTransactionOutput(outPoint.getHash(), outPoint.getIndex(), value, height, true,
+                        results.getBytes(3));
             }
-            // Parse it.
-            int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            if (c.inBatch)
+                c.readOutputs.put(outPoint, txout);
             return txout;
+        } finally {
+            results.close();
+        }
+    }
+
+    public Map<StoredTransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<StoredTransactionOutPoint> outPoints) throws BlockStoreException {
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>(outPoints.size());
+        Set<StoredTransactionOutPoint> wanted = new HashSet<StoredTransactionOutPoint>();
+        PooledConnection c = acquireConnection();
+        try {
+            Set<Sha256Hash> hashSet = new LinkedHashSet<Sha256Hash>();
+            for (StoredTransactionOutPoint outPoint : outPoints) {
+                // Outputs this batch has changed are answered without asking the database.
+                if (c.pendingOutputs.containsKey(outPoint)) {
+                    StoredTransactionOutput out = c.pendingOutputs.get(outPoint);
+                    if (out != null)
+                        outputs.put(outPoint, out);
+                } else if (wanted.add(outPoint)) {
+                    hashSet.add(outPoint.getHash());
+                }
+            }
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(hashSet);
+            // Look up all the outputs of each transaction in one query per MAX_HASHES_PER_QUERY transactions, rather
+            // than one query per output, and keep the ones that were asked for.
+            for (int start = 0; start < hashes.size(); start += MAX_HASHES_PER_QUERY) {
+                List<Sha256Hash> chunk = hashes.subList(start, Math.min(start + MAX_HASHES_PER_QUERY, hashes.size()));
+                // Round the number of parameters up to a power of two, repeating the first hash, so the statement
+                // for each size can be prepared once and kept.
+                int parameters = Integer.highestOneBit(chunk.size());
+                if (parameters < chunk.size())
+                    parameters *= 2;
+                PreparedStatement s = c.prepare(selectOutputsQuery(parameters));
+                for (int i = 0; i < parameters; i++)
+                    s.setBytes(i + 1, chunk.get(i < chunk.size() ? i : 0).getBytes());
+                ResultSet results = s.executeQuery();
+                try {
+                    while (results.next()) {
+                        Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                        // index is actually an unsigned int
+                        long index = results.getInt(2) & 0xFFFFFFFFL;
+                        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+                        if (!wanted.contains(outPoint))
+                            continue;
+                        int height = results.getInt(3);
+                        BigInteger value = new BigInteger(results.getBytes(4));
+                        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                        outputs.put(outPoint, new StoredTransactionOutput(hash, index, value, height, true,
+                                results.getBytes(5)));
+                    }
+                } finally {
+                    results.close();
+                }
+            }
+            if (c.inBatch) {
+                for (StoredTransactionOutPoint outPoint : wanted)
+                    c.readOutputs.put(outPoint, outputs.get(outPoint));
+            }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            releaseConnection(c);
         }
+        return outputs;
+    }
+
+    private static String selectOutputsQuery(int parameters) {
+        StringBuilder query = new StringBuilder("SELECT openOutputsIndex.hash, openOutputs.index, " +
+                "openOutputsIndex.height, openOutputs.value, openOutputs.scriptBytes " +
+                "FROM openOutputsIndex NATURAL JOIN openOutputs " +
+                "WHERE openOutputsIndex.hash IN (");
+        for (int i = 0; i < parameters; i++)
+            query.append(i == 0 ? "?" : ", ?");
+        return query.append(")").toString();
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        PooledConnection c = acquireConnection();
         try {
-            try {
-                s = conn.get().prepareStatement("INSERT INTO openOutputsIndex(hash, height)"
-                        + " VALUES(?, ?)");
-                s.setBytes(1, out.getHash().getBytes());
-                s.setInt(2, out.getHeight());
-                s.executeUpdate();
-            } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
-                    throw e;
-            } finally {
-                if (s != null)
-                    s.close();
-            }
-            
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (id, index, value, scriptBytes) " +
-            		"VALUES ((SELECT id FROM openOutputsIndex WHERE hash = ?), " +
-            		"?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setBytes(3, out.getValue().toByteArray());
-            s.setBytes(4, out.getScriptBytes());
-            s.executeUpdate();
-            s.close();
+            c.pendingOutputs.put(new StoredTransactionOutPoint(out), out);
+            if (!c.inBatch)
+                flushOutputs(c);
         } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
+            throw new BlockStoreException(e);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
+            releaseConnection(c);
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
-        maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        PooledConnection c = acquireConnection();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs " +
-                		"WHERE id = (SELECT id FROM openOutputsIndex WHERE hash = ?) AND index = ?");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
-            
-            // This is quite an ugly query, is there no better way?
-            s = conn.get().prepareStatement("DELETE FROM openOutputsIndex " +
-                            "WHERE hash = ? AND 1 = (CASE WHEN ((SELECT COUNT(*) FROM openOutputs WHERE id =" +
-                            "(SELECT id FROM openOutputsIndex WHERE hash = ?)) = 0) THEN 1 ELSE 0 END)");
-            s.setBytes(1, out.getHash().getBytes());
-            s.setBytes(2, out.getHash().getBytes());
-            s.executeUpdate();
-            s.close();
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (getTransactionOutput(c, outPoint) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            c.pendingOutputs.put(outPoint, null);
+            if (!c.inBatch)
+                flushOutputs(c);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Writes the output changes queued on the given connection as four JDBC batches: the removals, the transactions
+     * that gained outputs, the new outputs, and finally dropping the index rows of transactions left with none.
+     */
+    private void flushOutputs(PooledConnection c) throws SQLException {
+        if (c.pendingOutputs.isEmpty())
+            return;
+        PreparedStatement deleteOutput = null;
+        PreparedStatement mergeIndex = null;
+        PreparedStatement mergeOutput = null;
+        Set<Sha256Hash> addedHashes = new HashSet<Sha256Hash>();
+        Set<Sha256Hash> removedHashes = new LinkedHashSet<Sha256Hash>();
+        for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : c.pendingOutputs.entrySet()) {
+            StoredTransactionOutPoint outPoint = entry.getKey();
+            if (entry.getValue() != null)
+                continue;
+            if (deleteOutput == null)
+                deleteOutput = c.prepare(DELETE_OPEN_OUTPUT);
+            deleteOutput.setBytes(1, outPoint.getHash().getBytes());
+            // index is actually an unsigned int
+            deleteOutput.setInt(2, (int) outPoint.getIndex());
+            deleteOutput.addBatch();
+            removedHashes.add(outPoint.getHash());
+        }
+        if (deleteOutput != null)
+            deleteOutput.executeBatch();
+        for (StoredTransactionOutput out : c.pendingOutputs.values()) {
+            if (out == null || !addedHashes.add(out.getHash()))
+                continue;
+            if (mergeIndex == null)
+                mergeIndex = c.prepare(MERGE_OPEN_OUTPUT_INDEX);
+            mergeIndex.setBytes(1, out.getHash().getBytes());
+            mergeIndex.setInt(2, out.getHeight());
+            mergeIndex.addBatch();
+        }
+        if (mergeIndex != null) {
+            mergeIndex.executeBatch();
+            mergeOutput = c.prepare(MERGE_OPEN_OUTPUT);
+            for (StoredTransactionOutput out : c.pendingOutputs.values()) {
+                if (out == null)
+                    continue;
+                mergeOutput.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                mergeOutput.setInt(2, (int) out.getIndex());
+                mergeOutput.setBytes(3, out.getValue().toByteArray());
+                mergeOutput.setBytes(4, out.getScriptBytes());
+                mergeOutput.addBatch();
+            }
+            mergeOutput.executeBatch();
         }
+        // Transactions which just gained an output obviously still have one.
+        removedHashes.removeAll(addedHashes);
+        if (!removedHashes.isEmpty()) {
+            PreparedStatement deleteIndex = c.prepare(DELETE_UNUSED_OPEN_OUTPUT_INDEX);
+            for (Sha256Hash hash : removedHashes) {
+                deleteIndex.setBytes(1, hash.getBytes());
+                deleteIndex.addBatch();
+            }
+            deleteIndex.executeBatch();
+        }
+        c.pendingOutputs.clear();
     }
 
     public void beginDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        PooledConnection c = acquireConnection();
         try {
-            conn.get().setAutoCommit(false);
+            c.connection.setAutoCommit(false);
         } catch (SQLException e) {
+            releaseConnection(c);
             throw new BlockStoreException(e);
         }
+        // Keep the connection until the batch is committed or aborted.
+        c.inBatch = true;
+        batchConnection.set(c);
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        PooledConnection c = acquireConnection();
         try {
-            conn.get().commit();
-            conn.get().setAutoCommit(true);
+            flushOutputs(c);
+            c.connection.commit();
+            c.connection.setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            endBatch(c);
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        PooledConnection c = acquireConnection();
         try {
-            conn.get().rollback();
-            conn.get().setAutoCommit(true);
+            c.pendingOutputs.clear();
+            c.connection.rollback();
+            c.connection.setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            endBatch(c);
         }
     }
 
+    private void endBatch(PooledConnection c) {
+        c.readOutputs.clear();
+        c.pendingOutputs.clear();
+        if (c.inBatch) {
+            c.inBatch = false;
+            batchConnection.remove();
+        }
+        try {
+            // A commit or abort that failed leaves the connection in the batch's transaction. Roll that back, so the
+            // next thread to be handed the connection doesn't carry on inside it.
+            if (!c.connection.getAutoCommit()) {
+                c.connection.rollback();
+                c.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.warn("Discarding a database connection which could not be returned to auto-commit", e);
+            discardConnection(c);
+            return;
+        }
+        releaseConnection(c);
+    }
+
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        PooledConnection c = acquireConnection();
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputsIndex " +
-                        "WHERE hash = ?");
+            for (int i = 0; i < numOutputs; i++) {
+                if (c.pendingOutputs.get(new StoredTransactionOutPoint(hash, i)) != null)
+                    return true;
+            }
+            PreparedStatement s = c.prepare(SELECT_OPEN_OUTPUT_INDEXES);
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            results = s.executeQuery();
+            while (results.next()) {
+                // Outputs this batch has removed are still in the database until it commits.
+                StoredTransactionOutPoint outPoint =
+                        new StoredTransactionOutPoint(hash, results.getInt(1) & 0xFFFFFFFFL);
+                if (!c.pendingOutputs.containsKey(outPoint))
+                    return true;
             }
-            int count = results.getInt(1);
-            return count != 0;
+            return false;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
+            releaseConnection(c);
         }
     }
+
+    private static void closeResults(ResultSet results) throws BlockStoreException {
+        if (results != null)
+            try {
+                results.close();
+            } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+    }
 }
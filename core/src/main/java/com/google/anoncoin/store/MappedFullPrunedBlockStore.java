@@ -0,0 +1,829 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.*;
+import com.google.anoncoin.utils.Locks;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A full pruned block store that keeps the unspent output set, block headers and undo blocks in memory mapped,
+ * append-only files in a directory of its own. Each of the three is a {@link MappedRecordTable}: a log of records
+ * with an open addressing hash index over it, so looking up an output is a hash of the 36 byte outpoint, a probe
+ * or two in the index and a read of the record, all without leaving memory once the pages are faulted in.</p>
+ *
+ * <p>Changes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are held by
+ * the writing thread until commit. The commit then appends them to a write ahead log, syncs it, and only then
+ * applies them to the tables. Every so often the tables are synced and the log emptied. If the process or machine
+ * dies, whatever made it into the log is applied again when the store is next opened and the rest is lost, so the
+ * store always comes back as it was after some whole commit.</p>
+ *
+ * <p>Spent outputs and pruned undo blocks leave dead records behind in the logs. Once a table holds more dead data
+ * than live data, a background thread copies the live records into a new generation of the table, a chunk at a
+ * time so block processing carries on in between, and then switches over to it and deletes the old files.</p>
+ */
+public class MappedFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    public static final String HEADER_MAGIC = "MFPS";
+
+    // The tables, their names on disk and the size of their keys.
+    private static final int OUTPUTS = 0;
+    private static final int BLOCKS = 1;
+    private static final int UNDO_BLOCKS = 2;
+    private static final String[] TABLE_NAMES = {"outputs", "blocks", "undo"};
+    private static final int[] KEY_SIZES = {32 + 4, 32, 32};
+
+    // The header file holds the magic, both chain head hashes and the generation of each table.
+    private static final String HEADER_FILE_NAME = "store.dat";
+    private static final int CHAIN_HEAD_OFFSET = 4;
+    private static final int VERIFIED_CHAIN_HEAD_OFFSET = CHAIN_HEAD_OFFSET + 32;
+    private static final int GENERATIONS_OFFSET = VERIFIED_CHAIN_HEAD_OFFSET + 32;
+    private static final int HEADER_SIZE = GENERATIONS_OFFSET + 4 * TABLE_NAMES.length;
+
+    // The write ahead log is a series of batches: magic, payload length, payload and a CRC32 of the payload.
+    private static final String WAL_FILE_NAME = "wal.log";
+    private static final int WAL_BATCH_MAGIC = 0x57414c42;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CHAIN_HEAD = 3;
+    private static final byte OP_VERIFIED_CHAIN_HEAD = 4;
+    /** Once the write ahead log is this big the tables are synced to disk and the log emptied. */
+    private static final long CHECKPOINT_SIZE = 32 * 1024 * 1024;
+
+    /** A table is compacted once it has at least this much dead data, and more dead than live. */
+    private static final long MIN_COMPACTION_GARBAGE = 16 * 1024 * 1024;
+    /** How many records compaction copies each time it takes the lock. */
+    private static final int COMPACTION_CHUNK = 10000;
+
+    // Marks a key removed in a batch.
+    private static final byte[] REMOVED = new byte[0];
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final int segmentSize;
+
+    protected final ReentrantLock lock = Locks.lock("MappedFullPrunedBlockStore");
+
+    // All guarded by lock. header is null once the store is closed.
+    private RandomAccessFile headerFile;
+    private FileLock fileLock;
+    private MappedByteBuffer header;
+    private final int[] generations = new int[TABLE_NAMES.length];
+    private final MappedRecordTable[] tables = new MappedRecordTable[TABLE_NAMES.length];
+    private final Compaction[] compactions = new Compaction[TABLE_NAMES.length];
+    private RandomAccessFile wal;
+    private long walSize;
+    // The height of every undo block, so they can be pruned without scanning the table.
+    private final TreeMap<Integer, Set<Sha256Hash>> undoBlockHeights = new TreeMap<Integer, Set<Sha256Hash>>();
+
+    private volatile StoredBlock chainHead;
+    private volatile StoredBlock verifiedChainHead;
+
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(new CompactionThreadFactory());
+
+    /** Writes made by one thread between beginDatabaseBatchWrite and commitDatabaseBatchWrite. */
+    private static class Batch {
+        final List<LinkedHashMap<ByteBuffer, byte[]>> changes = new ArrayList<LinkedHashMap<ByteBuffer, byte[]>>();
+        byte[] chainHead;
+        byte[] verifiedChainHead;
+
+        Batch() {
+            for (int i = 0; i < TABLE_NAMES.length; i++)
+                changes.add(new LinkedHashMap<ByteBuffer, byte[]>());
+        }
+    }
+
+    /** A compaction of one table that is under way. */
+    private static class Compaction {
+        final MappedRecordTable source;
+        final MappedRecordTable target;
+        final int generation;
+        // Keys removed from source since the compaction started, which may already have been copied to target.
+        final Set<ByteBuffer> removedKeys = new HashSet<ByteBuffer>();
+
+        Compaction(MappedRecordTable source, MappedRecordTable target, int generation) {
+            this.source = source;
+            this.target = target;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed. Any batches left in the write ahead log by a
+     * crash are applied before this returns.
+     *
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, MappedRecordTable.DEFAULT_SEGMENT_SIZE);
+    }
+
+    MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize)
+            throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        lock.lock();
+        try {
+            open();
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            byte[] chainHeadHash = new byte[32];
+            header.position(CHAIN_HEAD_OFFSET);
+            header.get(chainHeadHash);
+            if (Arrays.equals(chainHeadHash, new byte[32])) {
+                initNewStore();
+            } else {
+                byte[] verifiedChainHeadHash = new byte[32];
+                header.get(verifiedChainHeadHash);
+                chainHead = get(new Sha256Hash(chainHeadHash));
+                verifiedChainHead = get(new Sha256Hash(verifiedChainHeadHash));
+                if (chainHead == null || verifiedChainHead == null)
+                    throw new BlockStoreException("Chain heads of " + directory + " are missing from the store");
+            }
+        } catch (BlockStoreException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException, BlockStoreException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        File file = new File(directory, HEADER_FILE_NAME);
+        boolean exists = file.exists();
+        headerFile = new RandomAccessFile(file, "rw");
+        FileChannel channel = headerFile.getChannel();
+        fileLock = channel.tryLock();
+        if (fileLock == null)
+            throw new BlockStoreException("Store file is already locked by another process");
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        byte[] magic = new byte[4];
+        if (exists) {
+            header.get(magic);
+            if (!new String(magic, "US-ASCII").equals(HEADER_MAGIC))
+                throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+        } else {
+            log.info("Creating new full pruned block store in " + directory);
+            header.put(HEADER_MAGIC.getBytes("US-ASCII"));
+        }
+        for (int i = 0; i < tables.length; i++) {
+            generations[i] = header.getInt(GENERATIONS_OFFSET + 4 * i);
+            deleteOtherGenerations(i, generations[i]);
+            tables[i] = openTable(i, generations[i]);
+        }
+        wal = new RandomAccessFile(new File(directory, WAL_FILE_NAME), "rw");
+        replayWriteAheadLog();
+        tables[UNDO_BLOCKS].forEach(new MappedRecordTable.RecordVisitor() {
+            public void visit(byte[] key, byte[] value) {
+                addUndoBlockHeight(key, value);
+            }
+        });
+    }
+
+    private void initNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.genesisBlock.getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        write(BLOCKS, block.getHeader().getHash().getBytes(), serializeBlock(block, false));
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        byte[] hash = storedBlock.getHeader().getHash().getBytes();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(storedBlock.getHeight());
+            if (undoableBlock.getTxOutChanges() != null) {
+                out.writeByte(0);
+                undoableBlock.getTxOutChanges().serializeToStream(out);
+            } else {
+                // The same layout as H2FullPrunedBlockStore uses for a list of transactions.
+                out.writeByte(1);
+                int numTxn = undoableBlock.getTransactions().size();
+                out.write(0xFF & (numTxn >> 0));
+                out.write(0xFF & (numTxn >> 8));
+                out.write(0xFF & (numTxn >> 16));
+                out.write(0xFF & (numTxn >> 24));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.anoncoinSerialize(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        Batch batch = this.batch.get();
+        boolean ownBatch = batch == null;
+        if (ownBatch)
+            batch = new Batch();
+        batch.changes.get(UNDO_BLOCKS).put(ByteBuffer.wrap(hash), bos.toByteArray());
+        batch.changes.get(BLOCKS).put(ByteBuffer.wrap(hash), serializeBlock(storedBlock, true));
+        if (ownBatch)
+            commit(batch);
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = read(BLOCKS, hash.getBytes());
+        return value == null ? null : deserializeBlock(value);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = read(BLOCKS, hash.getBytes());
+        return (value != null && value[StoredBlock.COMPACT_SERIALIZED_SIZE] != 0) ? deserializeBlock(value) : null;
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = read(UNDO_BLOCKS, hash.getBytes());
+        if (value == null)
+            return null;
+        try {
+            if (value[4] == 0) {
+                TransactionOutputChanges outChangesObject =
+                        new TransactionOutputChanges(new ByteArrayInputStream(value, 5, value.length - 5));
+                return new StoredUndoableBlock(hash, outChangesObject);
+            }
+            int offset = 5;
+            int numTxn = ((value[offset++] & 0xFF) << 0) |
+                         ((value[offset++] & 0xFF) << 8) |
+                         ((value[offset++] & 0xFF) << 16) |
+                         ((value[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, value, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        Batch batch = this.batch.get();
+        boolean ownBatch = batch == null;
+        if (ownBatch)
+            batch = new Batch();
+        batch.chainHead = chainHead.getHeader().getHash().getBytes();
+        if (ownBatch)
+            commit(batch);
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.verifiedChainHead = chainHead;
+        Batch batch = this.batch.get();
+        boolean ownBatch = batch == null;
+        if (ownBatch)
+            batch = new Batch();
+        batch.verifiedChainHead = chainHead.getHeader().getHash().getBytes();
+        if (this.chainHead.getHeight() < chainHead.getHeight()) {
+            this.chainHead = chainHead;
+            batch.chainHead = batch.verifiedChainHead;
+        }
+        // Prune the undo blocks that have fallen too far behind the head.
+        lock.lock();
+        try {
+            checkOpen();
+            for (Set<Sha256Hash> hashes : undoBlockHeights.headMap(chainHead.getHeight() - fullStoreDepth, true).values()) {
+                for (Sha256Hash hash : hashes)
+                    batch.changes.get(UNDO_BLOCKS).put(ByteBuffer.wrap(hash.getBytes()), REMOVED);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (ownBatch)
+            commit(batch);
+    }
+
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] value = read(OUTPUTS, outPointKey(hash, index));
+        return value == null ? null : deserializeOutput(hash, index, value);
+    }
+
+    public Map<StoredTransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<StoredTransactionOutPoint> outPoints) throws BlockStoreException {
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>(outPoints.size());
+        Batch batch = this.batch.get();
+        lock.lock();
+        try {
+            checkOpen();
+            for (StoredTransactionOutPoint outPoint : outPoints) {
+                byte[] key = outPointKey(outPoint.getHash(), outPoint.getIndex());
+                byte[] value = batch == null ? null : batch.changes.get(OUTPUTS).get(ByteBuffer.wrap(key));
+                if (value == null)
+                    value = tables[OUTPUTS].get(key);
+                if (value != null && value != REMOVED)
+                    outputs.put(outPoint, deserializeOutput(outPoint.getHash(), outPoint.getIndex(), value));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return outputs;
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        byte[] valueBytes = out.getValue().toByteArray();
+        byte[] scriptBytes = out.getScriptBytes();
+        ByteBuffer value = ByteBuffer.allocate(4 + 1 + valueBytes.length + scriptBytes.length);
+        // The height is NONCOINBASE_HEIGHT for outputs that aren't from a coinbase, so it records that too.
+        value.putInt(out.getHeight());
+        value.put((byte) valueBytes.length);
+        value.put(valueBytes);
+        value.put(scriptBytes);
+        write(OUTPUTS, outPointKey(out.getHash(), out.getIndex()), value.array());
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        byte[] key = outPointKey(out.getHash(), out.getIndex());
+        if (read(OUTPUTS, key) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MappedFullPrunedBlockStore that it didn't have!");
+        write(OUTPUTS, key, REMOVED);
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch batch = this.batch.get();
+        if (batch == null)
+            return;
+        this.batch.remove();
+        commit(batch);
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (header == null)
+                return;
+            checkpoint();
+            closeFiles();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+            compactionExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Compacts every table now, on the calling thread, however little garbage it has. Tables already being
+     * compacted in the background are left alone.
+     */
+    void compact() throws BlockStoreException {
+        for (int i = 0; i < tables.length; i++)
+            compact(i);
+    }
+
+    /** Returns the number of bytes taken up by dead records across all the tables. */
+    long getGarbageBytes() {
+        lock.lock();
+        try {
+            checkOpen();
+            long garbage = 0;
+            for (MappedRecordTable table : tables)
+                garbage += table.getGarbageBytes();
+            return garbage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        checkState(header != null, "MappedFullPrunedBlockStore is closed");
+    }
+
+    /** Reads a value, looking at the changes in this thread's batch first. */
+    private byte[] read(int table, byte[] key) {
+        Batch batch = this.batch.get();
+        if (batch != null) {
+            byte[] value = batch.changes.get(table).get(ByteBuffer.wrap(key));
+            if (value != null)
+                return value == REMOVED ? null : value;
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            return tables[table].get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a change to this thread's batch, or commits it straight away if there is no batch. */
+    private void write(int table, byte[] key, byte[] value) throws BlockStoreException {
+        Batch batch = this.batch.get();
+        if (batch != null) {
+            batch.changes.get(table).put(ByteBuffer.wrap(key), value);
+        } else {
+            batch = new Batch();
+            batch.changes.get(table).put(ByteBuffer.wrap(key), value);
+            commit(batch);
+        }
+    }
+
+    private void commit(Batch batch) throws BlockStoreException {
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            for (int table = 0; table < tables.length; table++) {
+                for (Map.Entry<ByteBuffer, byte[]> change : batch.changes.get(table).entrySet()) {
+                    byte[] value = change.getValue();
+                    out.writeByte(value == REMOVED ? OP_REMOVE : OP_PUT);
+                    out.writeByte(table);
+                    out.write(change.getKey().array());
+                    if (value != REMOVED) {
+                        out.writeInt(value.length);
+                        out.write(value);
+                    }
+                }
+            }
+            if (batch.chainHead != null) {
+                out.writeByte(OP_CHAIN_HEAD);
+                out.write(batch.chainHead);
+            }
+            if (batch.verifiedChainHead != null) {
+                out.writeByte(OP_VERIFIED_CHAIN_HEAD);
+                out.write(batch.verifiedChainHead);
+            }
+            out.flush();
+            payload = bos.toByteArray();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        if (payload.length == 0)
+            return;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(12 + payload.length);
+        record.putInt(WAL_BATCH_MAGIC);
+        record.putInt(payload.length);
+        record.put(payload);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            checkOpen();
+            FileChannel channel = wal.getChannel();
+            while (record.hasRemaining())
+                walSize += channel.write(record, walSize);
+            channel.force(false);
+            apply(ByteBuffer.wrap(payload));
+            if (walSize >= CHECKPOINT_SIZE)
+                checkpoint();
+            for (int i = 0; i < tables.length; i++) {
+                long garbage = tables[i].getGarbageBytes();
+                if (compactions[i] == null && garbage >= MIN_COMPACTION_GARBAGE && garbage > tables[i].getLiveBytes())
+                    startBackgroundCompaction(i);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Applies one batch from the write ahead log to the tables and header. */
+    private void apply(ByteBuffer payload) throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        while (payload.hasRemaining()) {
+            byte op = payload.get();
+            if (op == OP_CHAIN_HEAD || op == OP_VERIFIED_CHAIN_HEAD) {
+                byte[] hash = new byte[32];
+                payload.get(hash);
+                header.position(op == OP_CHAIN_HEAD ? CHAIN_HEAD_OFFSET : VERIFIED_CHAIN_HEAD_OFFSET);
+                header.put(hash);
+                continue;
+            }
+            int table = payload.get();
+            byte[] key = new byte[KEY_SIZES[table]];
+            payload.get(key);
+            if (op == OP_PUT) {
+                byte[] value = new byte[payload.getInt()];
+                payload.get(value);
+                tables[table].put(key, value);
+                if (table == UNDO_BLOCKS)
+                    addUndoBlockHeight(key, value);
+            } else if (op == OP_REMOVE) {
+                byte[] value = table == UNDO_BLOCKS ? tables[table].get(key) : null;
+                if (tables[table].remove(key)) {
+                    if (compactions[table] != null)
+                        compactions[table].removedKeys.add(ByteBuffer.wrap(key));
+                    if (value != null)
+                        removeUndoBlockHeight(key, value);
+                }
+            } else {
+                throw new BlockStoreException("Unknown write ahead log operation " + op);
+            }
+        }
+    }
+
+    /** Applies whatever complete batches are in the write ahead log, as left there by a crash. */
+    private void replayWriteAheadLog() throws IOException, BlockStoreException {
+        byte[] bytes = new byte[(int) wal.length()];
+        wal.readFully(bytes);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int batches = 0;
+        while (buf.remaining() >= 12 && buf.getInt() == WAL_BATCH_MAGIC) {
+            int length = buf.getInt();
+            if (length < 0 || length + 4 > buf.remaining())
+                break;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, buf.position(), length);
+            if (buf.getInt(buf.position() + length) != (int) crc.getValue())
+                break;
+            apply(ByteBuffer.wrap(bytes, buf.position(), length).slice());
+            buf.position(buf.position() + length + 4);
+            batches++;
+        }
+        if (batches > 0)
+            log.info("Applied {} batches from the write ahead log of {}", batches, directory);
+        checkpoint();
+    }
+
+    /** Syncs the tables to disk, after which the write ahead log is no longer needed. */
+    private void checkpoint() throws IOException {
+        for (MappedRecordTable table : tables)
+            table.force();
+        header.force();
+        wal.setLength(0);
+        wal.getChannel().force(true);
+        walSize = 0;
+    }
+
+    private void startBackgroundCompaction(final int table) {
+        compactionExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    compact(table);
+                } catch (BlockStoreException e) {
+                    log.error("Failed to compact the " + TABLE_NAMES[table] + " table of " + directory, e);
+                } catch (RuntimeException e) {
+                    log.error("Failed to compact the " + TABLE_NAMES[table] + " table of " + directory, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the live records of a table into the next generation of it and switches over. The records that were
+     * in the table when compaction started are copied a chunk at a time, letting commits in between. Then, with
+     * the lock held throughout, the keys removed in the meantime are removed from the copy, whatever was added in
+     * the meantime is copied over, and the header is pointed at the new generation.
+     */
+    private void compact(int table) throws BlockStoreException {
+        Compaction compaction;
+        long end;
+        lock.lock();
+        try {
+            checkOpen();
+            if (compactions[table] != null)
+                return;
+            int generation = generations[table] + 1;
+            deleteTableFiles(table, generation);
+            compaction = new Compaction(tables[table], openTable(table, generation), generation);
+            compactions[table] = compaction;
+            end = compaction.source.getDataEnd();
+        } finally {
+            lock.unlock();
+        }
+        boolean done = false;
+        try {
+            long offset = 0;
+            while (offset < end) {
+                lock.lock();
+                try {
+                    checkOpen();
+                    offset = compaction.source.copyLiveRecords(compaction.target, offset, end, COMPACTION_CHUNK);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            lock.lock();
+            try {
+                checkOpen();
+                for (ByteBuffer key : compaction.removedKeys)
+                    compaction.target.remove(key.array());
+                compaction.source.copyLiveRecords(compaction.target, end, compaction.source.getDataEnd(), Integer.MAX_VALUE);
+                compaction.target.force();
+                generations[table] = compaction.generation;
+                header.putInt(GENERATIONS_OFFSET + 4 * table, compaction.generation);
+                header.force();
+                tables[table] = compaction.target;
+                compactions[table] = null;
+                log.info("Compacted the {} table of {} from {} to {} bytes", new Object[] {TABLE_NAMES[table],
+                        directory, compaction.source.getDataEnd(), compaction.target.getDataEnd()});
+                compaction.source.delete();
+                done = true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (!done) {
+                lock.lock();
+                try {
+                    compaction.target.delete();
+                    compactions[table] = null;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private MappedRecordTable openTable(int table, int generation) throws BlockStoreException {
+        String name = TABLE_NAMES[table] + "-" + generation;
+        return new MappedRecordTable(new File(directory, name + ".dat"), new File(directory, name + ".idx"),
+                KEY_SIZES[table], segmentSize);
+    }
+
+    private void deleteTableFiles(int table, int generation) {
+        String name = TABLE_NAMES[table] + "-" + generation;
+        new File(directory, name + ".dat").delete();
+        new File(directory, name + ".idx").delete();
+    }
+
+    /** Deletes files left over from an earlier generation of the table, or a compaction that didn't finish. */
+    private void deleteOtherGenerations(int table, int generation) {
+        String prefix = TABLE_NAMES[table] + "-";
+        String current = prefix + generation + ".";
+        for (File file : directory.listFiles()) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && !name.equals(current + "dat") && !name.equals(current + "idx"))
+                file.delete();
+        }
+    }
+
+    private void closeFiles() {
+        for (int i = 0; i < tables.length; i++) {
+            if (compactions[i] != null)
+                compactions[i].target.delete();
+            compactions[i] = null;
+            if (tables[i] != null)
+                tables[i].close();
+            tables[i] = null;
+        }
+        try {
+            if (wal != null)
+                wal.close();
+            if (fileLock != null)
+                fileLock.release();
+            if (headerFile != null)
+                headerFile.close();
+        } catch (IOException e) {
+            log.error("Failed to close " + directory, e);
+        }
+        header = null;
+    }
+
+    private void addUndoBlockHeight(byte[] key, byte[] value) {
+        int height = ByteBuffer.wrap(value).getInt();
+        Set<Sha256Hash> hashes = undoBlockHeights.get(height);
+        if (hashes == null) {
+            hashes = new HashSet<Sha256Hash>();
+            undoBlockHeights.put(height, hashes);
+        }
+        hashes.add(new Sha256Hash(key));
+    }
+
+    private void removeUndoBlockHeight(byte[] key, byte[] value) {
+        int height = ByteBuffer.wrap(value).getInt();
+        Set<Sha256Hash> hashes = undoBlockHeights.get(height);
+        if (hashes != null && hashes.remove(new Sha256Hash(key)) && hashes.isEmpty())
+            undoBlockHeights.remove(height);
+    }
+
+    private static byte[] serializeBlock(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        block.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        return buffer.array();
+    }
+
+    private StoredBlock deserializeBlock(byte[] value) throws BlockStoreException {
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value));
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static byte[] outPointKey(Sha256Hash hash, long index) {
+        ByteBuffer key = ByteBuffer.allocate(32 + 4);
+        key.put(hash.getBytes());
+        key.putInt((int) index);
+        return key.array();
+    }
+
+    private static StoredTransactionOutput deserializeOutput(Sha256Hash hash, long index, byte[] value) {
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        int height = buf.getInt();
+        byte[] valueBytes = new byte[buf.get()];
+        buf.get(valueBytes);
+        byte[] scriptBytes = new byte[buf.remaining()];
+        buf.get(scriptBytes);
+        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+        return new StoredTransactionOutput(hash, index, new BigInteger(valueBytes), height, true, scriptBytes);
+    }
+
+    private static class CompactionThreadFactory implements ThreadFactory {
+        static final AtomicInteger poolNumber = new AtomicInteger(1);
+        final String namePrefix;
+
+        CompactionThreadFactory() {
+            namePrefix = "MappedFullPrunedBlockStore-" + poolNumber.getAndIncrement() + "-compaction";
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An append-only log of records, each a fixed size key and a variable size value, together with an open
+ * addressing hash index from key to the latest record for it. Both live in memory mapped files, so the table takes
+ * almost nothing from the Java heap however many keys it holds. Used by {@link MappedFullPrunedBlockStore}.</p>
+ *
+ * <p>Records are never changed once written. Putting a key again appends a new record and points the index at it,
+ * and removing a key only marks its index slot as deleted, so the log slowly fills up with dead records. The table
+ * keeps count of them so the owner can decide when to copy the live records into a fresh table with
+ * {@link #copyLiveRecords(MappedRecordTable, long, long, int)}.</p>
+ *
+ * <p>A record is always fully written, and the end of the log moved past it, before any index slot points at it.
+ * If the process dies half way through a put, the table is therefore still consistent when it is opened again.</p>
+ *
+ * <p>Not thread safe: the owning store guards all access with its own lock.</p>
+ */
+class MappedRecordTable {
+    /** Size of each mapping of the data file. Records never cross from one segment into the next. */
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String INDEX_MAGIC = "MIDX";
+    private static final int MIN_CAPACITY = 1024;
+
+    // The index file is a header followed by capacity 8 byte slots.
+    private static final int INDEX_HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int DELETED_OFFSET = 12;
+    private static final int DATA_END_OFFSET = 16;
+    private static final int LIVE_BYTES_OFFSET = 24;
+
+    // A slot is empty, deleted, or holds the top 16 bits of the key hash above the record offset plus one. Keeping
+    // part of the hash in the slot means a probe almost never has to look at the data file for a key that differs.
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int OFFSET_BITS = 48;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    // Each record starts with its total length. A zero length means the rest of the segment is unused.
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    /** Receives the live records of a table from {@link MappedRecordTable#forEach(RecordVisitor)}. */
+    interface RecordVisitor {
+        void visit(byte[] key, byte[] value) throws BlockStoreException;
+    }
+
+    private final File dataFile;
+    private final File indexFile;
+    private final int keySize;
+    private final int segmentSize;
+
+    private RandomAccessFile data;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    // Segments before this one have not been written to since the last force().
+    private int firstDirtySegment;
+
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    private int deleted;
+    private long dataEnd;
+    private long liveBytes;
+
+    /**
+     * Opens the table stored in the given files, creating them if they don't exist yet.
+     *
+     * @param keySize the length of every key, in bytes
+     * @param segmentSize how much of the data file is mapped at a time, which bounds the size of a record
+     */
+    MappedRecordTable(File dataFile, File indexFile, int keySize, int segmentSize) throws BlockStoreException {
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+        this.keySize = keySize;
+        this.segmentSize = segmentSize;
+        try {
+            if (indexFile.exists()) {
+                index = map(indexFile, indexFile.length());
+                byte[] magic = new byte[4];
+                index.position(0);
+                index.get(magic);
+                if (!new String(magic, "US-ASCII").equals(INDEX_MAGIC))
+                    throw new BlockStoreException("Header bytes of " + indexFile + " do not equal " + INDEX_MAGIC);
+                capacity = index.getInt(CAPACITY_OFFSET);
+                count = index.getInt(COUNT_OFFSET);
+                deleted = index.getInt(DELETED_OFFSET);
+                dataEnd = index.getLong(DATA_END_OFFSET);
+                liveBytes = index.getLong(LIVE_BYTES_OFFSET);
+                if (index.capacity() != indexFileSize(capacity))
+                    throw new BlockStoreException(indexFile + " has the wrong size for " + capacity + " slots");
+            } else {
+                index = createIndex(indexFile, MIN_CAPACITY);
+                capacity = MIN_CAPACITY;
+            }
+            data = new RandomAccessFile(dataFile, "rw");
+            if (data.length() < dataEnd)
+                throw new BlockStoreException(dataFile + " is shorter than its index says");
+            long numSegments = Math.max(1, (data.length() + segmentSize - 1) / segmentSize);
+            for (int i = 0; i < numSegments; i++)
+                addSegment();
+            firstDirtySegment = segments.size();
+        } catch (IOException e) {
+            close();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /** Returns the value most recently put for the given key, or null if there is none. */
+    byte[] get(byte[] key) {
+        int slot = findSlot(key, hash(key));
+        return slot < 0 ? null : readValue(recordOffset(index.getLong(slotPosition(slot))));
+    }
+
+    /** Returns true if the table holds a value for the given key. */
+    boolean contains(byte[] key) {
+        return findSlot(key, hash(key)) >= 0;
+    }
+
+    /** Appends a record for the given key and value, replacing any existing value for the key. */
+    void put(byte[] key, byte[] value) throws BlockStoreException {
+        checkArgument(key.length == keySize);
+        long hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (slot < 0 && (count + deleted + 1) * 4L > capacity * 3L) {
+            rehash();
+        }
+        long offset = append(key, value);
+        long entry = (hash & ~OFFSET_MASK) | (offset + 1);
+        if (slot >= 0) {
+            liveBytes -= recordSize(recordOffset(index.getLong(slotPosition(slot))));
+        } else {
+            slot = findFreeSlot(hash);
+            if (index.getLong(slotPosition(slot)) == DELETED)
+                deleted--;
+            count++;
+        }
+        index.putLong(slotPosition(slot), entry);
+        liveBytes += RECORD_HEADER_SIZE + keySize + value.length;
+        writeCounts();
+    }
+
+    /** Removes the value for the given key, returning false if there wasn't one. */
+    boolean remove(byte[] key) {
+        int slot = findSlot(key, hash(key));
+        if (slot < 0)
+            return false;
+        liveBytes -= recordSize(recordOffset(index.getLong(slotPosition(slot))));
+        index.putLong(slotPosition(slot), DELETED);
+        count--;
+        deleted++;
+        writeCounts();
+        return true;
+    }
+
+    /** Calls the visitor with every live record, in no particular order. */
+    void forEach(RecordVisitor visitor) throws BlockStoreException {
+        for (int i = 0; i < capacity; i++) {
+            long entry = index.getLong(slotPosition(i));
+            if (entry == EMPTY || entry == DELETED)
+                continue;
+            long offset = recordOffset(entry);
+            visitor.visit(readKey(offset), readValue(offset));
+        }
+    }
+
+    /**
+     * Walks the records of the data file between the given offsets, putting those that are still live into target.
+     * Stops early after maxRecords records and returns the offset to carry on from, which is end once done. The
+     * start offset must be 0 or a value returned from an earlier call.
+     */
+    long copyLiveRecords(MappedRecordTable target, long start, long end, int maxRecords) throws BlockStoreException {
+        long offset = start;
+        for (int i = 0; i < maxRecords && offset < end; i++) {
+            offset = skipUnusedSpace(offset);
+            if (offset >= end)
+                break;
+            byte[] key = readKey(offset);
+            int slot = findSlot(key, hash(key));
+            if (slot >= 0 && recordOffset(index.getLong(slotPosition(slot))) == offset)
+                target.put(key, readValue(offset));
+            offset += recordSize(offset);
+        }
+        return Math.min(offset, end);
+    }
+
+    /** The number of keys in the table. */
+    int size() {
+        return count;
+    }
+
+    /** The offset the next record will be written at. Everything before it belongs to the table. */
+    long getDataEnd() {
+        return dataEnd;
+    }
+
+    /** The bytes of the data file taken up by live records. */
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /** The bytes of the data file taken up by removed or replaced records, which a copy would get back. */
+    long getGarbageBytes() {
+        return dataEnd - liveBytes;
+    }
+
+    /** Writes everything changed since the last call through to disk. */
+    void force() {
+        for (int i = firstDirtySegment; i < segments.size(); i++)
+            segments.get(i).force();
+        firstDirtySegment = segments.size();
+        index.force();
+    }
+
+    void close() {
+        try {
+            if (data != null)
+                data.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+        data = null;
+        segments.clear();
+        index = null;
+    }
+
+    /** Closes the table and deletes its files. */
+    void delete() {
+        close();
+        dataFile.delete();
+        indexFile.delete();
+    }
+
+    private long append(byte[] key, byte[] value) throws BlockStoreException {
+        int size = RECORD_HEADER_SIZE + keySize + value.length;
+        if (size > segmentSize)
+            throw new BlockStoreException("Record of " + size + " bytes does not fit in a segment of " + segmentSize);
+        long offset = dataEnd;
+        int position = (int) (offset % segmentSize);
+        firstDirtySegment = Math.min(firstDirtySegment, (int) (offset / segmentSize));
+        if (position + size > segmentSize) {
+            // Mark the rest of this segment as unused so a scan over the log skips it, then start the next one.
+            if (segmentSize - position >= RECORD_HEADER_SIZE)
+                segment(offset).putInt(position, 0);
+            offset += segmentSize - position;
+            position = 0;
+        }
+        while (segments.size() <= offset / segmentSize)
+            addSegment();
+        MappedByteBuffer segment = segment(offset);
+        segment.position(position);
+        segment.putInt(size);
+        segment.put(key);
+        segment.put(value);
+        dataEnd = offset + size;
+        index.putLong(DATA_END_OFFSET, dataEnd);
+        return offset;
+    }
+
+    private long skipUnusedSpace(long offset) {
+        int position = (int) (offset % segmentSize);
+        if (segmentSize - position < RECORD_HEADER_SIZE || segment(offset).getInt(position) == 0)
+            return offset + segmentSize - position;
+        return offset;
+    }
+
+    private int recordSize(long offset) {
+        return segment(offset).getInt((int) (offset % segmentSize));
+    }
+
+    private byte[] readKey(long offset) {
+        MappedByteBuffer segment = segment(offset);
+        segment.position((int) (offset % segmentSize) + RECORD_HEADER_SIZE);
+        byte[] key = new byte[keySize];
+        segment.get(key);
+        return key;
+    }
+
+    private byte[] readValue(long offset) {
+        MappedByteBuffer segment = segment(offset);
+        int position = (int) (offset % segmentSize);
+        byte[] value = new byte[segment.getInt(position) - RECORD_HEADER_SIZE - keySize];
+        segment.position(position + RECORD_HEADER_SIZE + keySize);
+        segment.get(value);
+        return value;
+    }
+
+    private boolean keyEquals(long offset, byte[] key) {
+        MappedByteBuffer segment = segment(offset);
+        int position = (int) (offset % segmentSize) + RECORD_HEADER_SIZE;
+        for (int i = 0; i < keySize; i++) {
+            if (segment.get(position + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        return segments.get((int) (offset / segmentSize));
+    }
+
+    private void addSegment() throws BlockStoreException {
+        long start = (long) segments.size() * segmentSize;
+        try {
+            if (data.length() < start + segmentSize)
+                data.setLength(start + segmentSize);
+            segments.add(data.getChannel().map(FileChannel.MapMode.READ_WRITE, start, segmentSize));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns the slot holding the given key, or -1 if it isn't in the table. */
+    private int findSlot(byte[] key, long hash) {
+        long fingerprint = hash >>> OFFSET_BITS;
+        int mask = capacity - 1;
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long entry = index.getLong(slotPosition(i));
+            if (entry == EMPTY)
+                return -1;
+            if (entry != DELETED && (entry >>> OFFSET_BITS) == fingerprint && keyEquals(recordOffset(entry), key))
+                return i;
+        }
+    }
+
+    /** Returns the first empty or deleted slot on the probe path of the given hash. */
+    private int findFreeSlot(long hash) {
+        int mask = capacity - 1;
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long entry = index.getLong(slotPosition(i));
+            if (entry == EMPTY || entry == DELETED)
+                return i;
+        }
+    }
+
+    /**
+     * Builds a new index with room for twice the live keys, dropping deleted slots along the way. The new index is
+     * written to a separate file which then replaces the old one, so a crash part way through leaves the old index
+     * in place.
+     */
+    private void rehash() throws BlockStoreException {
+        int newCapacity = MIN_CAPACITY;
+        while (newCapacity < (count + 1) * 2L)
+            newCapacity *= 2;
+        File newFile = new File(indexFile.getPath() + ".new");
+        MappedByteBuffer newIndex = createIndex(newFile, newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            long entry = index.getLong(slotPosition(i));
+            if (entry == EMPTY || entry == DELETED)
+                continue;
+            long hash = hash(readKey(recordOffset(entry)));
+            int slot = (int) hash & mask;
+            while (newIndex.getLong(slotPosition(slot)) != EMPTY)
+                slot = (slot + 1) & mask;
+            newIndex.putLong(slotPosition(slot), entry);
+        }
+        capacity = newCapacity;
+        deleted = 0;
+        index = newIndex;
+        writeCounts();
+        index.putLong(DATA_END_OFFSET, dataEnd);
+        index.force();
+        if (!newFile.renameTo(indexFile))
+            throw new BlockStoreException("Could not replace " + indexFile);
+    }
+
+    private void writeCounts() {
+        index.putInt(COUNT_OFFSET, count);
+        index.putInt(DELETED_OFFSET, deleted);
+        index.putLong(LIVE_BYTES_OFFSET, liveBytes);
+    }
+
+    private static MappedByteBuffer createIndex(File file, int capacity) throws BlockStoreException {
+        try {
+            file.delete();
+            MappedByteBuffer index = map(file, indexFileSize(capacity));
+            index.put(INDEX_MAGIC.getBytes("US-ASCII"));
+            index.putInt(CAPACITY_OFFSET, capacity);
+            return index;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    private static long indexFileSize(int capacity) {
+        return INDEX_HEADER_SIZE + 8L * capacity;
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * 8;
+    }
+
+    private static long recordOffset(long entry) {
+        return (entry & OFFSET_MASK) - 1;
+    }
+
+    /**
+     * Mixes the key into 64 bits. Keys here start with a block or transaction hash, which is already random, but
+     * the whole key is folded in so that keys differing only in their tail, like the outpoints of one transaction,
+     * still spread out.
+     */
+    private static long hash(byte[] key) {
+        long h = 0;
+        ByteBuffer buf = ByteBuffer.wrap(key);
+        while (buf.remaining() >= 8)
+            h = (h ^ buf.getLong()) * 0x9E3779B97F4A7C15L;
+        while (buf.hasRemaining())
+            h = (h ^ (buf.get() & 0xFF)) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 32);
+    }
+}
@@ -114,57 +114,6 @@ class StoredTransaction implements Serializable {
     }
 }
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint implements Serializable {
-    private static final long serialVersionUID = -4064230006297064377L;
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(StoredTransactionOutput out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-    
-    public int hashCode() {
-        return this.hash.hashCode() + (int)index;
-    }
-    
-    public String toString() {
-        return "Stored transaction out point: " + hash.toString() + ":" + index;
-    }
-    
-    public boolean equals(Object o) {
-        if (!(o instanceof StoredTransactionOutPoint)) return false;
-        return ((StoredTransactionOutPoint)o).getIndex() == this.index &&
-                Objects.equal(this.getHash(), ((StoredTransactionOutPoint)o).getHash());
-    }
-}
-
 /**
  * A HashMap<KeyType, ValueType> that is DB transaction-aware
  * This class is not thread-safe.
@@ -303,6 +252,99 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
     }
 }
 
+/**
+ * A map of outpoints to unspent outputs that is DB per-thread-transaction-aware in the same way as
+ * {@link TransactionalHashMap}, but which keeps committed outputs in an {@link UnspentOutputSlab} rather than as
+ * objects. Only the changes of uncommitted batches are held as objects.
+ * This class is not thread-safe.
+ */
+class TransactionalOutputMap {
+    ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>> tempMap;
+    ThreadLocal<HashSet<StoredTransactionOutPoint>> tempSetRemoved;
+    private ThreadLocal<Boolean> inTransaction;
+
+    UnspentOutputSlab slab;
+
+    public TransactionalOutputMap() {
+        tempMap = new ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>>();
+        tempSetRemoved = new ThreadLocal<HashSet<StoredTransactionOutPoint>>();
+        inTransaction = new ThreadLocal<Boolean>();
+        slab = new UnspentOutputSlab();
+    }
+
+    public void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    public void commitDatabaseBatchWrite() {
+        if (tempSetRemoved.get() != null)
+            for (StoredTransactionOutPoint key : tempSetRemoved.get())
+                slab.remove(key.getHash(), key.getIndex());
+        if (tempMap.get() != null)
+            for (StoredTransactionOutput value : tempMap.get().values())
+                slab.put(value);
+        abortDatabaseBatchWrite();
+    }
+
+    public void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempSetRemoved.remove();
+        tempMap.remove();
+    }
+
+    public StoredTransactionOutput get(StoredTransactionOutPoint key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempMap.get() != null) {
+                StoredTransactionOutput value = tempMap.get().get(key);
+                if (value != null)
+                    return value;
+            }
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return null;
+        }
+        return slab.get(key.getHash(), key.getIndex());
+    }
+
+    public void put(StoredTransactionOutPoint key, StoredTransactionOutput value) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempSetRemoved.get() != null)
+                tempSetRemoved.get().remove(key);
+            if (tempMap.get() == null)
+                tempMap.set(new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>());
+            tempMap.get().put(key, value);
+        }else{
+            slab.put(value);
+        }
+    }
+
+    public StoredTransactionOutput remove(StoredTransactionOutPoint key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutput retVal = slab.get(key.getHash(), key.getIndex());
+            if (retVal != null) {
+                if (tempSetRemoved.get() == null)
+                    tempSetRemoved.set(new HashSet<StoredTransactionOutPoint>());
+                tempSetRemoved.get().add(key);
+            }
+            if (tempMap.get() != null) {
+                StoredTransactionOutput tempVal = tempMap.get().remove(key);
+                if (tempVal != null)
+                    return tempVal;
+            }
+            return retVal;
+        }else{
+            StoredTransactionOutput retVal = slab.get(key.getHash(), key.getIndex());
+            if (retVal != null)
+                slab.remove(key.getHash(), key.getIndex());
+            return retVal;
+        }
+    }
+
+    /** The number of bytes the committed outputs take up. */
+    public long getBytesUsed() {
+        return slab.getBytesUsed();
+    }
+}
+
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link StoredTransactionOutput}s in memory.
  * Used primarily for unit testing.
@@ -315,8 +357,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
+    private TransactionalOutputMap transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -329,7 +370,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        transactionOutputMap = new TransactionalOutputMap();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -413,6 +454,19 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
     }
 
+    public synchronized Map<StoredTransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<StoredTransactionOutPoint> outPoints) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>(outPoints.size());
+        for (StoredTransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutput out = transactionOutputMap.get(outPoint);
+            if (out != null)
+                outputs.put(outPoint, out);
+        }
+        return outputs;
+    }
+
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
         transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
@@ -442,6 +496,15 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         transactionOutputMap.abortDatabaseBatchWrite();
     }
 
+    /**
+     * Returns the number of bytes of memory taken by the committed unspent outputs. Outputs added in a batch that
+     * hasn't been committed yet are not counted.
+     */
+    public synchronized long getUnspentOutputBytes() {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        return transactionOutputMap.getBytesUsed();
+    }
+
     public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         for (int i = 0; i < numOutputs; i++)
             if (getTransactionOutput(hash, i) != null)
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <p>A memory mapped hash table from block hash to where the block is in the ring of an {@link SPVBlockStore}, kept
+ * in a file next to the ring so that looking a block up doesn't mean walking the whole ring.</p>
+ *
+ * <p>The table uses open addressing with linear probing. Each slot is a long holding a 32 bit fingerprint of the
+ * block hash above the offset of the record in the ring file, or zero if the slot is empty. Records only ever leave
+ * the ring by being overwritten, at which point their slot is removed by shifting the rest of its probe run back, so
+ * the table never fills up with deleted slots. It is sized for twice as many slots as the ring has records.</p>
+ *
+ * <p>The ring is the real data and the index can always be rebuilt from it. The file is marked as in use while it's
+ * open, so an index that wasn't closed cleanly is rebuilt the next time the store is opened.</p>
+ *
+ * <p>Lookups may run alongside a writer, in which case they can miss or return a stale offset. The store checks its
+ * write sequence to catch that, as it does for the records themselves. Writes need the store lock.</p>
+ */
+class SPVBlockIndex {
+    private static final Logger log = LoggerFactory.getLogger(SPVBlockIndex.class);
+
+    static final String INDEX_MAGIC = "SPVI";
+
+    // File format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes clean flag, 1 if the index was closed cleanly and 0 while it's open
+    //   4 bytes number of slots
+    //   4 bytes reserved
+    //   8 bytes per slot
+    private static final int CLEAN_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEADER_BYTES = 16;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final boolean needsRebuild;
+
+    /**
+     * Opens the index in the given file, creating it if needed, with room for a ring of the given number of records.
+     * If the file is new, or wasn't closed cleanly, or is the wrong size, it's emptied and {@link #needsRebuild()}
+     * returns true.
+     */
+    SPVBlockIndex(File indexFile, int numHeaders) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(numHeaders, 8) * 2 - 1) * 2;
+        long size = HEADER_BYTES + 8L * capacity;
+        file = new RandomAccessFile(indexFile, "rw");
+        boolean valid;
+        try {
+            valid = file.length() == size;
+            if (!valid)
+                file.setLength(size);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            byte[] magic = new byte[4];
+            buffer.get(magic);
+            valid = valid && Arrays.equals(magic, INDEX_MAGIC.getBytes("US-ASCII")) &&
+                    buffer.getInt(CLEAN_OFFSET) == 1 && buffer.getInt(CAPACITY_OFFSET) == capacity;
+            if (!valid) {
+                log.info("Rebuilding the block index in " + indexFile);
+                clear();
+                buffer.position(0);
+                buffer.put(INDEX_MAGIC.getBytes("US-ASCII"));
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+            }
+            buffer.putInt(CLEAN_OFFSET, 0);
+            buffer.force();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        this.capacity = capacity;
+        this.needsRebuild = !valid;
+    }
+
+    /** The file an index for the given ring file lives in. */
+    static File indexFileFor(File ringFile) {
+        return new File(ringFile.getPath() + ".idx");
+    }
+
+    /** True if the index was emptied when it was opened, and must be refilled from the ring with {@link #rebuild}. */
+    boolean needsRebuild() {
+        return needsRebuild;
+    }
+
+    /**
+     * Returns the offset in the ring of the record for the given hash, or -1 if there is none. The ring view is used
+     * to check the full hash, in place.
+     */
+    int find(ByteBuffer ring, byte[] hash) {
+        return find(ring, fingerprint(hash), hash, -1);
+    }
+
+    /**
+     * Finds the record for a hash that's either given, or if that's null, is the one of the record at hashOffset in
+     * the ring. Comparing against the ring where it's mapped saves copying each record looked at out of it.
+     */
+    private int find(ByteBuffer ring, int fingerprint, byte[] hash, int hashOffset) {
+        int mask = capacity - 1;
+        for (int slot = fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long entry = buffer.getLong(HEADER_BYTES + 8 * slot);
+            if (entry == 0)
+                return -1;
+            if ((int) (entry >>> 32) != fingerprint)
+                continue;
+            int offset = (int) entry;
+            if (hash != null ? hashAt(ring, offset, hash) : sameHash(ring, offset, hashOffset))
+                return offset;
+        }
+    }
+
+    /** Points the given hash at the record at the given offset, replacing any older record of the same block. */
+    void add(ByteBuffer ring, byte[] hash, int offset) {
+        int fingerprint = fingerprint(hash);
+        put(fingerprint, find(ring, fingerprint, hash, -1), offset);
+    }
+
+    /** Points the hash of the record at the given offset at it, replacing any older record of the same block. */
+    private void add(ByteBuffer ring, int offset) {
+        int fingerprint = fingerprint(ring, offset);
+        put(fingerprint, find(ring, fingerprint, null, offset), offset);
+    }
+
+    private void put(int fingerprint, int existing, int offset) {
+        int mask = capacity - 1;
+        int slot = fingerprint & mask;
+        while (true) {
+            long entry = buffer.getLong(HEADER_BYTES + 8 * slot);
+            if (entry == 0 || (int) entry == existing)
+                break;
+            slot = (slot + 1) & mask;
+        }
+        buffer.putLong(HEADER_BYTES + 8 * slot, ((long) fingerprint << 32) | (offset & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Removes the record at the given offset, which is about to be overwritten, from the index. Does nothing if the
+     * record is empty, or if a newer copy of the same block is what the index points at.
+     */
+    void remove(ByteBuffer ring, int offset) {
+        int fingerprint = fingerprint(ring, offset);
+        int mask = capacity - 1;
+        int hole = -1;
+        for (int slot = fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long entry = buffer.getLong(HEADER_BYTES + 8 * slot);
+            if (entry == 0)
+                return;  // Not indexed, for instance because the record was never written.
+            if ((int) entry == offset) {
+                hole = slot;
+                break;
+            }
+        }
+        // Move back any later entries of the probe run which would no longer be reachable past the hole.
+        for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+            long entry = buffer.getLong(HEADER_BYTES + 8 * slot);
+            if (entry == 0)
+                break;
+            int home = (int) (entry >>> 32) & mask;
+            boolean reachable = hole <= slot ? (home > hole && home <= slot) : (home > hole || home <= slot);
+            if (!reachable) {
+                buffer.putLong(HEADER_BYTES + 8 * hole, entry);
+                hole = slot;
+            }
+        }
+        buffer.putLong(HEADER_BYTES + 8 * hole, 0);
+    }
+
+    /**
+     * Indexes every record of the ring, oldest first so the newest copy of a block wins. The cursor is where the
+     * next record would be written, and so is also where the oldest one is once the ring has wrapped.
+     */
+    void rebuild(ByteBuffer ring, int cursor, int firstRecord, int endOfRing, int recordSize) {
+        clear();
+        int offset = cursor;
+        for (int i = 0; i < (endOfRing - firstRecord) / recordSize; i++) {
+            if (offset >= endOfRing)
+                offset = firstRecord;
+            if (!isEmpty(ring, offset))
+                add(ring, offset);
+            offset += recordSize;
+        }
+    }
+
+    /** Flushes the index to disk and marks it as cleanly closed. */
+    void close() throws IOException {
+        buffer.force();
+        buffer.putInt(CLEAN_OFFSET, 1);
+        buffer.force();
+        file.close();
+    }
+
+    private void clear() {
+        for (int slot = 0; slot < capacity; slot++)
+            buffer.putLong(HEADER_BYTES + 8 * slot, 0);
+    }
+
+    private static boolean isEmpty(ByteBuffer ring, int offset) {
+        for (int i = 0; i < 32; i += 8) {
+            if (ring.getLong(offset + i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean hashAt(ByteBuffer ring, int offset, byte[] hash) {
+        for (int i = 0; i < 32; i++) {
+            if (ring.get(offset + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean sameHash(ByteBuffer ring, int offset, int otherOffset) {
+        for (int i = 0; i < 32; i += 8) {
+            if (ring.getLong(offset + i) != ring.getLong(otherOffset + i))
+                return false;
+        }
+        return true;
+    }
+
+    /** The last four bytes of the hash, which unlike the first ones are not mostly zeros, mixed up a bit. */
+    private static int fingerprint(byte[] hash) {
+        int h = ((hash[28] & 0xFF) << 24) | ((hash[29] & 0xFF) << 16) | ((hash[30] & 0xFF) << 8) | (hash[31] & 0xFF);
+        return mix(h);
+    }
+
+    /** The fingerprint of the hash of the record at the given offset in the ring, read where it's mapped. */
+    private static int fingerprint(ByteBuffer ring, int offset) {
+        int h = ((ring.get(offset + 28) & 0xFF) << 24) | ((ring.get(offset + 29) & 0xFF) << 16) |
+                ((ring.get(offset + 30) & 0xFF) << 8) | (ring.get(offset + 31) & 0xFF);
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -19,6 +19,8 @@ package com.google.anoncoin.store;
 import com.google.anoncoin.core.*;
 import com.google.anoncoin.utils.Locks;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,9 +31,7 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -39,22 +39,43 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Blocks are found in the ring through a hash index kept in a second file, named after the first with ".idx"
+ * on the end. The index is rebuilt from the ring if it's missing or wasn't closed cleanly. As lookups don't get
+ * slower as the ring gets bigger, the ring can be made as big as needed to survive deep re-orgs, or to keep the
+ * whole header chain, either when the store is created or later on with {@link #grow(int)}.</p>
+ *
+ * <p>Only writers take the lock. Readers never wait for a writer: they read the ring through their own view of the
+ * buffer and use the write sequence to notice, and retry, a lookup that raced with a put.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
+    /** The most headers the ring buffer can hold, as the file must be small enough to map in one go. */
+    public static final int MAX_NUM_HEADERS =
+            (Integer.MAX_VALUE - SPVBlockStore.FILE_PROLOGUE_BYTES) / SPVBlockStore.RECORD_SIZE;
     public static final String HEADER_MAGIC = "SPVB";
 
     protected volatile MappedByteBuffer buffer;
-    protected int numHeaders;
+    protected volatile SPVBlockIndex index;
+    protected File indexFile;
+    protected volatile int numHeaders;
     protected NetworkParameters params;
 
+    // Held by writers only.
     protected ReentrantLock lock = Locks.lock("SPVBlockStore");
+    // Odd while a put is writing to the ring, and incremented again once it's done, so a reader that saw the same
+    // even value before and after scanning the ring knows nothing moved under it. Readers check it again by setting
+    // it to what they saw: unlike a volatile read, the reads of the ring can't be moved after that, and it comes
+    // either before the writer's first increment, and so before anything the writer puts in the ring, or it fails.
+    protected final AtomicInteger writeSequence = new AtomicInteger();
+    // How many times a reader retries a scan that raced with writers before waiting for the lock instead.
+    private static final int MAX_OPTIMISTIC_READS = 3;
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -63,49 +84,62 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    //
+    // They are striped concurrent caches, so that readers on different threads don't serialize on them the way they
+    // would on an access ordered LinkedHashMap, which writes on every get.
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final StoredBlock notFoundMarker = new StoredBlock(null, null, -1);
-    protected LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected Cache<Sha256Hash, StoredBlock> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store. Will create the given file if it's missing, with room for
+     * {@link #DEFAULT_NUM_HEADERS} headers, and otherwise keeps the size it has. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS, false);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing. An existing file with room for fewer headers is grown to the given capacity, keeping the
+     * headers it has, and one with room for more is left as it is. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
+        this(params, file, capacity, true);
+    }
+
+    private SPVBlockStore(NetworkParameters params, File file, int capacity, boolean growExisting)
+            throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(capacity > 0 && capacity <= MAX_NUM_HEADERS, "Capacity out of range: %s", capacity);
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
-            long fileSize = getFileSize();
             if (!exists) {
+                this.numHeaders = capacity;
                 log.info("Creating new SPV block chain file " + file);
-                randomAccessFile.setLength(fileSize);
-            } else if (randomAccessFile.length() != fileSize) {
-                throw new BlockStoreException("File size on disk does not match expected size: " +
-                        randomAccessFile.length() + " vs " + fileSize);
+                randomAccessFile.setLength(getFileSize());
+            } else {
+                long length = randomAccessFile.length();
+                if (length < FILE_PROLOGUE_BYTES + RECORD_SIZE || (length - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+                    throw new BlockStoreException("File size on disk is not a whole number of records: " + length);
+                this.numHeaders = (int) ((length - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
             }
+            long fileSize = getFileSize();
 
             FileChannel channel = randomAccessFile.getChannel();
             fileLock = channel.tryLock();
@@ -126,11 +160,21 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
-            } else {
-                initNewStore(params);
             }
+            // An index left behind by a ring file that has since been deleted describes some other ring.
+            indexFile = SPVBlockIndex.indexFileFor(file);
+            if (!exists && indexFile.exists() && !indexFile.delete())
+                throw new BlockStoreException("Could not delete old index " + indexFile);
+            index = new SPVBlockIndex(indexFile, numHeaders);
+            if (!exists)
+                initNewStore(params);
+            else if (index.needsRebuild())
+                index.rebuild(buffer.duplicate(), getRingCursor(buffer), FILE_PROLOGUE_BYTES, getFileSize(), RECORD_SIZE);
+            if (growExisting && capacity > numHeaders)
+                grow(capacity);
         } catch (Exception e) {
             try {
+                if (index != null) index.close();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -162,77 +206,228 @@ public class SPVBlockStore implements BlockStore {
     }
 
     public void put(StoredBlock block) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
-
         lock.lock();
         try {
+            // Read under the lock, as grow() may have swapped it for a bigger one.
+            final MappedByteBuffer buffer = getBuffer();
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
+            Sha256Hash evicted = null;
+            if (!isEmptyRecord(buffer, cursor)) {
+                byte[] evictedHash = new byte[32];
+                buffer.position(cursor);
+                buffer.get(evictedHash);
+                evicted = new Sha256Hash(evictedHash);
+            }
+            writeSequence.incrementAndGet();
+            try {
+                // Forget the block that's about to be overwritten, if the ring has wrapped.
+                index.remove(buffer, cursor);
+                buffer.position(cursor);
+                buffer.put(hash.getBytes());
+                block.serializeCompact(buffer);
+                setRingCursor(buffer, buffer.position());
+                index.add(buffer, hash.getBytes(), cursor);
+            } finally {
+                writeSequence.incrementAndGet();
+            }
+            // The cache may be bigger than the ring, so it mustn't outlive the record.
+            if (evicted != null)
+                blockCache.invalidate(evicted);
             blockCache.put(hash, block);
+            // Only once the sequence has moved on, so a reader caching a miss at the same time either sees the new
+            // sequence and drops its miss, or has it removed here.
+            notFoundCache.invalidate(hash);
         } finally { lock.unlock(); }
     }
 
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        getBuffer();
+
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
+
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+            int sequence = writeSequence.get();
+            if ((sequence & 1) != 0) {
+                // A put is half way through writing.
+                Thread.yield();
+                continue;
+            }
+            // A view of our own, as the position of the shared buffer belongs to the writer. It's taken after reading
+            // the sequence, so that it's the buffer in use as of that sequence if grow() has remapped the file.
+            ByteBuffer view = getBuffer().duplicate();
+            StoredBlock storedBlock;
+            try {
+                storedBlock = scan(view, hash);
+            } catch (RuntimeException e) {
+                // Reading a record as it was being overwritten can produce garbage.
+                if (!writeSequence.compareAndSet(sequence, sequence))
+                    continue;
+                throw e;
+            }
+            if (!writeSequence.compareAndSet(sequence, sequence))
+                continue;
+            return cacheResult(hash, storedBlock, sequence);
+        }
+        // Writers kept getting in the way, so wait for them like a writer would.
+        lock.lock();
+        try {
+            return cacheResult(hash, scan(getBuffer().duplicate(), hash), writeSequence.get());
+        } finally { lock.unlock(); }
+    }
+
+    private MappedByteBuffer getBuffer() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
+        return buffer;
+    }
+
+    /**
+     * Grows the ring buffer so that it holds the given number of headers, keeping the headers it already has. The
+     * file is extended and mapped again, and the index rebuilt, without having to download any headers again. Other
+     * threads can carry on reading while this runs, but writers wait for it.
+     *
+     * <p>If the store is closed part of the way through, for instance by a crash, it's left bigger and the index is
+     * rebuilt when it's next opened, but no headers are lost.</p>
+     */
+    public void grow(int newCapacity) throws BlockStoreException {
+        checkArgument(newCapacity <= MAX_NUM_HEADERS, "Capacity out of range: %s", newCapacity);
 
         lock.lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
+            // Read under the lock, as another grow() may have swapped it for a bigger one.
+            final MappedByteBuffer buffer = getBuffer();
+            checkArgument(newCapacity >= numHeaders, "Cannot shrink the store from %s to %s headers", numHeaders,
+                    newCapacity);
+            if (newCapacity == numHeaders)
+                return;
+            log.info("Growing SPV block store from {} to {} headers", numHeaders, newCapacity);
+            writeSequence.incrementAndGet();
+            try {
+                int oldFileSize = getFileSize();
+                int cursor = getRingCursor(buffer);
+                int fileSize = FILE_PROLOGUE_BYTES + RECORD_SIZE * newCapacity;
+                // The file is extended before anything is moved. Until the records are moved the new room is empty
+                // records after the oldest ones, which is a ring that can still be read.
+                randomAccessFile.setLength(fileSize);
+                MappedByteBuffer newBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        fileSize);
+                if (cursor < oldFileSize && !isEmptyRecord(newBuffer, oldFileSize - RECORD_SIZE)) {
+                    // There are older records after the cursor, so the new room has to go between them and it.
+                    moveUp(newBuffer, cursor, oldFileSize, fileSize - oldFileSize);
                 }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
+                // The index is sized for the ring, so a new one is built in a file of its own. The old one stays in
+                // place until the new one is complete, so if building it fails the store still has an index to use.
+                // Readers still using the old one retry once they see the sequence has moved.
+                File newIndexFile = new File(indexFile.getPath() + ".new");
+                if (newIndexFile.exists() && !newIndexFile.delete())
+                    throw new BlockStoreException("Could not delete old index " + newIndexFile);
+                SPVBlockIndex newIndex = new SPVBlockIndex(newIndexFile, newCapacity);
+                try {
+                    newIndex.rebuild(newBuffer.duplicate(), cursor, FILE_PROLOGUE_BYTES, fileSize, RECORD_SIZE);
+                } catch (RuntimeException e) {
+                    newIndex.close();
+                    newIndexFile.delete();
+                    throw e;
                 }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+                SPVBlockIndex oldIndex = index;
+                index = newIndex;
+                numHeaders = newCapacity;
+                this.buffer = newBuffer;
+                oldIndex.close();
+                // Without the old file out of the way, the next open finds no index and rebuilds it from the ring.
+                if (!indexFile.delete() || !newIndexFile.renameTo(indexFile))
+                    log.warn("Could not move the new block index to " + indexFile);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                writeSequence.incrementAndGet();
+            }
+        } finally { lock.unlock(); }
+    }
+
+    /** The number of headers the ring buffer holds. */
+    public int getCapacity() {
+        return numHeaders;
+    }
+
+    private static boolean isEmptyRecord(ByteBuffer buffer, int offset) {
+        for (int i = 0; i < 32; i++) {
+            if (buffer.get(offset + i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves the records from the cursor to the end up by the given number of bytes, into the room added at the end,
+     * leaving the room after the cursor. It's done from the end a chunk at a time, each no bigger than the distance
+     * moved, and each forced to disk before the next overwrites where it came from. So however far it got, every
+     * record is somewhere in the ring, and the copy that comes later, which the index goes by, is a whole one. The
+     * records left behind are overwritten by puts like any other old record.
+     */
+    private static void moveUp(MappedByteBuffer buffer, int cursor, int end, int distance) {
+        byte[] chunk = new byte[Math.min(distance, 256 * RECORD_SIZE)];
+        int from = end;
+        while (from > cursor) {
+            int length = Math.min(chunk.length, from - cursor);
+            from -= length;
+            buffer.position(from);
+            buffer.get(chunk, 0, length);
+            buffer.position(from + distance);
+            buffer.put(chunk, 0, length);
+            buffer.force();
+        }
+    }
+
+    private StoredBlock cacheResult(Sha256Hash hash, StoredBlock storedBlock, int sequence) {
+        if (storedBlock != null) {
+            blockCache.put(hash, storedBlock);
+            // The block may have been overwritten since we scanned, and dropped from the cache before we added it.
+            if (writeSequence.get() != sequence)
+                blockCache.invalidate(hash);
+            return storedBlock;
+        }
+        notFoundCache.put(hash, notFoundMarker);
+        // A put of this block may have finished since we scanned, and have removed the miss from the cache before
+        // we added it.
+        if (writeSequence.get() != sequence)
+            notFoundCache.invalidate(hash);
+        return null;
+    }
+
+    /** Looks the given block up in the ring. The result may be torn or missing if a put raced. */
+    private StoredBlock scan(ByteBuffer view, Sha256Hash hash) {
+        try {
+            int offset = index.find(view, hash.getBytes());
+            if (offset < 0)
+                return null;
+            view.position(offset + 32);
+            return StoredBlock.deserializeCompact(params, view);
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        getBuffer();
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
+            final MappedByteBuffer buffer = getBuffer();
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
                 buffer.position(8);
@@ -245,11 +440,9 @@ public class SPVBlockStore implements BlockStore {
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
-
         lock.lock();
         try {
+            final MappedByteBuffer buffer = getBuffer();
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
@@ -262,6 +455,7 @@ public class SPVBlockStore implements BlockStore {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
+            index.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
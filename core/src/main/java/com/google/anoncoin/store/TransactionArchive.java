@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.NetworkParameters;
+import com.google.anoncoin.core.Sha256Hash;
+import com.google.anoncoin.core.Transaction;
+import com.google.anoncoin.core.TransactionOutput;
+import com.google.anoncoin.core.WalletTransaction;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.anoncoinj.wallet.Protos;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * <p>A cold tier for the transactions of a wallet: spent transactions that are buried too deep to ever change again,
+ * kept on disk rather than on the heap, so the wallet keeps its whole history without the cost of holding it. See
+ * {@link com.google.anoncoin.core.Wallet#archiveSpentTransactions(int)}.</p>
+ *
+ * <p>The transactions are stored in a {@link MappedRecordTable} keyed by hash, each as it would be written to the
+ * wallet file together with the height of the chain when it was archived. A transaction read back is a new copy
+ * each time, built from that record. Its outputs are marked as spent but not connected to the inputs that spent them,
+ * and it doesn't follow the chain: its depth counts the blocks the wallet has seen since it was archived, while its
+ * work done is as it was then.</p>
+ *
+ * <p>To list the transactions by time without reading them all, the archive keeps the update time and hash of each
+ * one in memory, which is a small fraction of what the transaction itself would take.</p>
+ *
+ * <p>Not thread safe: the wallet guards all access with its own lock.</p>
+ */
+public class TransactionArchive {
+    private final NetworkParameters params;
+    private final MappedRecordTable table;
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    // Newest first, as the wallet lists its transactions.
+    private final ConcurrentSkipListSet<TimeKey> byTime = new ConcurrentSkipListSet<TimeKey>();
+
+    /**
+     * Opens the archive kept in the given file and an index file next to it, creating them if they don't exist yet.
+     */
+    public TransactionArchive(NetworkParameters params, File file) throws IOException {
+        this.params = params;
+        try {
+            table = new MappedRecordTable(file, new File(file.getPath() + ".index"), 32,
+                    MappedRecordTable.DEFAULT_SEGMENT_SIZE);
+            table.forEach(new MappedRecordTable.RecordVisitor() {
+                public void visit(byte[] key, byte[] value) {
+                    byTime.add(new TimeKey(ByteBuffer.wrap(value).getLong(), new Sha256Hash(key)));
+                }
+            });
+        } catch (BlockStoreException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Adds the given spent transaction, which the wallet has seen buried in a chain of the given height. It isn't
+     * safely on disk until {@link #force()} is called.
+     */
+    public void add(Transaction tx, int height) throws IOException {
+        byte[] txBytes = WalletProtobufSerializer.makeTxProto(new WalletTransaction(WalletTransaction.Pool.SPENT, tx))
+                .toByteArray();
+        long time = tx.getUpdateTime().getTime();
+        byte[] old = table.get(tx.getHash().getBytes());
+        if (old != null)
+            byTime.remove(new TimeKey(ByteBuffer.wrap(old).getLong(), tx.getHash()));
+        ByteBuffer value = ByteBuffer.allocate(12 + txBytes.length);
+        value.putLong(time).putInt(height).put(txBytes);
+        try {
+            table.put(tx.getHash().getBytes(), value.array());
+        } catch (BlockStoreException e) {
+            throw new IOException(e);
+        }
+        byTime.add(new TimeKey(time, tx.getHash()));
+    }
+
+    /** Returns true if the archive holds the transaction with the given hash. */
+    public boolean contains(Sha256Hash hash) {
+        return table.contains(hash.getBytes());
+    }
+
+    /**
+     * Returns a copy of the archived transaction with the given hash, or null if it isn't in the archive. Its depth
+     * counts the blocks between the given height and the height it was archived at.
+     */
+    public Transaction get(Sha256Hash hash, int height) {
+        byte[] value = table.get(hash.getBytes());
+        return value == null ? null : read(value, height);
+    }
+
+    /** Returns the number of transactions in the archive. */
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Returns the archived transactions, newest first, read one at a time as the iterator gets to them. Transactions
+     * archived while iterating may or may not be included.
+     */
+    public Iterator<Transaction> getTransactionsByTime(final int height) {
+        final Iterator<TimeKey> keys = byTime.iterator();
+        return new AbstractIterator<Transaction>() {
+            @Override
+            protected Transaction computeNext() {
+                while (keys.hasNext()) {
+                    Transaction tx = get(keys.next().hash, height);
+                    if (tx != null)
+                        return tx;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /** Writes everything added since the last call through to disk. */
+    public void force() {
+        table.force();
+    }
+
+    public void close() {
+        table.close();
+    }
+
+    private Transaction read(byte[] value, int height) {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        buffer.getLong();
+        int archivedAt = buffer.getInt();
+        Protos.Transaction txProto;
+        try {
+            txProto = Protos.Transaction.parseFrom(ByteString.copyFrom(buffer));
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Damaged transaction in archive", e);
+        }
+        txProto = WalletProtobufSerializer.buryUnder(txProto, Math.max(0, height - archivedAt), BigInteger.ZERO);
+        try {
+            serializer.readTransaction(txProto, params);
+            Transaction tx = serializer.txMap.get(txProto.getHash());
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                TransactionOutput output = tx.getOutputs().get(i);
+                if (txProto.getTransactionOutput(i).hasSpentByTransactionHash())
+                    output.markAsSpent(null);
+            }
+            if (txProto.hasConfidence())
+                serializer.readConfidence(tx, txProto.getConfidence(), tx.getConfidence());
+            return tx;
+        } finally {
+            serializer.txMap.clear();
+        }
+    }
+
+    private static class TimeKey implements Comparable<TimeKey> {
+        final long time;
+        final Sha256Hash hash;
+
+        TimeKey(long time, Sha256Hash hash) {
+            this.time = time;
+            this.hash = hash;
+        }
+
+        public int compareTo(TimeKey other) {
+            if (time != other.time)
+                return time > other.time ? -1 : 1;
+            return UnsignedBytes.lexicographicalComparator().compare(hash.getBytes(), other.hash.getBytes());
+        }
+    }
+}
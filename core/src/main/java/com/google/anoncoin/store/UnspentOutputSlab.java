@@ -0,0 +1,285 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.Sha256Hash;
+import com.google.anoncoin.core.StoredTransactionOutput;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A hash table of unspent outputs that holds no object per output. Outputs are packed one after another into
+ * large byte[] pages, and an open addressing long[] maps each outpoint to where its output is. An output costs its
+ * serialized size plus a slot or two, rather than the several objects (and their headers and pointers) that a
+ * HashMap of {@link StoredTransactionOutput}s takes, and the garbage collector sees a handful of big arrays.</p>
+ *
+ * <p>Removing an output leaves a hole in its page. Once holes take up more room than outputs, the live outputs are
+ * copied into fresh pages.</p>
+ *
+ * <p>Plain arrays are used rather than direct buffers, as ByteBuffer access is very slow on Android (see the notes
+ * in {@link SPVBlockStore}).</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class UnspentOutputSlab {
+    static final int PAGE_SIZE = 1024 * 1024;
+    private static final int MIN_CAPACITY = 1024;
+
+    // A slot is empty, deleted, or holds the top 16 bits of the outpoint hash above the record offset plus one.
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int OFFSET_BITS = 48;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    // Record layout: transaction hash, output index, height, value, script length and script.
+    private static final int HASH_OFFSET = 0;
+    private static final int INDEX_OFFSET = 32;
+    private static final int HEIGHT_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+    private static final int SCRIPT_LENGTH_OFFSET = 48;
+    private static final int SCRIPT_OFFSET = 52;
+
+    private long[] slots;
+    private int count;
+    private int deleted;
+
+    private List<byte[]> pages = new ArrayList<byte[]>();
+    private long writeEnd;
+    private long liveBytes;
+
+    UnspentOutputSlab() {
+        slots = new long[MIN_CAPACITY];
+    }
+
+    /** Returns the output at the given outpoint, or null if there is none. */
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        int slot = findSlot(hash.getBytes(), (int) index);
+        if (slot < 0)
+            return null;
+        long offset = recordOffset(slots[slot]);
+        byte[] page = page(offset);
+        int position = (int) (offset % PAGE_SIZE);
+        int height = readInt(page, position + HEIGHT_OFFSET);
+        long value = readLong(page, position + VALUE_OFFSET);
+        byte[] scriptBytes = new byte[readInt(page, position + SCRIPT_LENGTH_OFFSET)];
+        System.arraycopy(page, position + SCRIPT_OFFSET, scriptBytes, 0, scriptBytes.length);
+        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(value), height, true, scriptBytes);
+    }
+
+    /** Adds the given output, replacing any output already at its outpoint. */
+    void put(StoredTransactionOutput out) {
+        byte[] hash = out.getHash().getBytes();
+        int index = (int) out.getIndex();
+        int slot = findSlot(hash, index);
+        if (slot < 0 && (count + deleted + 1) * 4L > slots.length * 3L)
+            rehash();
+        byte[] scriptBytes = out.getScriptBytes();
+        int size = SCRIPT_OFFSET + scriptBytes.length;
+        long offset = allocate(size);
+        byte[] page = page(offset);
+        int position = (int) (offset % PAGE_SIZE);
+        System.arraycopy(hash, 0, page, position + HASH_OFFSET, 32);
+        writeInt(page, position + INDEX_OFFSET, index);
+        writeInt(page, position + HEIGHT_OFFSET, out.getHeight());
+        writeLong(page, position + VALUE_OFFSET, out.getValue().longValue());
+        writeInt(page, position + SCRIPT_LENGTH_OFFSET, scriptBytes.length);
+        System.arraycopy(scriptBytes, 0, page, position + SCRIPT_OFFSET, scriptBytes.length);
+        long hashCode = hash(hash, index);
+        if (slot >= 0) {
+            liveBytes -= recordSize(recordOffset(slots[slot]));
+        } else {
+            slot = findFreeSlot(hashCode);
+            if (slots[slot] == DELETED)
+                deleted--;
+            count++;
+        }
+        slots[slot] = (hashCode & ~OFFSET_MASK) | (offset + 1);
+        liveBytes += size;
+    }
+
+    /** Removes the output at the given outpoint, returning false if there wasn't one. */
+    boolean remove(Sha256Hash hash, long index) {
+        int slot = findSlot(hash.getBytes(), (int) index);
+        if (slot < 0)
+            return false;
+        liveBytes -= recordSize(recordOffset(slots[slot]));
+        slots[slot] = DELETED;
+        count--;
+        deleted++;
+        if (writeEnd - liveBytes > Math.max(liveBytes, 4L * PAGE_SIZE))
+            compact();
+        return true;
+    }
+
+    /** The number of outputs held. */
+    int size() {
+        return count;
+    }
+
+    /** The number of bytes allocated for the slots and pages, which is nearly all the memory the table takes. */
+    long getBytesUsed() {
+        long bytes = 8L * slots.length;
+        for (byte[] page : pages)
+            bytes += page.length;
+        return bytes;
+    }
+
+    private long allocate(int size) {
+        long offset = writeEnd;
+        int position = (int) (offset % PAGE_SIZE);
+        if (offset == (long) pages.size() * PAGE_SIZE || position + size > PAGE_SIZE) {
+            // Start a new page. Scripts are limited by the block size, but an output too big for a page gets a page
+            // of its own that is as big as it needs to be.
+            offset = (long) pages.size() * PAGE_SIZE;
+            pages.add(new byte[Math.max(size, PAGE_SIZE)]);
+            if (size > PAGE_SIZE) {
+                writeEnd = offset + PAGE_SIZE;
+                return offset;
+            }
+        }
+        writeEnd = offset + size;
+        return offset;
+    }
+
+    /** Copies the live records into new pages, in slot order, and points the slots at the copies. */
+    private void compact() {
+        List<byte[]> oldPages = pages;
+        pages = new ArrayList<byte[]>();
+        writeEnd = 0;
+        for (int i = 0; i < slots.length; i++) {
+            long entry = slots[i];
+            if (entry == EMPTY || entry == DELETED)
+                continue;
+            long oldOffset = recordOffset(entry);
+            byte[] oldPage = oldPages.get((int) (oldOffset / PAGE_SIZE));
+            int oldPosition = (int) (oldOffset % PAGE_SIZE);
+            int size = SCRIPT_OFFSET + readInt(oldPage, oldPosition + SCRIPT_LENGTH_OFFSET);
+            long offset = allocate(size);
+            System.arraycopy(oldPage, oldPosition, page(offset), (int) (offset % PAGE_SIZE), size);
+            slots[i] = (entry & ~OFFSET_MASK) | (offset + 1);
+        }
+    }
+
+    /** Builds a new slot array with room for twice the outputs held, dropping deleted slots. */
+    private void rehash() {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (count + 1) * 2L)
+            capacity *= 2;
+        long[] newSlots = new long[capacity];
+        int mask = capacity - 1;
+        for (long entry : slots) {
+            if (entry == EMPTY || entry == DELETED)
+                continue;
+            long offset = recordOffset(entry);
+            byte[] page = page(offset);
+            int position = (int) (offset % PAGE_SIZE);
+            int slot = (int) hash(page, position, readInt(page, position + INDEX_OFFSET)) & mask;
+            while (newSlots[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            newSlots[slot] = entry;
+        }
+        slots = newSlots;
+        deleted = 0;
+    }
+
+    /** Returns the slot holding the given outpoint, or -1. */
+    private int findSlot(byte[] hash, int index) {
+        long hashCode = hash(hash, index);
+        long fingerprint = hashCode >>> OFFSET_BITS;
+        int mask = slots.length - 1;
+        for (int i = (int) hashCode & mask; ; i = (i + 1) & mask) {
+            long entry = slots[i];
+            if (entry == EMPTY)
+                return -1;
+            if (entry != DELETED && (entry >>> OFFSET_BITS) == fingerprint && keyEquals(recordOffset(entry), hash, index))
+                return i;
+        }
+    }
+
+    private int findFreeSlot(long hashCode) {
+        int mask = slots.length - 1;
+        for (int i = (int) hashCode & mask; ; i = (i + 1) & mask) {
+            if (slots[i] == EMPTY || slots[i] == DELETED)
+                return i;
+        }
+    }
+
+    private boolean keyEquals(long offset, byte[] hash, int index) {
+        byte[] page = page(offset);
+        int position = (int) (offset % PAGE_SIZE);
+        if (readInt(page, position + INDEX_OFFSET) != index)
+            return false;
+        for (int i = 0; i < 32; i++) {
+            if (page[position + HASH_OFFSET + i] != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int recordSize(long offset) {
+        return SCRIPT_OFFSET + readInt(page(offset), (int) (offset % PAGE_SIZE) + SCRIPT_LENGTH_OFFSET);
+    }
+
+    private byte[] page(long offset) {
+        return pages.get((int) (offset / PAGE_SIZE));
+    }
+
+    private static long recordOffset(long entry) {
+        return (entry & OFFSET_MASK) - 1;
+    }
+
+    private static long hash(byte[] hash, int index) {
+        return hash(hash, 0, index);
+    }
+
+    /**
+     * Transaction hashes are already random, so the first eight bytes of one mixed with the output index make a
+     * good hash of the outpoint.
+     */
+    private static long hash(byte[] bytes, int offset, int index) {
+        long h = readLong(bytes, offset) ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        return h ^ (h >>> 33);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) |
+               ((bytes[offset + 1] & 0xFF) << 16) |
+               ((bytes[offset + 2] & 0xFF) << 8) |
+               (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+}
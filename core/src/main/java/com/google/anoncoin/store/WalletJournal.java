@@ -0,0 +1,298 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import org.anoncoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only record of the changes made to a wallet since it was last written out in full, kept in a file next
+ * to the wallet file, so that saving a large wallet after each block costs about as much as what the block changed.
+ * See {@link com.google.anoncoin.core.Wallet#setAutosaveJournal(long)}.</p>
+ *
+ * <p>Each record is a {@link Protos.Wallet} holding just the transactions that changed, in full, and the keys that
+ * were added, as made by {@link WalletProtobufSerializer#walletChangesToProto}, together with how far the chain tip
+ * had moved since the checkpoint. Transactions in the chain that weren't written again are buried under the blocks
+ * added since they were, so a new block only has to be recorded as a last seen block and a tip.</p>
+ *
+ * <p>A checkpoint writes the whole wallet tagged with a random generation in an extension, and starts an empty
+ * journal of the same generation. A journal is only played back onto the wallet file of its own generation, so one
+ * left over from before the wallet file was replaced is ignored, and a record that was cut short by a crash ends the
+ * journal.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The id of the wallet extension that holds the generation of the journal that goes with the wallet file. */
+    public static final String EXTENSION_ID = "org.anoncoinj.wallet.journal";
+
+    private static final int MAGIC = 0x414a524e;
+    // Anything longer is taken to be a damaged length rather than a record.
+    private static final int MAX_RECORD_LENGTH = 256 * 1024 * 1024;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final File file;
+    private FileOutputStream stream;
+    private long size;
+    private long generation;
+    private long nextGeneration;
+
+    /** Creates a journal for the given wallet file, which is not started until the wallet is checkpointed. */
+    public WalletJournal(File walletFile) {
+        this.file = fileFor(walletFile);
+    }
+
+    /** Returns the file the journal of the given wallet file is kept in. */
+    public static File fileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the given wallet tagged with a new generation, to be written out as a checkpoint. Once it's safely on
+     * disk, {@link #start()} begins the journal that goes with it.
+     */
+    public Protos.Wallet newSnapshot(Protos.Wallet walletProto) {
+        nextGeneration = random.nextLong();
+        Protos.Extension extension = Protos.Extension.newBuilder()
+                .setId(EXTENSION_ID)
+                .setData(ByteString.copyFrom(Longs.toByteArray(nextGeneration)))
+                .setMandatory(false)
+                .build();
+        return withoutGeneration(walletProto).toBuilder().addExtension(extension).build();
+    }
+
+    /** Replaces the journal with an empty one for the snapshot last returned by {@link #newSnapshot}. */
+    public void start() throws IOException {
+        close();
+        generation = nextGeneration;
+        stream = new FileOutputStream(file, false);
+        DataOutputStream header = new DataOutputStream(stream);
+        header.writeInt(MAGIC);
+        header.writeLong(generation);
+        header.flush();
+        stream.getFD().sync();
+        size = 12;
+    }
+
+    /** Returns whether records can be appended, that is whether the journal was started and not closed since. */
+    public boolean isStarted() {
+        return stream != null;
+    }
+
+    /** Returns the generation of the wallet file the journal was last started for. */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /** Returns how many bytes long the journal file is. */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Appends a record of the given changes, made by {@link WalletProtobufSerializer#walletChangesToProto}, and how
+     * many blocks, and how much work, the wallet had seen added to the best chain since the checkpoint when they
+     * were made. Returns true once the record is on disk, or false without writing it if the changes were taken for
+     * some other generation than the one the journal was last started for, or the journal has been closed since,
+     * as they'd be played back onto a wallet file they don't follow from.
+     */
+    public boolean append(Protos.Wallet changes, int tipBlocks, BigInteger tipWork, long generation)
+            throws IOException {
+        if (stream == null || generation != this.generation) {
+            log.info("Dropping out of date changes to {}", file);
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(changes.getSerializedSize() + 64);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(tipBlocks);
+        byte[] work = tipWork.toByteArray();
+        record.writeInt(work.length);
+        record.write(work);
+        changes.writeTo(record);
+        record.flush();
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, payload.length + 8));
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            out.flush();
+            // Force the record to the disk, as autosaving the whole wallet does.
+            stream.getFD().sync();
+        } catch (IOException e) {
+            // Whatever follows a partly written record would be ignored, so nothing more can go in this journal.
+            close();
+            throw e;
+        }
+        size += payload.length + 8;
+        return true;
+    }
+
+    /** Closes the journal file. Nothing more can be appended until the journal is started again. */
+    public void close() throws IOException {
+        if (stream == null)
+            return;
+        try {
+            stream.close();
+        } finally {
+            stream = null;
+        }
+    }
+
+    /**
+     * Plays the records of the given journal file back onto the wallet it belongs to, as read from the wallet file,
+     * and returns the wallet as it was when the last whole record was written. If the journal is missing, or belongs
+     * to some other generation of the wallet file, the wallet is returned as it was.
+     */
+    public static Protos.Wallet replay(Protos.Wallet walletProto, File journalFile) throws IOException {
+        Long walletGeneration = getGeneration(walletProto);
+        if (walletGeneration == null || !journalFile.exists())
+            return withoutGeneration(walletProto);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            try {
+                if (in.readInt() != MAGIC || in.readLong() != walletGeneration) {
+                    log.info("Ignoring {} as it does not belong to the wallet file", journalFile);
+                    return withoutGeneration(walletProto);
+                }
+            } catch (EOFException e) {
+                log.warn("Ignoring {} as it was cut short", journalFile);
+                return withoutGeneration(walletProto);
+            }
+
+            // The latest version of each transaction, and where the tip was when it was written.
+            Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+            Map<ByteString, Tip> writtenAt = new HashMap<ByteString, Tip>();
+            Tip tip = new Tip(0, BigInteger.ZERO);
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                transactions.put(txProto.getHash(), txProto);
+                writtenAt.put(txProto.getHash(), tip);
+            }
+            Protos.Wallet.Builder walletBuilder = withoutGeneration(walletProto).toBuilder();
+            int records = 0;
+            byte[] payload;
+            while ((payload = readRecord(in, journalFile)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                int tipBlocks = record.readInt();
+                byte[] work = new byte[record.readInt()];
+                record.readFully(work);
+                tip = new Tip(tipBlocks, new BigInteger(work));
+                Protos.Wallet changes = Protos.Wallet.parseFrom(record);
+                for (Protos.Transaction txProto : changes.getTransactionList()) {
+                    // Keep the order in which transactions were first seen, as the wallet file does.
+                    transactions.put(txProto.getHash(), txProto);
+                    writtenAt.put(txProto.getHash(), tip);
+                }
+                walletBuilder.addAllKey(changes.getKeyList());
+                if (changes.hasLastSeenBlockHash())
+                    walletBuilder.setLastSeenBlockHash(changes.getLastSeenBlockHash());
+                if (changes.hasLastSeenBlockHeight())
+                    walletBuilder.setLastSeenBlockHeight(changes.getLastSeenBlockHeight());
+                records++;
+            }
+
+            walletBuilder.clearTransaction();
+            for (Protos.Transaction txProto : transactions.values())
+                walletBuilder.addTransaction(buryUnder(txProto, writtenAt.get(txProto.getHash()), tip));
+            log.info("Played back {} records from {}", records, journalFile);
+            return walletBuilder.build();
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns the payload of the next record, or null at the end of the journal or of its whole records.
+    private static byte[] readRecord(DataInputStream in, File journalFile) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            if (length < 0 || length > MAX_RECORD_LENGTH) {
+                log.warn("Ignoring the rest of {} after a damaged record length {}", journalFile, length);
+                return null;
+            }
+            int checksum = in.readInt();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Ignoring the rest of {} after a damaged record", journalFile);
+                return null;
+            }
+            return payload;
+        } catch (EOFException e) {
+            log.warn("Ignoring a record cut short at the end of {}", journalFile);
+            return null;
+        }
+    }
+
+    // Adds the blocks that were added to the chain after the transaction was written to its depth and work done.
+    private static Protos.Transaction buryUnder(Protos.Transaction txProto, Tip writtenAt, Tip tip) {
+        return WalletProtobufSerializer.buryUnder(txProto, tip.blocks - writtenAt.blocks,
+                tip.work.subtract(writtenAt.work));
+    }
+
+    private static Long getGeneration(Protos.Wallet walletProto) {
+        for (Protos.Extension extension : walletProto.getExtensionList()) {
+            if (extension.getId().equals(EXTENSION_ID) && extension.getData().size() == 8)
+                return Longs.fromByteArray(extension.getData().toByteArray());
+        }
+        return null;
+    }
+
+    private static Protos.Wallet withoutGeneration(Protos.Wallet walletProto) {
+        if (getGeneration(walletProto) == null)
+            return walletProto;
+        Protos.Wallet.Builder walletBuilder = walletProto.toBuilder().clearExtension();
+        for (Protos.Extension extension : walletProto.getExtensionList()) {
+            if (!extension.getId().equals(EXTENSION_ID))
+                walletBuilder.addExtension(extension);
+        }
+        return walletBuilder.build();
+    }
+
+    private static class Tip {
+        final int blocks;
+        final BigInteger work;
+
+        Tip(int blocks, BigInteger work) {
+            this.blocks = blocks;
+            this.work = work;
+        }
+    }
+}
@@ -47,7 +47,11 @@ import com.google.anoncoin.core.Wallet;
 import com.google.anoncoin.core.WalletTransaction;
 import com.google.common.base.Preconditions;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.WireFormat;
 
 /**
  * Serialize and de-serialize a wallet to a byte stream containing a
@@ -71,9 +75,13 @@ import com.google.protobuf.TextFormat;
 public class WalletProtobufSerializer {
     private static final Logger log = LoggerFactory.getLogger(WalletProtobufSerializer.class);
 
+    private static final int TRANSACTION_TAG =
+            (Protos.Wallet.TRANSACTION_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
     protected WalletExtensionSerializer helper;
+    private boolean loadTransactionsLazily;
 
     public WalletProtobufSerializer() {
         txMap = new HashMap<ByteString, Transaction>();
@@ -88,6 +96,18 @@ public class WalletProtobufSerializer {
         this.helper = h;
     }
 
+    /**
+     * If set, {@link #readWallet(InputStream)} returns the wallet with its keys as soon as they're read, and keeps its
+     * transactions as the bytes they were read from until they're first wanted, when the wallet builds them using
+     * this serializer. See {@link Wallet#loadTransactionsLazily(Wallet.TransactionLoader, java.util.Map)}. This makes
+     * a large wallet much quicker to load, but a damaged transaction is only found when the transactions are built,
+     * which then throws an {@link IllegalArgumentException} from whatever wanted them. The wallet then stays as it was
+     * loaded, with its transactions still to be built, and refuses to be saved. Off by default.
+     */
+    public void setLoadTransactionsLazily(boolean loadTransactionsLazily) {
+        this.loadTransactionsLazily = loadTransactionsLazily;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *     
@@ -127,38 +147,7 @@ public class WalletProtobufSerializer {
         }
 
         for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                                                         // .setLabel() TODO
-                                                            .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
-
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
-
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
-                }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
-            }
-
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
+            walletBuilder.addKey(makeKeyProto(key));
         }
 
         // Populate the lastSeenBlockHash field.
@@ -196,6 +185,64 @@ public class WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
+    /**
+     * Returns the given wallet's changed transactions and new keys, in the same form as {@link #walletToProto(Wallet)}
+     * and with the last seen block, but without anything else. Used by {@link WalletJournal} to record what changed
+     * since the wallet was last saved.
+     */
+    public Protos.Wallet walletChangesToProto(Wallet wallet, Collection<WalletTransaction> transactions,
+                                              Collection<ECKey> keys) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        for (WalletTransaction wtx : transactions) {
+            walletBuilder.addTransaction(makeTxProto(wtx));
+        }
+        for (ECKey key : keys) {
+            walletBuilder.addKey(makeKeyProto(key));
+        }
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        return walletBuilder.build();
+    }
+
+    protected static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                                                     // .setLabel() TODO
+                                                        .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
     protected static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
@@ -309,14 +356,35 @@ public class WalletProtobufSerializer {
     /**
      * Parses a wallet from the given stream. The stream is expected to contain a binary serialization of a 
      * {@link Protos.Wallet} object.<p>
+     *
+     * The wallet is read a field at a time rather than parsed whole, and the transactions are kept as the bytes they
+     * were read from until they're built, so the whole parsed wallet is never in memory at once. If the transactions
+     * are loaded lazily, see {@link #setLoadTransactionsLazily(boolean)}, they're built the first time they're wanted.
+     * Otherwise they're built before this returns.<p>
      *     
      * If the stream is invalid or the serialized wallet contains unsupported features, 
      * {@link IllegalArgumentException} is thrown.
      */
     public Wallet readWallet(InputStream input) throws IOException {
-        // TODO: This method should throw more specific exception types than IllegalArgumentException.
-        Protos.Wallet walletProto = parseToProto(input);
+        List<ByteString> transactions = new ArrayList<ByteString>();
+        Protos.Wallet walletProto = parseWithoutTransactions(input, transactions);
+        return readWallet(walletProto, transactions);
+    }
+
+    /**
+     * Builds a wallet from its protocol buffer form, for example one returned by {@link #parseToProto(InputStream)}
+     * and modified, or put together by {@link WalletJournal#replay(Protos.Wallet, java.io.File)}.<p>
+     *
+     * If the serialized wallet contains unsupported features, {@link IllegalArgumentException} is thrown.
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) {
+        return readWallet(walletProto, null);
+    }
 
+    // Reads the wallet, with its transactions taken from the given serialized transactions if there are any, or from
+    // the wallet otherwise.
+    private Wallet readWallet(Protos.Wallet walletProto, List<ByteString> serializedTransactions) {
+        // TODO: This method should throw more specific exception types than IllegalArgumentException.
         // System.out.println(TextFormat.printToString(walletProto));
 
         // Read the scrypt parameters that specify how encryption and decryption is performed.
@@ -361,15 +429,24 @@ public class WalletProtobufSerializer {
             wallet.addKey(ecKey);
         }
 
-        // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, params);
-        }
+        if (serializedTransactions == null) {
+            // Read all transactions and insert into the txMap.
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                readTransaction(txProto, params);
+            }
 
-        // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
-            wallet.addWalletTransaction(wtx);
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                WalletTransaction wtx = connectTransactionOutputs(txProto);
+                wallet.addWalletTransaction(wtx);
+            }
+        } else if (loadTransactionsLazily && !serializedTransactions.isEmpty()) {
+            // Only which pool each transaction is in is needed now. The wallet must be told before anything else about
+            // it is set, as it can't know of its transactions without them.
+            wallet.loadTransactionsLazily(new SerializedTransactions(params, serializedTransactions),
+                    readPools(serializedTransactions));
+        } else {
+            readTransactions(wallet, params, serializedTransactions, 0, BigInteger.ZERO);
         }
 
         // Update the lastBlockSeenHash.
@@ -401,7 +478,143 @@ public class WalletProtobufSerializer {
      * wallet file format itself.
      */
     public static Protos.Wallet parseToProto(InputStream input) throws IOException {
-        return Protos.Wallet.parseFrom(input);
+        CodedInputStream in = CodedInputStream.newInstance(input);
+        // A wallet with many transactions can be larger than protobuf allows a message to be by default.
+        in.setSizeLimit(Integer.MAX_VALUE);
+        Protos.Wallet walletProto = Protos.Wallet.parseFrom(in);
+        in.checkLastTagWas(0);
+        return walletProto;
+    }
+
+    // Parses the wallet without its transactions, which are added to the given list as they were serialized. Only one
+    // field is read at a time, so there's no limit on the size of the wallet as a whole.
+    private static Protos.Wallet parseWithoutTransactions(InputStream input, List<ByteString> transactions)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(input);
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream out = CodedOutputStream.newInstance(rest);
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == TRANSACTION_TAG)
+                transactions.add(in.readBytes());
+            else
+                copyField(tag, in, out);
+            in.resetSizeCounter();
+        }
+        out.flush();
+        return Protos.Wallet.parseFrom(rest.toByteString());
+    }
+
+    private static void copyField(int tag, CodedInputStream in, CodedOutputStream out) throws IOException {
+        out.writeRawVarint32(tag);
+        switch (tag & 7) {
+            case WireFormat.WIRETYPE_VARINT:
+                out.writeRawVarint64(in.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                out.writeRawLittleEndian64(in.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                out.writeBytesNoTag(in.readBytes());
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                out.writeRawLittleEndian32(in.readRawLittleEndian32());
+                break;
+            default:
+                // Groups aren't used by the wallet format.
+                throw new InvalidProtocolBufferException("Unexpected wire type in wallet: " + tag);
+        }
+    }
+
+    // Returns the pool each of the given serialized transactions is in, reading nothing else.
+    private static Map<Sha256Hash, WalletTransaction.Pool> readPools(List<ByteString> transactions) {
+        Map<Sha256Hash, WalletTransaction.Pool> pools = new HashMap<Sha256Hash, WalletTransaction.Pool>(transactions.size() * 2);
+        for (ByteString bytes : transactions) {
+            try {
+                CodedInputStream in = bytes.newCodedInput();
+                ByteString hash = null;
+                Protos.Transaction.Pool pool = Protos.Transaction.getDefaultInstance().getPool();
+                int tag;
+                while ((tag = in.readTag()) != 0) {
+                    int field = WireFormat.getTagFieldNumber(tag);
+                    if (field == Protos.Transaction.HASH_FIELD_NUMBER) {
+                        hash = in.readBytes();
+                    } else if (field == Protos.Transaction.POOL_FIELD_NUMBER) {
+                        pool = Protos.Transaction.Pool.valueOf(in.readEnum());
+                        if (pool == null)
+                            throw new IllegalArgumentException("Unknown transaction pool in wallet");
+                    } else {
+                        in.skipField(tag);
+                    }
+                }
+                if (hash == null)
+                    throw new IllegalArgumentException("Transaction without a hash in wallet");
+                pools.put(byteStringToHash(hash), WalletTransaction.Pool.valueOf(pool.getNumber()));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unreadable transaction in wallet", e);
+            }
+        }
+        return pools;
+    }
+
+    // Builds the given serialized transactions and adds them to the wallet, buried under the given blocks.
+    private void readTransactions(Wallet wallet, NetworkParameters params, List<ByteString> transactions,
+                                  int blocksAdded, BigInteger workAdded) {
+        // Each transaction is parsed again rather than all of them being kept parsed between the two passes.
+        for (ByteString bytes : transactions) {
+            readTransaction(parseTransaction(bytes), params);
+        }
+        for (ByteString bytes : transactions) {
+            Protos.Transaction txProto = buryUnder(parseTransaction(bytes), blocksAdded, workAdded);
+            wallet.addWalletTransaction(connectTransactionOutputs(txProto));
+        }
+    }
+
+    private static Protos.Transaction parseTransaction(ByteString bytes) {
+        try {
+            return Protos.Transaction.parseFrom(bytes);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Unreadable transaction in wallet", e);
+        }
+    }
+
+    /**
+     * Adds the given number of blocks, and amount of work, to the depth and work done of the given transaction if it's
+     * in the chain, as when the chain grew after it was written.
+     */
+    static Protos.Transaction buryUnder(Protos.Transaction txProto, int blocksAdded, BigInteger workAdded) {
+        if (blocksAdded == 0 || !txProto.hasConfidence())
+            return txProto;
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasDepth())
+            return txProto;
+        Protos.TransactionConfidence.Builder confidenceBuilder = confidence.toBuilder()
+                .setDepth(confidence.getDepth() + blocksAdded);
+        if (confidence.hasWorkDone())
+            confidenceBuilder.setWorkDone(confidence.getWorkDone() + workAdded.longValue());
+        return txProto.toBuilder().setConfidence(confidenceBuilder).build();
+    }
+
+    /** Builds the transactions of a wallet that was read without them, the first time the wallet wants them. */
+    private class SerializedTransactions implements Wallet.TransactionLoader {
+        private final NetworkParameters params;
+        private List<ByteString> transactions;
+
+        SerializedTransactions(NetworkParameters params, List<ByteString> transactions) {
+            this.params = params;
+            this.transactions = transactions;
+        }
+
+        public void loadTransactions(Wallet wallet, int blocksAdded, BigInteger workAdded) {
+            try {
+                readTransactions(wallet, params, transactions, blocksAdded, workAdded);
+                // Kept until they're all read, as the wallet asks again if any of them fail.
+                transactions = null;
+            } finally {
+                // Nothing else needs the transactions by hash once they're connected.
+                txMap.clear();
+            }
+        }
     }
 
     protected void readTransaction(Protos.Transaction txProto, NetworkParameters params) {
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.utils;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An event listener together with the {@link Executor} its callbacks are run on.
+ */
+public class ListenerRegistration<T> {
+    public final T listener;
+    public final Executor executor;
+
+    public ListenerRegistration(T listener, Executor executor) {
+        this.listener = checkNotNull(listener);
+        this.executor = checkNotNull(executor);
+    }
+
+    /** Removes the first registration of the given listener from the list, and returns whether there was one. */
+    public static <T> boolean removeFromList(T listener, List<? extends ListenerRegistration<T>> list) {
+        checkNotNull(listener);
+        ListenerRegistration<T> item = null;
+        for (ListenerRegistration<T> registration : list) {
+            if (registration.listener == listener) {
+                item = registration;
+                break;
+            }
+        }
+        return item != null && list.remove(item);
+    }
+}
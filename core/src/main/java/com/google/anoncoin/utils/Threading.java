@@ -0,0 +1,80 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.utils;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+
+/**
+ * <p>Executors for running event listeners, as given to the addEventListener methods of the wallet, peers, peer
+ * groups and transaction confidences.</p>
+ *
+ * <p>Listeners registered without an executor are run by {@link #USER_THREAD}, so they never run on the threads that
+ * do the work. Listeners registered with {@link #SAME_THREAD} are run on whichever thread caused the event instead,
+ * which is often a network thread holding the wallet or chain lock, so they see the change as it's made, but a slow
+ * one holds everything up.</p>
+ */
+public class Threading {
+    private static final Logger log = LoggerFactory.getLogger(Threading.class);
+
+    /** Runs callbacks straight away on the thread that caused the event. */
+    public static final Executor SAME_THREAD = MoreExecutors.sameThreadExecutor();
+
+    /**
+     * Runs callbacks one at a time, in the order the events happened, on a single daemon thread shared by everything
+     * registered with it. Exceptions thrown by callbacks are logged, and the thread carries on with the next one.
+     */
+    public static final ExecutorService USER_THREAD = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "anoncoinj user thread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }) {
+        @Override
+        public void execute(final Runnable command) {
+            // Caught here rather than by the thread, which an exception would otherwise kill and have replaced.
+            super.execute(new Runnable() {
+                public void run() {
+                    try {
+                        command.run();
+                    } catch (Throwable throwable) {
+                        log.error("Exception in event listener", throwable);
+                    }
+                }
+            });
+        }
+    };
+
+    /** Waits for the callbacks already queued on {@link #USER_THREAD} to finish. Useful in tests. */
+    public static void waitForUserCode() {
+        try {
+            USER_THREAD.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
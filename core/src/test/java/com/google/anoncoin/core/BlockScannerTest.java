@@ -0,0 +1,124 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class BlockScannerTest {
+    private NetworkParameters params;
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        block = params.genesisBlock.cloneAsHeader();
+        ECKey key = new ECKey();
+        block.addCoinbaseTransaction(key.getPubKey(), toNanoCoins(50, 0));
+        // An odd number of transactions, so the merkle tree has to pair a hash with itself.
+        for (int i = 0; i < 20; i++)
+            block.addTransaction(createFakeTx(params, toNanoCoins(i, 1), key));
+    }
+
+    @Test
+    public void visitsTransactions() throws Exception {
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        final List<byte[]> transactions = new ArrayList<byte[]>();
+        final List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>();
+        final List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        byte[] bytes = block.anoncoinSerialize();
+        int length = new BlockScanner(bytes).scan(new BlockScanner.Visitor() {
+            public boolean visitTransaction(int index, byte[] bytes, int offset, int length, byte[] txHashes,
+                                            int hashOffset) {
+                hashes.add(BlockScanner.toHash(txHashes, hashOffset));
+                transactions.add(Arrays.copyOfRange(bytes, offset, offset + length));
+                // Only the last transaction is looked at any closer.
+                return index == 20;
+            }
+
+            public void visitInput(int index, byte[] bytes, int outpointOffset) {
+                try {
+                    outpoints.add(new TransactionOutPoint(params, bytes, outpointOffset));
+                } catch (ProtocolException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public void visitOutput(int index, long value, byte[] bytes, int scriptOffset, int scriptLength) {
+                outputs.add(new TransactionOutput(params, null, BigInteger.valueOf(value),
+                        Arrays.copyOfRange(bytes, scriptOffset, scriptOffset + scriptLength)));
+            }
+        });
+        assertEquals(bytes.length, length);
+        assertEquals(block.getTransactions().size(), hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            Transaction tx = block.getTransactions().get(i);
+            assertEquals(tx.getHash(), hashes.get(i));
+            assertArrayEquals(tx.anoncoinSerialize(), transactions.get(i));
+        }
+        Transaction last = block.getTransactions().get(20);
+        assertEquals(1, outpoints.size());
+        assertEquals(last.getInput(0).getOutpoint(), outpoints.get(0));
+        assertEquals(last.getOutputs().size(), outputs.size());
+        for (int i = 0; i < outputs.size(); i++) {
+            assertEquals(last.getOutput(i).getValue(), outputs.get(i).getValue());
+            assertArrayEquals(last.getOutput(i).getScriptBytes(), outputs.get(i).getScriptBytes());
+        }
+    }
+
+    @Test(expected = VerificationException.class)
+    public void badMerkleRoot() throws Exception {
+        byte[] bytes = block.anoncoinSerialize();
+        bytes[40] ^= 1;
+        new BlockScanner(bytes).scan(new IgnoringVisitor());
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        byte[] bytes = block.anoncoinSerialize();
+        for (int length : new int[] { 50, Block.HEADER_SIZE + 1, bytes.length - 1 }) {
+            try {
+                new BlockScanner(bytes, 0, length).scan(new IgnoringVisitor());
+                fail();
+            } catch (ProtocolException e) {
+                // Expected.
+            }
+        }
+    }
+
+    private static class IgnoringVisitor implements BlockScanner.Visitor {
+        public boolean visitTransaction(int index, byte[] bytes, int offset, int length, byte[] hashes,
+                                        int hashOffset) {
+            return true;
+        }
+
+        public void visitInput(int index, byte[] bytes, int outpointOffset) {
+        }
+
+        public void visitOutput(int index, long value, byte[] bytes, int scriptOffset, int scriptLength) {
+        }
+    }
+}
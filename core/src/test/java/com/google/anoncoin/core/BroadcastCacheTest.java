@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class BroadcastCacheTest {
+    private NetworkParameters params;
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        key = new ECKey();
+    }
+
+    @Test
+    public void serializesOnce() throws Exception {
+        BroadcastCache cache = new BroadcastCache(params);
+        Transaction tx = createFakeTx(params, toNanoCoins(1, 0), key);
+        MessageFrame frame = cache.get(tx);
+        assertSame(frame, cache.get(tx));
+        assertSame(frame, cache.get(tx));
+        assertEquals(1, cache.getFramesSerialized());
+        assertEquals(2, cache.getFramesReused());
+        assertEquals(2 * frame.size(), cache.getBytesSaved());
+        assertTrue(cache.getNanosSaved() > 0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        frame.writeTo(bytes);
+        Message read = new AnoncoinSerializer(params).deserialize(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(tx.getHash(), ((Transaction) read).getHash());
+
+        cache.remove(tx.getHash());
+        assertNotSame(frame, cache.get(tx));
+        assertEquals(2, cache.getFramesSerialized());
+    }
+
+    @Test
+    public void keepsFramesUpToMaxBytes() throws Exception {
+        Transaction tx1 = createFakeTx(params, toNanoCoins(1, 0), key);
+        Transaction tx2 = createFakeTx(params, toNanoCoins(2, 0), key);
+        int size = new AnoncoinSerializer(params).serializeFrame(tx1).size();
+        BroadcastCache cache = new BroadcastCache(params, size + size / 2);
+        cache.get(tx1);
+        cache.get(tx2);
+        // There's only room for one, so the first was dropped.
+        cache.get(tx1);
+        assertEquals(3, cache.getFramesSerialized());
+        assertEquals(0, cache.getFramesReused());
+    }
+}
@@ -19,6 +19,7 @@ package com.google.anoncoin.core;
 import com.google.anoncoin.core.TransactionConfidence.ConfidenceType;
 import com.google.anoncoin.store.MemoryBlockStore;
 import com.google.anoncoin.utils.BriefLogFormatter;
+import com.google.anoncoin.utils.Threading;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -68,7 +69,7 @@ public class ChainSplitTest {
             public void onWalletChanged(Wallet wallet) {
                 walletChanged[0]++;
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Start by building a couple of blocks on top of the genesis block.
         Block b1 = unitTestParams.genesisBlock.createNextBlock(coinsTo);
@@ -246,7 +247,7 @@ public class ChainSplitTest {
                 if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD)
                     eventCalled[0] = true;
             }
-        });
+        }, Threading.SAME_THREAD);
 
         Block b1 = unitTestParams.genesisBlock.createNextBlock(coinsTo);
         chain.add(b1);
@@ -290,7 +291,7 @@ public class ChainSplitTest {
                     eventReplacement[0] = tx.getConfidence().getOverridingTransaction();
                 }
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Start with 50 coins.
         Block b1 = unitTestParams.genesisBlock.createNextBlock(coinsTo);
@@ -342,7 +343,7 @@ public class ChainSplitTest {
             public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
                 txns.add(tx);
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Start by building three blocks on top of the genesis block. All send to us.
         Block b1 = unitTestParams.genesisBlock.createNextBlock(coinsTo);
@@ -489,7 +490,7 @@ public class ChainSplitTest {
             public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
                 txns.add(tx);
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Start by building three blocks on top of the genesis block.
         // The first block contains a normal transaction that spends to coinTo.
@@ -18,6 +18,7 @@
 package com.google.anoncoin.core;
 
 import com.google.anoncoin.core.Transaction.SigHash;
+import com.google.anoncoin.store.BlockStoreException;
 import com.google.anoncoin.store.FullPrunedBlockStore;
 import com.google.anoncoin.store.MemoryFullPrunedBlockStore;
 import com.google.anoncoin.utils.BriefLogFormatter;
@@ -30,13 +31,19 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
- * We don't do any wallet tests here, we leave that to {@link ChainSplitTest}
+ * We don't do any wallet tests here, we leave that to {@link ChainSplitTest}. The tests run against a
+ * {@link MemoryFullPrunedBlockStore}; subclasses run them against the other stores by overriding
+ * {@link #createStore(NetworkParameters, int)}.
  */
 
 public class FullPrunedBlockChainTest {
@@ -58,13 +65,19 @@ public class FullPrunedBlockChainTest {
         oldInterval = unitTestParams.interval;
         unitTestParams.interval = 10000;
         
-        store = new MemoryFullPrunedBlockStore(unitTestParams, UNDOABLE_BLOCKS_STORED);
+        store = createStore(unitTestParams, UNDOABLE_BLOCKS_STORED);
         chain = new FullPrunedBlockChain(unitTestParams, store);
     }
 
     @After
-    public void tearDown() {
+    public void tearDown() throws Exception {
         unitTestParams.interval = oldInterval;
+        store.close();
+    }
+
+    /** Returns a new, empty store for the chain under test, keeping the given number of undoable blocks. */
+    protected FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new MemoryFullPrunedBlockStore(params, blockCount);
     }
     
     @Test
@@ -151,6 +164,70 @@ public class FullPrunedBlockChainTest {
         assertTrue(out.get() == null);
     }
     
+    @Test
+    public void testAddAll() throws Exception {
+        // Blocks added with addAll are prepared ahead of time whilst the previous block is being verified. Check this
+        // gives the same result as adding them one at a time, and that a spend of an output the previous block
+        // already spent is caught.
+        ECKey outKey = new ECKey();
+        List<Block> blocks = new ArrayList<Block>();
+        Block rollingBlock = unitTestParams.genesisBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+        blocks.add(rollingBlock);
+        for (int i = 1; i < unitTestParams.getSpendableCoinbaseDepth() + 10; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            if (i >= unitTestParams.getSpendableCoinbaseDepth()) {
+                // Spend a mature coinbase, and then the output of that spend in the same block.
+                Transaction coinbase = blocks.get(i - unitTestParams.getSpendableCoinbaseDepth()).getTransactions().get(0);
+                Transaction t1 = new Transaction(unitTestParams);
+                t1.addOutput(new TransactionOutput(unitTestParams, t1, Utils.toNanoCoins(1, 0), outKey));
+                addInputToTransaction(t1, new TransactionOutPoint(unitTestParams, 0, coinbase.getHash()),
+                        coinbase.getOutputs().get(0).getScriptBytes(), outKey);
+                Transaction t2 = new Transaction(unitTestParams);
+                t2.addOutput(new TransactionOutput(unitTestParams, t2, Utils.toNanoCoins(1, 0), outKey));
+                addInputToTransaction(t2, new TransactionOutPoint(unitTestParams, 0, t1.getHash()),
+                        t1.getOutputs().get(0).getScriptBytes(), outKey);
+                rollingBlock.addTransaction(t1);
+                rollingBlock.addTransaction(t2);
+                rollingBlock.solve();
+            }
+            blocks.add(rollingBlock);
+        }
+        chain.addAll(blocks);
+        FullPrunedBlockChain chain2 = new FullPrunedBlockChain(unitTestParams,
+                new MemoryFullPrunedBlockStore(unitTestParams, UNDOABLE_BLOCKS_STORED));
+        for (Block block : blocks)
+            chain2.add(block);
+        assertEquals(chain2.getChainHead(), chain.getChainHead());
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // Spend the last output created, then try to spend it again in the next block.
+        Transaction last = rollingBlock.getTransactions().get(2);
+        Block spendBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+        Transaction t = new Transaction(unitTestParams);
+        t.addOutput(new TransactionOutput(unitTestParams, t, Utils.toNanoCoins(1, 0), outKey));
+        addInputToTransaction(t, new TransactionOutPoint(unitTestParams, 0, last.getHash()),
+                last.getOutputs().get(0).getScriptBytes(), outKey);
+        spendBlock.addTransaction(t);
+        spendBlock.solve();
+        // A different transaction, so the block isn't turned away by the BIP30 duplicate transaction check first.
+        Block doubleSpendBlock = spendBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+        Transaction t2 = new Transaction(unitTestParams);
+        t2.addOutput(new TransactionOutput(unitTestParams, t2, Utils.toNanoCoins(0, 50), outKey));
+        addInputToTransaction(t2, new TransactionOutPoint(unitTestParams, 0, last.getHash()),
+                last.getOutputs().get(0).getScriptBytes(), outKey);
+        assertFalse(t2.getHash().equals(t.getHash()));
+        doubleSpendBlock.addTransaction(t2);
+        doubleSpendBlock.solve();
+        try {
+            chain.addAll(Arrays.asList(spendBlock, doubleSpendBlock));
+            fail();
+        } catch (VerificationException e) {
+            // The chain wraps the reason the block was rejected.
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("already spent output"));
+        }
+        assertEquals(spendBlock.getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
     private void addInputToTransaction(Transaction t, TransactionOutPoint prevOut, byte[] prevOutScriptPubKey, ECKey sigKey) throws ScriptException {
         TransactionInput input = new TransactionInput(unitTestParams, t, new byte[]{}, prevOut);
         t.addInput(input);
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderVerifierTest {
+    static final NetworkParameters params = NetworkParameters.prodNet();
+
+    private HeaderVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        verifier = new HeaderVerifier(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        verifier.shutdown();
+    }
+
+    private List<Block> genesisHeaders(int count) throws ProtocolException {
+        List<Block> headers = new ArrayList<Block>();
+        for (int i = 0; i < count; i++)
+            headers.add(new Block(params, params.genesisBlock.cloneAsHeader().anoncoinSerialize()));
+        return headers;
+    }
+
+    @Test
+    public void verifiesInOrder() throws Exception {
+        List<Block> headers = genesisHeaders(10);
+        List<Block> result = verifier.verify(headers);
+        assertEquals(headers, result);
+        for (int i = 0; i < headers.size(); i++)
+            assertSame(headers.get(i), result.get(i));
+    }
+
+    @Test
+    public void smallBatch() throws Exception {
+        List<Block> headers = genesisHeaders(1);
+        assertSame(headers, verifier.verify(headers));
+    }
+
+    @Test
+    public void badProofOfWork() throws Exception {
+        List<Block> headers = genesisHeaders(10);
+        Block bad = headers.get(7);
+        bad.setNonce(bad.getNonce() + 1);
+        try {
+            verifier.verify(headers);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+            assertTrue(e.getMessage().contains(bad.getScryptHashAsString()));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shutdown() throws Exception {
+        verifier.shutdown();
+        verifier.verify(genesisHeaders(10));
+    }
+}
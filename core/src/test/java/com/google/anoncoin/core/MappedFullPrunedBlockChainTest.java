@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import com.google.anoncoin.store.BlockStoreException;
+import com.google.anoncoin.store.FullPrunedBlockStore;
+import com.google.anoncoin.store.MappedFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs the {@link FullPrunedBlockChainTest} tests against a {@link MappedFullPrunedBlockStore}.
+ */
+public class MappedFullPrunedBlockChainTest extends FullPrunedBlockChainTest {
+    private File dir;
+
+    @Override
+    protected FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        try {
+            dir = File.createTempFile("fullprunedblockchain", null);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        dir.delete();
+        dir.mkdir();
+        return new MappedFullPrunedBlockStore(params, dir, blockCount);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+}
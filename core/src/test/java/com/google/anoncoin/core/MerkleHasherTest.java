@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class MerkleHasherTest {
+    @Test
+    public void sameRootAsWholeTree() throws Exception {
+        MerkleHasher hasher = new MerkleHasher();
+        List<byte[]> leaves = new ArrayList<byte[]>();
+        for (int n = 1; n <= 70; n++) {
+            byte[] leaf = Utils.doubleDigest(new byte[] { (byte) n });
+            leaves.add(leaf);
+            hasher.add(leaf, 0);
+            Sha256Hash expected = MerkleHasher.toHash(referenceRoot(leaves), 0);
+            assertEquals(n, hasher.size());
+            assertEquals(expected, hasher.getRoot());
+            // Asking for the root doesn't disturb adding more hashes after it.
+            assertEquals(expected, hasher.getRoot());
+
+            byte[] hashes = new byte[(n + 1) * 32];
+            for (int i = 0; i < n; i++)
+                System.arraycopy(leaves.get(i), 0, hashes, i * 32, 32);
+            assertEquals(expected, MerkleHasher.toHash(MerkleHasher.root(hashes, n), 0));
+        }
+    }
+
+    @Test
+    public void blockUnderConstruction() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        ECKey key = new ECKey();
+        Block block = params.genesisBlock.cloneAsHeader();
+        block.addCoinbaseTransaction(key.getPubKey(), toNanoCoins(50, 0));
+        for (int i = 0; i < 10; i++) {
+            block.addTransaction(createFakeTx(params, toNanoCoins(i, 1), key));
+            assertEquals(MerkleHasher.root(block.getTransactions()), block.getMerkleRoot());
+        }
+        // Changing a transaction once it's in the block changes the root.
+        Sha256Hash root = block.getMerkleRoot();
+        Transaction changed = block.getTransactions().get(3);
+        changed.addOutput(new TransactionOutput(params, changed, toNanoCoins(0, 1), key));
+        assertFalse(root.equals(block.getMerkleRoot()));
+        assertEquals(MerkleHasher.root(block.getTransactions()), block.getMerkleRoot());
+        block.addTransaction(createFakeTx(params, toNanoCoins(3, 1), key));
+        assertEquals(MerkleHasher.root(block.getTransactions()), block.getMerkleRoot());
+        block.verifyTransactions();
+    }
+
+    // The merkle root worked out a level at a time, with a new array for every node, as Block used to.
+    private static byte[] referenceRoot(List<byte[]> leaves) {
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int left = 0; left < level.size(); left += 2) {
+                int right = Math.min(left + 1, level.size() - 1);
+                next.add(Utils.doubleDigestTwoBuffers(level.get(left), 0, 32, level.get(right), 0, 32));
+            }
+            level = next;
+        }
+        return Arrays.copyOf(level.get(0), 32);
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class MessageFrameDecoderTest {
+    private NetworkParameters params;
+    private Block block;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        block = params.genesisBlock.cloneAsHeader();
+        ECKey key = new ECKey();
+        block.addCoinbaseTransaction(key.getPubKey(), toNanoCoins(50, 0));
+        for (int i = 0; i < 20; i++)
+            block.addTransaction(createFakeTx(params, toNanoCoins(i, 1), key));
+        tx = createFakeTx(params, toNanoCoins(3, 0), key);
+    }
+
+    @Test
+    public void decodesMessagesArrivingInSmallPieces() throws Exception {
+        AnoncoinSerializer serializer = new AnoncoinSerializer(params);
+        // Garbage before a message, and a partial magic within it, are skipped.
+        byte[] garbage = { 1, 2, (byte) (params.packetMagic >>> 24), 3 };
+        byte[] bytes = concat(garbage, serialize(serializer, block), serialize(serializer, tx));
+        DecoderEmbedder<Message> decoder = new DecoderEmbedder<Message>(new MessageFrameDecoder(params, serializer));
+        for (int i = 0; i < bytes.length; i += 7) {
+            decoder.offer(ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(bytes, i, Math.min(i + 7, bytes.length))));
+            // Nothing comes out until the whole block is in.
+            if (i + 7 < bytes.length - serialize(serializer, tx).length)
+                assertNull(decoder.peek());
+        }
+        assertDecoded(decoder.poll(), decoder.poll());
+        assertNull(decoder.poll());
+    }
+
+    @Test
+    public void decodesMessagesArrivingTogether() throws Exception {
+        // Read where they lie in the buffer by the default serializer, and copied out by one that retains the bytes.
+        for (AnoncoinSerializer serializer : new AnoncoinSerializer[] {
+                new AnoncoinSerializer(params), new AnoncoinSerializer(params, true, true) }) {
+            byte[] bytes = concat(serialize(serializer, block), serialize(serializer, tx));
+            DecoderEmbedder<Message> decoder = new DecoderEmbedder<Message>(new MessageFrameDecoder(params, serializer));
+            decoder.offer(ChannelBuffers.wrappedBuffer(bytes));
+            Message decodedBlock = decoder.poll();
+            Message decodedTx = decoder.poll();
+            // Changing the buffer afterwards doesn't change what was decoded from it.
+            Arrays.fill(bytes, (byte) 0);
+            assertDecoded(decodedBlock, decodedTx);
+        }
+    }
+
+    private void assertDecoded(Message decodedBlock, Message decodedTx) {
+        assertEquals(block, decodedBlock);
+        assertArrayEquals(block.anoncoinSerialize(), decodedBlock.anoncoinSerialize());
+        assertEquals(block.getTransactions(), ((Block) decodedBlock).getTransactions());
+        assertEquals(tx.getHash(), ((Transaction) decodedTx).getHash());
+        assertArrayEquals(tx.anoncoinSerialize(), decodedTx.anoncoinSerialize());
+    }
+
+    private static byte[] serialize(AnoncoinSerializer serializer, Message message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializer.serialize(message, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... arrays) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] array : arrays)
+            bytes.write(array);
+        return bytes.toByteArray();
+    }
+}
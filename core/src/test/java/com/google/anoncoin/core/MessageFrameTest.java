@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class MessageFrameTest {
+    private NetworkParameters params;
+    private AnoncoinSerializer serializer;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        serializer = new AnoncoinSerializer(params);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ECKey key = new ECKey();
+        Block block = params.genesisBlock.cloneAsHeader();
+        block.addCoinbaseTransaction(key.getPubKey(), toNanoCoins(50, 0));
+        block.addTransaction(createFakeTx(params, toNanoCoins(1, 0), key));
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addBlock(block);
+        for (Message message : new Message[] { block, block.getTransactions().get(1), inv, new Ping(42) }) {
+            MessageFrame frame = serializer.serializeFrame(message);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            frame.writeTo(bytes);
+            assertEquals(frame.size(), bytes.size());
+            assertEquals(24 + message.anoncoinSerialize().length, frame.size());
+            // The checksum is checked as it's read back.
+            Message read = serializer.deserialize(new ByteArrayInputStream(bytes.toByteArray()));
+            assertArrayEquals(message.anoncoinSerialize(), read.anoncoinSerialize());
+        }
+    }
+
+    @Test
+    public void buffersAreIndependentAndReadOnly() throws Exception {
+        MessageFrame frame = serializer.serializeFrame(new Ping(42));
+        ChannelBuffer first = frame.toChannelBuffer();
+        ChannelBuffer second = frame.toChannelBuffer();
+        // Writing the frame to one peer doesn't use it up for the others.
+        first.skipBytes(first.readableBytes());
+        assertEquals(frame.size(), second.readableBytes());
+        try {
+            second.setByte(0, 0);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.google.anoncoin.core;
 import com.google.anoncoin.discovery.PeerDiscovery;
 import com.google.anoncoin.discovery.PeerDiscoveryException;
 import com.google.anoncoin.store.MemoryBlockStore;
+import com.google.anoncoin.utils.Threading;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -203,7 +204,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
             public void onTransaction(Peer peer, Transaction t) {
                 event[0] = t;
             }
-        });
+        }, Threading.SAME_THREAD);
 
         FakeChannel p1 = connectPeer(1);
         FakeChannel p2 = connectPeer(2);
@@ -241,7 +242,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
             public void onConfidenceChanged(Transaction tx) {
                 event[1] = tx;
             }
-        });
+        }, Threading.SAME_THREAD);
         // A straggler reports in.
         inbound(p3, inv);
         assertEquals(tx, event[1]);
@@ -277,7 +278,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
             public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
                 transactions[0] = tx;
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Now create a spend, and expect the announcement on p1.
         Address dest = new ECKey().toAddress(params);
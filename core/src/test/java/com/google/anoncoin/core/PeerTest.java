@@ -17,6 +17,7 @@
 package com.google.anoncoin.core;
 
 import com.google.anoncoin.core.Peer.PeerHandler;
+import com.google.anoncoin.utils.Threading;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.easymock.Capture;
 import org.easymock.CaptureType;
@@ -324,7 +325,7 @@ public class PeerTest extends TestWithNetworkConnections {
         control.replay();
 
         connect();
-        peer.addEventListener(listener);
+        peer.addEventListener(listener, Threading.SAME_THREAD);
         long height = peer.getBestHeight();
         
         inbound(peer, inv);
@@ -357,7 +358,7 @@ public class PeerTest extends TestWithNetworkConnections {
         control.replay();
         
         connect();
-        peer.addEventListener(listener);
+        peer.addEventListener(listener, Threading.SAME_THREAD);
 
         peer.startBlockChainDownload();
         control.verify();
@@ -498,7 +499,7 @@ public class PeerTest extends TestWithNetworkConnections {
             public void onTransaction(Peer peer1, Transaction t) {
                 onTx[0] = t;
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Make the some fake transactions in the following graph:
         //   t1 -> t2 -> [t5]
@@ -624,7 +625,7 @@ public class PeerTest extends TestWithNetworkConnections {
             public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
                 vtx[0] = tx;
             }
-        });
+        }, Threading.SAME_THREAD);
         // Send a normal relevant transaction, it's received correctly.
         Transaction t1 = TestUtils.createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), key);
         inbound(peer, t1);
@@ -694,7 +695,7 @@ public class PeerTest extends TestWithNetworkConnections {
             public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
                 vtx[0] = tx;
             }
-        });
+        }, Threading.SAME_THREAD);
         // t1 -> t2 [locked] -> t3 (not available)
         Transaction t2 = new Transaction(unitTestParams);
         t2.setLockTime(999999);
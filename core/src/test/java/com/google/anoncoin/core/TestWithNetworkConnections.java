@@ -125,11 +125,16 @@ public class TestWithNetworkConnections {
         MessageEvent nextEvent = (MessageEvent) channelEvent;
         if (nextEvent == null)
             return null;
-        return nextEvent.getMessage();
+        return unframe(nextEvent.getMessage());
     }
 
     protected Object waitForOutbound(FakeChannel ch) throws InterruptedException {
-        return ((MessageEvent)ch.nextEventBlocking()).getMessage();
+        return unframe(((MessageEvent)ch.nextEventBlocking()).getMessage());
+    }
+
+    // Messages sent already serialized are checked as the message they were serialized from.
+    private static Object unframe(Object message) {
+        return message instanceof MessageFrame ? ((MessageFrame) message).getMessage() : message;
     }
 
     protected Peer peerOf(Channel ch) {
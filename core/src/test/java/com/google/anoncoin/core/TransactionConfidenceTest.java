@@ -0,0 +1,207 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import com.google.anoncoin.utils.Threading;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class TransactionConfidenceTest {
+    private NetworkParameters params;
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock chainHead;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        wallet = new Wallet(params);
+        key = new ECKey();
+        wallet.addKey(key);
+        chainHead = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+    }
+
+    @Test
+    public void depthAndWorkFollowChainTip() throws Exception {
+        Transaction tx1 = receiveInBlock();
+        BigInteger work1 = chainHead.getHeader().getWork();
+        TransactionConfidence confidence1 = tx1.getConfidence();
+        assertEquals(1, confidence1.getDepthInBlocks());
+        assertEquals(work1, confidence1.getWorkDone());
+
+        for (int i = 0; i < 3; i++)
+            addBlock();
+        assertEquals(4, confidence1.getDepthInBlocks());
+        assertEquals(work1.multiply(BigInteger.valueOf(4)), confidence1.getWorkDone());
+
+        Transaction tx2 = receiveInBlock();
+        assertEquals(1, tx2.getConfidence().getDepthInBlocks());
+        assertEquals(5, confidence1.getDepthInBlocks());
+
+        // Setting the depth takes over from the chain tip, which carries on from there.
+        confidence1.setDepthInBlocks(10);
+        addBlock();
+        assertEquals(11, confidence1.getDepthInBlocks());
+        assertEquals(2, tx2.getConfidence().getDepthInBlocks());
+
+        // A transaction that isn't building doesn't get buried, and starts from scratch once it is.
+        Transaction pending = createFakeTx(params, Utils.toNanoCoins(1, 0), key);
+        wallet.receivePending(pending, null);
+        addBlock();
+        addBlock();
+        assertEquals(TransactionConfidence.ConfidenceType.NOT_SEEN_IN_CHAIN,
+                pending.getConfidence().getConfidenceType());
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        assertEquals(0, pending.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void listenersToldUpToTheirDepth() throws Exception {
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), key);
+        final AtomicInteger typeChanges = new AtomicInteger();
+        final AtomicInteger depthChanges = new AtomicInteger();
+        tx.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            public void onConfidenceChanged(Transaction tx) {
+                typeChanges.incrementAndGet();
+            }
+        }, Threading.SAME_THREAD);
+        tx.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            public void onConfidenceChanged(Transaction tx) {
+                depthChanges.incrementAndGet();
+            }
+        }, 3, Threading.SAME_THREAD);
+        final AtomicInteger walletChanges = new AtomicInteger();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                walletChanges.incrementAndGet();
+            }
+        }, Threading.SAME_THREAD);
+        receiveInBlock(tx);
+        assertEquals(1, typeChanges.get());
+        assertEquals(1, depthChanges.get());
+        int walletChangesAtReceive = walletChanges.get();
+
+        for (int i = 0; i < 10; i++)
+            addBlock();
+        assertEquals(11, tx.getConfidence().getDepthInBlocks());
+        // Once when it started building, and then at depths 2 and 3.
+        assertEquals(1, typeChanges.get());
+        assertEquals(3, depthChanges.get());
+        // The wallet passes on depths 2 to 6.
+        assertEquals(walletChangesAtReceive + Wallet.DEFAULT_CONFIDENCE_NOTIFICATION_DEPTH - 1, walletChanges.get());
+
+        // Asking to hear about more blocks picks up from the depth the transaction is at now.
+        wallet.setConfidenceNotificationDepth(12);
+        addBlock();
+        addBlock();
+        assertEquals(walletChangesAtReceive + Wallet.DEFAULT_CONFIDENCE_NOTIFICATION_DEPTH, walletChanges.get());
+        assertEquals(3, depthChanges.get());
+    }
+
+    @Test
+    public void notifyWorkDoneOutsideWallet() throws Exception {
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), key);
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setAppearedAtChainHeight(1);
+        confidence.setDepthInBlocks(1);
+        Block block = params.genesisBlock;
+        confidence.setWorkDone(block.getWork());
+        final AtomicInteger changes = new AtomicInteger();
+        confidence.addEventListener(new TransactionConfidence.Listener() {
+            public void onConfidenceChanged(Transaction tx) {
+                changes.incrementAndGet();
+            }
+        }, Threading.SAME_THREAD);
+        confidence.notifyWorkDone(block);
+        confidence.notifyWorkDone(block);
+        assertEquals(3, confidence.getDepthInBlocks());
+        assertEquals(block.getWork().multiply(BigInteger.valueOf(3)), confidence.getWorkDone());
+        assertEquals(2, changes.get());
+    }
+
+    @Test
+    public void listenersRunOnUserThreadByDefault() throws Exception {
+        TransactionConfidence confidence = createFakeTx(params, Utils.toNanoCoins(1, 0), key).getConfidence();
+        final Thread[] ranOn = new Thread[2];
+        confidence.addEventListener(new TransactionConfidence.Listener() {
+            public void onConfidenceChanged(Transaction tx) {
+                ranOn[0] = Thread.currentThread();
+                throw new RuntimeException("Thrown by a listener");
+            }
+        });
+        confidence.addEventListener(new TransactionConfidence.Listener() {
+            public void onConfidenceChanged(Transaction tx) {
+                ranOn[1] = Thread.currentThread();
+            }
+        });
+        confidence.setConfidenceType(TransactionConfidence.ConfidenceType.NOT_SEEN_IN_CHAIN);
+        Threading.waitForUserCode();
+        // The first listener threw, which the user thread logs before carrying on with the next one.
+        assertNotNull(ranOn[0]);
+        assertNotSame(Thread.currentThread(), ranOn[0]);
+        assertSame(ranOn[0], ranOn[1]);
+    }
+
+    @Test
+    public void loadedWalletKeepsFollowingChainTip() throws Exception {
+        Transaction tx = receiveInBlock();
+        addBlock();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        wallet.saveToFileStream(bytes);
+        wallet = Wallet.loadFromFileStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Transaction copy = wallet.getTransaction(tx.getHash());
+        assertEquals(2, copy.getConfidence().getDepthInBlocks());
+        addBlock();
+        assertEquals(3, copy.getConfidence().getDepthInBlocks());
+    }
+
+    private Transaction receiveInBlock() throws Exception {
+        return receiveInBlock(createFakeTx(params, Utils.toNanoCoins(1, 0), key));
+    }
+
+    private Transaction receiveInBlock(Transaction tx) throws Exception {
+        StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(block);
+        return tx;
+    }
+
+    private void addBlock() throws Exception {
+        wallet.notifyNewBestBlock(nextBlock());
+    }
+
+    /** Builds on the chain head without solving the block, as nothing here checks the proof of work. */
+    private StoredBlock nextBlock() throws Exception {
+        Block prev = chainHead.getHeader();
+        Block block = new Block(params);
+        block.setDifficultyTarget(prev.getDifficultyTarget());
+        block.addCoinbaseTransaction(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        block.setPrevBlockHash(prev.getHash());
+        block.setTime(prev.getTimeSeconds() + NetworkParameters.TARGET_SPACING);
+        chainHead = chainHead.build(block);
+        return chainHead;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.core;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class UnspentOutputIndexTest {
+    private NetworkParameters params;
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock chainHead;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        wallet = new Wallet(params);
+        key = new ECKey();
+        wallet.addKey(key);
+        chainHead = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+    }
+
+    @Test
+    public void ordersByAgeAndValue() throws Exception {
+        UnspentOutputIndex index = new UnspentOutputIndex();
+        Transaction five = createFakeTx(params, toNanoCoins(5, 0), key);
+        Transaction one = createFakeTx(params, toNanoCoins(1, 0), key);
+        Transaction three = createFakeTx(params, toNanoCoins(3, 0), key);
+        index.put(five, 10, wallet);
+        index.put(one, 5, wallet);
+        index.put(three, UnspentOutputIndex.PENDING_HEIGHT, wallet);
+        // The change outputs to other keys aren't ours.
+        assertEquals(3, index.size());
+
+        assertEquals(values(1, 5, 3), values(index.oldestFirst()));
+        assertEquals(values(3, 5, 1), values(index.newestFirst()));
+        assertEquals(values(1, 3, 5), values(index.smallestFirst()));
+        assertEquals(values(5, 3, 1), values(index.largestFirst()));
+        assertEquals(values(3, 5), values(index.coveringFirst(toNanoCoins(2, 0))));
+        assertEquals(values(3, 5), values(index.coveringFirst(toNanoCoins(3, 0))));
+        assertTrue(values(index.coveringFirst(toNanoCoins(6, 0))).isEmpty());
+
+        // Spent outputs are skipped until their transaction is put again or removed.
+        five.getOutput(0).markAsSpent(null);
+        assertEquals(values(1, 3), values(index.smallestFirst()));
+        assertEquals(3, index.size());
+        index.put(five, 10, wallet);
+        assertEquals(2, index.size());
+
+        // Putting a transaction again replaces its outputs.
+        index.put(three, 7, wallet);
+        assertEquals(values(1, 3), values(index.oldestFirst()));
+        index.remove(one.getHash());
+        assertEquals(values(3), values(index.oldestFirst()));
+    }
+
+    @Test
+    public void walletKeepsIndexUpToDate() throws Exception {
+        receiveInBlock(toNanoCoins(2, 0));
+        receiveInBlock(toNanoCoins(1, 0));
+        receiveInBlock(toNanoCoins(3, 0));
+        Transaction pending = createFakeTx(params, toNanoCoins(4, 0), key);
+        wallet.receivePending(pending, null);
+        assertEquals(values(2, 1, 3, 4), values(oldestFirst()));
+
+        // Spending takes the oldest coins, which then leave the index, and the change from our spend comes in.
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(2, 50));
+        assertEquals(2, spend.getInputs().size());
+        wallet.commitTx(spend);
+        List<BigInteger> left = values(oldestFirst());
+        assertEquals(toNanoCoins(3, 0), left.get(0));
+        assertEquals(3, left.size());
+        assertTrue(left.contains(toNanoCoins(0, 50)));
+        assertTrue(left.contains(toNanoCoins(4, 0)));
+
+        // When the pending transactions confirm, they're ordered by the block they appeared in.
+        receiveInBlock(pending);
+        receiveInBlock(spend);
+        assertEquals(values(3, 4, 0.5), values(oldestFirst()));
+
+        // A wallet that was loaded builds its index from its pools.
+        wallet = Wallet.loadFromFileStream(new ByteArrayInputStream(save(wallet)));
+        assertEquals(values(3, 4, 0.5), values(oldestFirst()));
+    }
+
+    @Test
+    public void defaultSelectorPicksTheSameFromTheIndexAsFromAList() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++)
+            receiveInBlock(toNanoCoins(random.nextInt(10), random.nextInt(100)));
+        for (int i = 0; i < 5; i++)
+            wallet.receivePending(createFakeTx(params, toNanoCoins(random.nextInt(10), random.nextInt(100)), key), null);
+        final Wallet.DefaultCoinSelector selector = new Wallet.DefaultCoinSelector() {
+            @Override
+            protected boolean shouldSelect(Transaction tx) {
+                return true;
+            }
+        };
+        for (final BigInteger target : new BigInteger[] { toNanoCoins(0, 1), toNanoCoins(12, 0), toNanoCoins(1000, 0) }) {
+            wallet.getBalance(new Wallet.IndexedCoinSelector() {
+                public Wallet.CoinSelection select(BigInteger unused, UnspentOutputIndex index) {
+                    LinkedList<TransactionOutput> candidates = Lists.newLinkedList(index.oldestFirst());
+                    Collections.shuffle(candidates, new Random(target.longValue()));
+                    Wallet.CoinSelection fromList = selector.select(target, candidates);
+                    Wallet.CoinSelection fromIndex = selector.select(target, index);
+                    assertEquals(fromList.valueGathered, fromIndex.valueGathered);
+                    assertEquals(fromList.gathered, fromIndex.gathered);
+                    return fromIndex;
+                }
+
+                public Wallet.CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+                    throw new AssertionError("The wallet should use the index");
+                }
+            });
+        }
+    }
+
+    private Iterable<TransactionOutput> oldestFirst() {
+        final List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        wallet.getBalance(new Wallet.IndexedCoinSelector() {
+            public Wallet.CoinSelection select(BigInteger target, UnspentOutputIndex index) {
+                Iterables.addAll(outputs, index.oldestFirst());
+                return new Wallet.CoinSelection(BigInteger.ZERO, outputs);
+            }
+
+            public Wallet.CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+                throw new AssertionError("The wallet should use the index");
+            }
+        });
+        return outputs;
+    }
+
+    private static List<BigInteger> values(double... coins) {
+        List<BigInteger> values = new ArrayList<BigInteger>();
+        for (double value : coins)
+            values.add(toNanoCoins(String.valueOf(value)));
+        return values;
+    }
+
+    private static List<BigInteger> values(Iterable<TransactionOutput> outputs) {
+        List<BigInteger> values = new ArrayList<BigInteger>();
+        for (TransactionOutput output : outputs)
+            values.add(output.getValue());
+        return values;
+    }
+
+    private static byte[] save(Wallet wallet) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        wallet.saveToFileStream(bytes);
+        return bytes.toByteArray();
+    }
+
+    private void receiveInBlock(BigInteger value) throws Exception {
+        receiveInBlock(createFakeTx(params, value, key));
+    }
+
+    private void receiveInBlock(Transaction tx) throws Exception {
+        StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(block);
+    }
+
+    /** Builds on the chain head without solving the block, as nothing here checks the proof of work. */
+    private StoredBlock nextBlock() throws Exception {
+        Block prev = chainHead.getHeader();
+        Block block = new Block(params);
+        block.setDifficultyTarget(prev.getDifficultyTarget());
+        block.addCoinbaseTransaction(new ECKey().getPubKey(), Utils.toNanoCoins(50, 0));
+        block.setPrevBlockHash(prev.getHash());
+        block.setTime(prev.getTimeSeconds() + NetworkParameters.TARGET_SPACING);
+        chainHead = chainHead.build(block);
+        return chainHead;
+    }
+}
@@ -18,8 +18,17 @@ package com.google.anoncoin.core;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.anoncoin.core.Utils.*;
 import static junit.framework.Assert.assertEquals;
@@ -106,4 +115,53 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void testDoubleDigest() {
+        // SHA256(SHA256("hello"))
+        Assert.assertArrayEquals(Hex.decode("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50"),
+                doubleDigest("hello".getBytes()));
+        byte[] input = new byte[100];
+        new Random(1).nextBytes(input);
+        byte[] expected = doubleDigest(input, 10, 50);
+        Assert.assertArrayEquals(expected, doubleDigestTwoBuffers(input, 10, 20, input, 30, 30));
+
+        byte[] output = new byte[40];
+        doubleDigest(input, 10, 50, output, 5);
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(output, 5, 37));
+        // The output may overlap the input.
+        doubleDigest(input, 10, 50, input, 10);
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(input, 10, 42));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDoubleDigestShortOutput() {
+        doubleDigest(new byte[10], 0, 10, new byte[40], 9);
+    }
+
+    @Test
+    public void testDigestFromManyThreads() throws Exception {
+        final byte[] input = new byte[1000];
+        new Random(2).nextBytes(input);
+        final byte[] expected = doubleDigest(input);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        for (int j = 0; j < 1000; j++) {
+                            if (!Arrays.equals(expected, doubleDigest(input)))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
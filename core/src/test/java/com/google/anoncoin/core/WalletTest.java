@@ -24,6 +24,7 @@ import com.google.anoncoin.crypto.KeyCrypterScrypt;
 import com.google.anoncoin.store.BlockStore;
 import com.google.anoncoin.store.MemoryBlockStore;
 import com.google.anoncoin.utils.BriefLogFormatter;
+import com.google.anoncoin.utils.Threading;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 
@@ -47,6 +48,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.anoncoin.core.TestUtils.*;
@@ -272,7 +274,7 @@ public class WalletTest {
             public void onCoinsSent(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
                 txns.add(tx);
             }
-        });
+        }, Threading.SAME_THREAD);
 
         t.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
         t.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
@@ -389,6 +391,45 @@ public class WalletTest {
         assertEquals(v4, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
     }
 
+    @Test
+    public void cachedBalance() throws Exception {
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        BigInteger balance = wallet.getBalance();
+        assertEquals(toNanoCoins(1, 0), balance);
+        // Nothing has changed, so the balance isn't worked out again.
+        assertSame(balance, wallet.getBalance());
+
+        // Coins somebody else sends us are estimated, but not available until they confirm.
+        sendMoneyToWallet(toNanoCoins(2, 0), null);
+        assertEquals(toNanoCoins(3, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+
+        // The change from our own spend becomes available once the network has the spend.
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 10));
+        wallet.commitTx(spend);
+        assertEquals(toNanoCoins(2, 90), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(toNanoCoins(0, 90), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+
+        // Changing the coin selector changes the available balance, but not the estimated one.
+        Wallet.CoinSelector selectNothing = new Wallet.CoinSelector() {
+            public Wallet.CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+                return new Wallet.CoinSelection(BigInteger.ZERO, new LinkedList<TransactionOutput>());
+            }
+        };
+        assertEquals(BigInteger.ZERO, wallet.getBalance(selectNothing));
+        assertEquals(toNanoCoins(0, 90), wallet.getBalance());
+        wallet.setCoinSelector(selectNothing);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(toNanoCoins(2, 90), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        wallet.clearTransactions(0);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to the official client. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
@@ -422,7 +463,7 @@ public class WalletTest {
                 super.onTransactionConfidenceChanged(wallet, tx);
                 confTxns.add(tx);
             }
-        });
+        }, Threading.SAME_THREAD);
         
         // Receive some money.
         BigInteger oneCoin = Utils.toNanoCoins(1, 0);
@@ -618,7 +659,7 @@ public class WalletTest {
             public void onWalletChanged(Wallet wallet) {
                 eventWalletChanged[0]++;
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Receive 1 BTC.
         BigInteger nanos = Utils.toNanoCoins(1, 0);
@@ -679,7 +720,7 @@ public class WalletTest {
             public void onWalletChanged(Wallet wallet) {
                 walletChanged[0]++;
             }
-        });
+        }, Threading.SAME_THREAD);
 
         if (wallet.isPendingTransactionRelevant(t1))
             wallet.receivePending(t1, null);
@@ -697,7 +738,7 @@ public class WalletTest {
             public void onConfidenceChanged(Transaction tx) {
                 flags[1] = true;
             }
-        });
+        }, Threading.SAME_THREAD);
         assertEquals(TransactionConfidence.ConfidenceType.NOT_SEEN_IN_CHAIN,
                 notifiedTx[0].getConfidence().getConfidenceType());
         final Transaction t1Copy = new Transaction(params, t1.anoncoinSerialize());
@@ -727,7 +768,7 @@ public class WalletTest {
                 bigints[0] = prevBalance;
                 bigints[1] = newBalance;
             }
-        });
+        }, Threading.SAME_THREAD);
         // Receive some coins.
         BigInteger nanos = Utils.toNanoCoins(1, 0);
         sendMoneyToWallet(nanos, AbstractBlockChain.NewBlockType.BEST_CHAIN);
@@ -782,7 +823,7 @@ public class WalletTest {
                     called[1] = tx.getConfidence().getOverridingTransaction();
                 }
             }
-        });
+        }, Threading.SAME_THREAD);
 
         assertEquals(BigInteger.ZERO, wallet.getBalance());
         if (wallet.isPendingTransactionRelevant(t1))
@@ -849,6 +890,103 @@ public class WalletTest {
         assertEquals(now + 60, wallet.getEarliestKeyCreationTime());
     }
 
+    @Test
+    public void listenersOnExecutor() throws Exception {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            public void execute(Runnable runnable) {
+                queued.add(runnable);
+            }
+        };
+        final int[] coinsReceived = new int[1], confidenceChanges = new int[1], walletChanges = new int[1];
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                coinsReceived[0]++;
+            }
+
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confidenceChanges[0]++;
+            }
+
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanges[0]++;
+            }
+        }, executor);
+
+        Transaction tx = sendMoneyToWallet(toNanoCoins(1, 0), null);
+        for (int i = 1; i <= 3; i++)
+            tx.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i})));
+        // Nothing runs until the executor gets to it, and the changes queued up behind one another are passed on once.
+        assertEquals(0, coinsReceived[0] + confidenceChanges[0] + walletChanges[0]);
+        List<Runnable> toRun = new ArrayList<Runnable>(queued);
+        queued.clear();
+        for (Runnable runnable : toRun)
+            runnable.run();
+        assertEquals(1, coinsReceived[0]);
+        assertEquals(1, confidenceChanges[0]);
+        assertEquals(1, walletChanges[0]);
+
+        // Once those have run, the next change is queued again.
+        tx.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, 4})));
+        for (Runnable runnable : queued)
+            runnable.run();
+        assertEquals(2, confidenceChanges[0]);
+        assertEquals(2, walletChanges[0]);
+    }
+
+    @Test
+    public void keyLookups() throws Exception {
+        ECKey other = new ECKey();
+        assertEquals(myKey, wallet.findKeyFromPubHash(myKey.getPubKeyHash()));
+        assertEquals(myKey, wallet.findKeyFromPubKey(myKey.getPubKey()));
+        assertNull(wallet.findKeyFromPubHash(other.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(other.getPubKey()));
+        assertFalse(wallet.hasKey(other));
+        // A key with the same public key as one that's already there isn't added again.
+        assertFalse(wallet.addKey(new ECKey(null, myKey.getPubKey())));
+        assertEquals(1, wallet.getKeychainSize());
+
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 100; i++)
+            keys.add(new ECKey());
+        assertEquals(keys.size(), wallet.addKeys(keys));
+        for (ECKey key : keys) {
+            assertEquals(key, wallet.findKeyFromPubHash(key.getPubKeyHash()));
+            assertEquals(key, wallet.findKeyFromPubKey(key.getPubKey()));
+            assertTrue(wallet.hasKey(key));
+        }
+
+        // Nothing is found for null, as when the keychain was searched.
+        assertNull(wallet.findKeyFromPubHash(null));
+        assertNull(wallet.findKeyFromPubKey(null));
+        assertFalse(wallet.hasKey(null));
+
+        // Changes made directly to the keychain are picked up too, even ones that leave its size the same.
+        wallet.keychain.add(other);
+        assertTrue(wallet.hasKey(other));
+        wallet.keychain.remove(other);
+        assertFalse(wallet.isPubKeyHashMine(other.getPubKeyHash()));
+        ECKey replaced = wallet.keychain.set(1, other);
+        assertTrue(wallet.hasKey(other));
+        assertFalse(wallet.hasKey(replaced));
+        wallet.keychain.subList(1, 2).set(0, replaced);
+        assertTrue(wallet.hasKey(replaced));
+        assertNull(wallet.findKeyFromPubKey(other.getPubKey()));
+
+        // Encryption and decryption replace the keys, and the lookups return the new ones.
+        wallet.encrypt(keyCrypter, aesKey);
+        ECKey encryptedKey = wallet.findKeyFromPubHash(myKey.getPubKeyHash());
+        assertTrue(encryptedKey.isEncrypted());
+        assertSame(encryptedKey, wallet.findKeyFromPubKey(myKey.getPubKey()));
+        wallet.decrypt(aesKey);
+        ECKey decryptedKey = wallet.findKeyFromPubHash(keys.get(0).getPubKeyHash());
+        assertFalse(decryptedKey.isEncrypted());
+        assertSame(decryptedKey, wallet.findKeyFromPubKey(keys.get(0).getPubKey()));
+    }
+
     @Test
     public void spendToSameWallet() throws Exception {
         // Test that a spend to the same wallet is dealt with correctly.
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.crypto;
+
+import com.lambdaworks.crypto.SCrypt;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ScryptHasherTest {
+    @Test
+    public void matchesReferenceImplementation() throws Exception {
+        Random random = new Random(1234);
+        byte[] header = new byte[ScryptHasher.HEADER_SIZE];
+        byte[] out = new byte[ScryptHasher.HASH_SIZE];
+        for (int i = 0; i < 20; i++) {
+            random.nextBytes(header);
+            ScryptHasher.hashHeader(header, out);
+            assertArrayEquals(SCrypt.scryptJ(header, header, 1024, 1, 1, 32), out);
+        }
+    }
+
+    @Test
+    public void offsets() throws Exception {
+        byte[] header = new byte[ScryptHasher.HEADER_SIZE];
+        new Random(42).nextBytes(header);
+        byte[] padded = new byte[ScryptHasher.HEADER_SIZE + 7];
+        System.arraycopy(header, 0, padded, 7, header.length);
+        byte[] out = new byte[ScryptHasher.HASH_SIZE + 3];
+        new ScryptHasher().hash(padded, 7, out, 3);
+        assertArrayEquals(ScryptHasher.hashHeader(header), Arrays.copyOfRange(out, 3, out.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortHeader() throws Exception {
+        ScryptHasher.hashHeader(new byte[79], new byte[32]);
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.*;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FullPrunedBlockStoreTest {
+    static final NetworkParameters params = NetworkParameters.prodNet();
+
+    @Test
+    public void memoryGetTransactionOutputs() throws Exception {
+        checkGetTransactionOutputs(new MemoryFullPrunedBlockStore(params, 10));
+    }
+
+    @Test
+    public void h2GetTransactionOutputs() throws Exception {
+        File dir = createTempDir();
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, new File(dir, "test").getAbsolutePath(), 10);
+        try {
+            checkGetTransactionOutputs(store);
+        } finally {
+            store.close();
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void mappedGetTransactionOutputs() throws Exception {
+        File dir = createTempDir();
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, dir, 10);
+        try {
+            checkGetTransactionOutputs(store);
+        } finally {
+            store.close();
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void memoryBlocksAndBatches() throws Exception {
+        checkBlocksAndBatches(new MemoryFullPrunedBlockStore(params, 10));
+    }
+
+    @Test
+    public void mappedBlocksAndBatches() throws Exception {
+        File dir = createTempDir();
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, dir, 10);
+        try {
+            checkBlocksAndBatches(store);
+        } finally {
+            store.close();
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void memoryOutputsWithinBatch() throws Exception {
+        checkOutputsWithinBatch(new MemoryFullPrunedBlockStore(params, 10));
+    }
+
+    @Test
+    public void h2OutputsWithinBatch() throws Exception {
+        File dir = createTempDir();
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, new File(dir, "test").getAbsolutePath(), 10);
+        try {
+            checkOutputsWithinBatch(store);
+        } finally {
+            store.close();
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void mappedOutputsWithinBatch() throws Exception {
+        File dir = createTempDir();
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, dir, 10);
+        try {
+            checkOutputsWithinBatch(store);
+        } finally {
+            store.close();
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void h2SingleConnection() throws Exception {
+        // Every operation has to make do with the one connection, so none may ask the pool for a second.
+        File dir = createTempDir();
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, new File(dir, "test").getAbsolutePath(), 10);
+        try {
+            store.setMaxConnections(1);
+            checkGetTransactionOutputs(store);
+            checkOutputsWithinBatch(store);
+            StoredBlock b1 = createStoredBlock(1);
+            store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(), new LinkedList<Transaction>()));
+            // Moves the chain head along too.
+            store.setVerifiedChainHead(b1);
+            assertEquals(b1, store.getChainHead());
+            // Recreates the genesis block and reads the chain heads back.
+            store.resetStore();
+            assertEquals(params.genesisBlock.getHash(), store.getChainHead().getHeader().getHash());
+            assertNull(store.get(b1.getHeader().getHash()));
+        } finally {
+            store.close();
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void h2CloseDuringBatch() throws Exception {
+        // Closing the store lets a batch that is being written finish, but hands out no more connections.
+        File dir = createTempDir();
+        String dbName = new File(dir, "test").getAbsolutePath();
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, dbName, 10);
+        Sha256Hash hash = createStoredBlock(1).getHeader().getHash();
+        StoredTransactionOutput out = new StoredTransactionOutput(hash, 0, Utils.toNanoCoins(1, 0), 1, false,
+                new byte[] {1});
+        try {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(out);
+            store.close();
+            store.commitDatabaseBatchWrite();
+            try {
+                store.getTransactionOutput(hash, 0);
+                fail();
+            } catch (BlockStoreException e) {
+                // Expected.
+            }
+            store = new H2FullPrunedBlockStore(params, dbName, 10);
+            assertEquals(out, store.getTransactionOutput(hash, 0));
+        } finally {
+            store.close();
+            deleteDir(dir);
+        }
+    }
+
+    static File createTempDir() throws Exception {
+        File dir = File.createTempFile("fullprunedblockstore", null);
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    static void deleteDir(File dir) {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /** Returns a block at the given height which is distinct from the others, as its nonce is the height. */
+    static StoredBlock createStoredBlock(int height) throws ProtocolException, VerificationException {
+        byte[] bytes = params.genesisBlock.cloneAsHeader().anoncoinSerialize();
+        Utils.uint32ToByteArrayLE(height, bytes, 76);
+        Block header = new Block(params, bytes);
+        return new StoredBlock(header, header.getWork().multiply(BigInteger.valueOf(height + 1)), height);
+    }
+
+    private void checkBlocksAndBatches(final FullPrunedBlockStore store) throws Exception {
+        // Starts out with the genesis block as both chain heads.
+        Sha256Hash genesisHash = params.genesisBlock.getHash();
+        assertEquals(genesisHash, store.getChainHead().getHeader().getHash());
+        assertEquals(genesisHash, store.getVerifiedChainHead().getHeader().getHash());
+        assertNotNull(store.getUndoBlock(genesisHash));
+        assertNotNull(store.getOnceUndoableStoredBlock(genesisHash));
+
+        // A block put without an undo block was never undoable.
+        StoredBlock b1 = createStoredBlock(1);
+        store.put(b1);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(1, store.get(b1.getHeader().getHash()).getHeight());
+        assertNull(store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertNull(store.getUndoBlock(b1.getHeader().getHash()));
+
+        // Writes in a batch are seen by the writing thread straight away, and by others only once committed.
+        final StoredBlock b2 = createStoredBlock(2);
+        final StoredTransactionOutput out = new StoredTransactionOutput(b2.getHeader().getHash(), 0,
+                Utils.toNanoCoins(1, 0), 2, true, new byte[] {1, 2, 3});
+        store.beginDatabaseBatchWrite();
+        store.put(b2, new StoredUndoableBlock(b2.getHeader().getHash(), new LinkedList<Transaction>()));
+        store.addUnspentTransactionOutput(out);
+        store.setVerifiedChainHead(b2);
+        assertEquals(b2, store.getOnceUndoableStoredBlock(b2.getHeader().getHash()));
+        assertNotNull(store.getTransactionOutput(out.getHash(), 0));
+        final boolean[] seenByOtherThread = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seenByOtherThread[0] = store.getTransactionOutput(out.getHash(), 0) != null;
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertFalse(seenByOtherThread[0]);
+        store.commitDatabaseBatchWrite();
+        assertEquals(b2, store.getChainHead());
+        assertEquals(b2, store.getVerifiedChainHead());
+        StoredTransactionOutput found = store.getTransactionOutput(out.getHash(), 0);
+        assertEquals(out, found);
+        assertEquals(2, found.getHeight());
+        assertArrayEquals(out.getScriptBytes(), found.getScriptBytes());
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        assertEquals(0, store.getUndoBlock(b2.getHeader().getHash()).getTransactions().size());
+
+        // An aborted batch leaves nothing behind.
+        StoredBlock b3 = createStoredBlock(3);
+        store.beginDatabaseBatchWrite();
+        store.put(b3, new StoredUndoableBlock(b3.getHeader().getHash(), new LinkedList<Transaction>()));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.get(b3.getHeader().getHash()));
+        assertNotNull(store.getTransactionOutput(out.getHash(), 0));
+
+        // Removing an output that isn't there is an error.
+        store.removeUnspentTransactionOutput(out);
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        try {
+            store.removeUnspentTransactionOutput(out);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    private void checkGetTransactionOutputs(FullPrunedBlockStore store) throws Exception {
+        Random random = new Random(1);
+        List<StoredTransactionOutPoint> outPoints = new ArrayList<StoredTransactionOutPoint>();
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 20; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            for (int index = 0; index < 3; index++) {
+                StoredTransactionOutput out = new StoredTransactionOutput(new Sha256Hash(hash), index,
+                        Utils.toNanoCoins(i, index), i, false, new byte[] {(byte) i, (byte) index});
+                store.addUnspentTransactionOutput(out);
+                outputs.add(out);
+                // Only ask for some of the outputs of each transaction.
+                if (index != 1)
+                    outPoints.add(new StoredTransactionOutPoint(out));
+            }
+        }
+        StoredTransactionOutPoint missing = new StoredTransactionOutPoint(outputs.get(0).getHash(), 7);
+        outPoints.add(missing);
+
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> result = store.getTransactionOutputs(outPoints);
+        assertEquals(40, result.size());
+        assertFalse(result.containsKey(missing));
+        for (StoredTransactionOutput out : outputs) {
+            StoredTransactionOutput found = result.get(new StoredTransactionOutPoint(out));
+            if (out.getIndex() == 1) {
+                assertNull(found);
+                continue;
+            }
+            assertEquals(out, found);
+            assertEquals(out.getValue(), found.getValue());
+            assertArrayEquals(out.getScriptBytes(), found.getScriptBytes());
+            assertEquals(out.getHeight(), found.getHeight());
+        }
+
+        // Spent outputs are not returned.
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        result = store.getTransactionOutputs(outPoints);
+        assertEquals(39, result.size());
+        assertNull(result.get(new StoredTransactionOutPoint(outputs.get(0))));
+        assertEquals(Utils.toNanoCoins(0, 2),
+                result.get(new StoredTransactionOutPoint(outputs.get(2))).getValue());
+    }
+
+    private void checkOutputsWithinBatch(FullPrunedBlockStore store) throws Exception {
+        Sha256Hash hash = createStoredBlock(1).getHeader().getHash();
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int index = 0; index < 3; index++)
+            outputs.add(new StoredTransactionOutput(hash, index, Utils.toNanoCoins(1, index), 1, false,
+                    new byte[] {(byte) index}));
+        List<StoredTransactionOutPoint> outPoints = new ArrayList<StoredTransactionOutPoint>();
+        for (StoredTransactionOutput out : outputs)
+            outPoints.add(new StoredTransactionOutPoint(out));
+
+        // An output can be created and spent by the same block.
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : outputs)
+            store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertEquals(2, store.getTransactionOutputs(outPoints).size());
+        assertTrue(store.hasUnspentOutputs(hash, 3));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertEquals(outputs.get(1).getValue(), store.getTransactionOutput(hash, 1).getValue());
+        assertEquals(2, store.getTransactionOutputs(outPoints).size());
+
+        // Spending the rest in a batch is seen by hasUnspentOutputs before the commit, and undone by an abort.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(1));
+        store.removeUnspentTransactionOutput(outputs.get(2));
+        assertFalse(store.hasUnspentOutputs(hash, 3));
+        assertEquals(0, store.getTransactionOutputs(outPoints).size());
+        store.abortDatabaseBatchWrite();
+        assertTrue(store.hasUnspentOutputs(hash, 3));
+        assertEquals(2, store.getTransactionOutputs(outPoints).size());
+
+        // And once committed, the transaction has nothing left, but can gain outputs again.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(1));
+        store.removeUnspentTransactionOutput(outputs.get(2));
+        store.commitDatabaseBatchWrite();
+        assertFalse(store.hasUnspentOutputs(hash, 3));
+        store.addUnspentTransactionOutput(outputs.get(0));
+        assertTrue(store.hasUnspentOutputs(hash, 3));
+        assertEquals(outputs.get(0).getValue(), store.getTransactionOutput(hash, 0).getValue());
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.anoncoin.store.FullPrunedBlockStoreTest.createStoredBlock;
+import static com.google.anoncoin.store.FullPrunedBlockStoreTest.createTempDir;
+import static com.google.anoncoin.store.FullPrunedBlockStoreTest.deleteDir;
+import static org.junit.Assert.*;
+
+public class MappedFullPrunedBlockStoreTest {
+    static final NetworkParameters params = NetworkParameters.prodNet();
+    // Small segments so records regularly have to skip to the next one.
+    static final int SEGMENT_SIZE = 4096;
+
+    private File dir;
+    private MappedFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = createTempDir();
+        store = new MappedFullPrunedBlockStore(params, dir, 10, SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        deleteDir(dir);
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        List<StoredTransactionOutput> outputs = addOutputs(500);
+        StoredBlock block = createStoredBlock(1);
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new LinkedList<Transaction>()));
+        store.setVerifiedChainHead(block);
+        store.close();
+
+        store = new MappedFullPrunedBlockStore(params, dir, 10, SEGMENT_SIZE);
+        assertEquals(block, store.getChainHead());
+        assertEquals(block, store.getVerifiedChainHead());
+        assertEquals(block, store.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+        for (StoredTransactionOutput out : outputs)
+            assertOutputEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void replayWriteAheadLog() throws Exception {
+        // Everything since the store was opened is still in the log, as it has not been checkpointed yet.
+        List<StoredTransactionOutput> outputs = addOutputs(50);
+        StoredBlock block = createStoredBlock(1);
+        store.beginDatabaseBatchWrite();
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new LinkedList<Transaction>()));
+        store.setVerifiedChainHead(block);
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.commitDatabaseBatchWrite();
+        byte[] wal = readFile(new File(dir, "wal.log"));
+        store.close();
+
+        // A store made from only the log and a torn batch at its end comes back as of the last full commit.
+        File crashDir = createTempDir();
+        try {
+            byte[] torn = new byte[wal.length + 10];
+            System.arraycopy(wal, 0, torn, 0, wal.length);
+            System.arraycopy(wal, 0, torn, wal.length, 10);
+            writeFile(new File(crashDir, "wal.log"), torn);
+            MappedFullPrunedBlockStore recovered = new MappedFullPrunedBlockStore(params, crashDir, 10, SEGMENT_SIZE);
+            try {
+                assertEquals(block, recovered.getChainHead());
+                assertEquals(block, recovered.getVerifiedChainHead());
+                assertNull(recovered.getTransactionOutput(outputs.get(0).getHash(), 0));
+                for (StoredTransactionOutput out : outputs.subList(1, outputs.size()))
+                    assertOutputEquals(out, recovered.getTransactionOutput(out.getHash(), out.getIndex()));
+            } finally {
+                recovered.close();
+            }
+            assertEquals(0, new File(crashDir, "wal.log").length());
+        } finally {
+            deleteDir(crashDir);
+        }
+    }
+
+    @Test
+    public void pruneUndoBlocks() throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int height = 1; height <= 30; height++) {
+            StoredBlock block = createStoredBlock(height);
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new LinkedList<Transaction>()));
+            blocks.add(block);
+        }
+        store.setVerifiedChainHead(blocks.get(29));
+        for (StoredBlock block : blocks) {
+            Sha256Hash hash = block.getHeader().getHash();
+            if (block.getHeight() <= 20)
+                assertNull(store.getUndoBlock(hash));
+            else
+                assertNotNull(store.getUndoBlock(hash));
+            // The block itself is kept.
+            assertEquals(block, store.getOnceUndoableStoredBlock(hash));
+        }
+    }
+
+    @Test
+    public void compact() throws Exception {
+        List<StoredTransactionOutput> outputs = addOutputs(3000);
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < outputs.size(); i += 4) {
+            for (int j = i; j < i + 3; j++)
+                store.removeUnspentTransactionOutput(outputs.get(j));
+        }
+        store.commitDatabaseBatchWrite();
+        long garbage = store.getGarbageBytes();
+        assertTrue(garbage > 0);
+
+        store.compact();
+        assertTrue(store.getGarbageBytes() < garbage / 10);
+        checkEveryFourthOutput(outputs);
+        // The old generation is deleted.
+        assertFalse(new File(dir, "outputs-0.dat").exists());
+        assertTrue(new File(dir, "outputs-1.dat").exists());
+
+        // Still there after the store is opened again, and it can carry on from where it was.
+        store.close();
+        store = new MappedFullPrunedBlockStore(params, dir, 10, SEGMENT_SIZE);
+        checkEveryFourthOutput(outputs);
+        store.removeUnspentTransactionOutput(outputs.get(3));
+        assertNull(store.getTransactionOutput(outputs.get(3).getHash(), outputs.get(3).getIndex()));
+    }
+
+    private void checkEveryFourthOutput(List<StoredTransactionOutput> outputs) throws BlockStoreException {
+        for (int i = 0; i < outputs.size(); i++) {
+            StoredTransactionOutput out = outputs.get(i);
+            StoredTransactionOutput found = store.getTransactionOutput(out.getHash(), out.getIndex());
+            if (i % 4 == 3)
+                assertOutputEquals(out, found);
+            else
+                assertNull(found);
+        }
+    }
+
+    private List<StoredTransactionOutput> addOutputs(int count) throws BlockStoreException {
+        Random random = new Random(1);
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] script = new byte[random.nextInt(100)];
+            random.nextBytes(script);
+            StoredTransactionOutput out = new StoredTransactionOutput(new Sha256Hash(hash), i % 3,
+                    Utils.toNanoCoins(i, 0), i, i % 2 == 0, script);
+            store.addUnspentTransactionOutput(out);
+            outputs.add(out);
+        }
+        store.commitDatabaseBatchWrite();
+        return outputs;
+    }
+
+    private static void assertOutputEquals(StoredTransactionOutput expected, StoredTransactionOutput found) {
+        assertEquals(expected, found);
+        assertEquals(expected.getValue(), found.getValue());
+        assertEquals(expected.getHeight(), found.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), found.getScriptBytes());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length)
+                offset += in.read(bytes, offset, bytes.length - offset);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -19,12 +19,20 @@ package com.google.anoncoin.store;
 import com.google.anoncoin.core.Address;
 import com.google.anoncoin.core.ECKey;
 import com.google.anoncoin.core.NetworkParameters;
+import com.google.anoncoin.core.Sha256Hash;
 import com.google.anoncoin.core.StoredBlock;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.junit.Assert.assertEquals;
+import static com.google.anoncoin.store.FullPrunedBlockStoreTest.createStoredBlock;
+import static org.junit.Assert.*;
 
 public class SPVBlockStoreTest {
 
@@ -57,4 +65,294 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void readersDuringPuts() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockIndex.indexFileFor(f).deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f);
+        // Enough blocks for the ring to wrap around more than once.
+        final int count = SPVBlockStore.DEFAULT_NUM_HEADERS * 2 + 500;
+        final StoredBlock[] blocks = new StoredBlock[count];
+        for (int i = 0; i < count; i++)
+            blocks[i] = createStoredBlock(i + 1);
+
+        // A block that was missed is found once it is put.
+        Sha256Hash first = blocks[0].getHeader().getHash();
+        assertNull(store.get(first));
+        store.put(blocks[0]);
+        assertEquals(blocks[0], store.get(first));
+
+        final AtomicInteger written = new AtomicInteger(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            final Random random = new Random(r);
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            // Any block still in the ring must be found, whether it comes from the cache or the
+                            // ring. It only drops out once the block numHeaders after it is being put.
+                            int newest = written.get() - 1;
+                            int i = Math.max(0, newest - random.nextInt(SPVBlockStore.DEFAULT_NUM_HEADERS / 2));
+                            StoredBlock found = store.get(blocks[i].getHeader().getHash());
+                            if (found == null) {
+                                assertTrue(written.get() >= i + SPVBlockStore.DEFAULT_NUM_HEADERS);
+                                continue;
+                            }
+                            assertEquals(blocks[i], found);
+                            assertEquals(blocks[i].getHeight(), found.getHeight());
+                            assertNotNull(store.getChainHead());
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        try {
+            for (int i = 1; i < count; i++) {
+                store.put(blocks[i]);
+                store.setChainHead(blocks[i]);
+                written.set(i + 1);
+            }
+        } finally {
+            done.set(true);
+        }
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(blocks[count - 1], store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void indexAfterReopen() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File indexFile = SPVBlockIndex.indexFileFor(f);
+        indexFile.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        // Wrap the ring, so the oldest blocks have been overwritten and dropped from the index.
+        int count = SPVBlockStore.DEFAULT_NUM_HEADERS + 1000;
+        StoredBlock[] blocks = new StoredBlock[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = createStoredBlock(i + 1);
+            store.put(blocks[i]);
+        }
+        store.setChainHead(blocks[count - 1]);
+        store.close();
+
+        // Reopened with the index as it was closed.
+        store = new SPVBlockStore(params, f);
+        checkRing(store, blocks);
+        store.close();
+
+        // An index that wasn't closed cleanly is rebuilt from the ring, and so is one that's gone.
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(4);
+        raf.writeInt(0);
+        raf.close();
+        store = new SPVBlockStore(params, f);
+        checkRing(store, blocks);
+        store.close();
+        assertTrue(indexFile.delete());
+        store = new SPVBlockStore(params, f);
+        checkRing(store, blocks);
+        assertEquals(blocks[count - 1], store.getChainHead());
+        // And carries on being kept up to date.
+        StoredBlock next = createStoredBlock(count + 1);
+        store.put(next);
+        assertEquals(next, store.get(next.getHeader().getHash()));
+        assertNull(store.get(blocks[1000].getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void capacity() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockIndex.indexFileFor(f).deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        assertEquals(100, store.getCapacity());
+        assertEquals(SPVBlockStore.FILE_PROLOGUE_BYTES + 100 * SPVBlockStore.RECORD_SIZE, f.length());
+        StoredBlock[] blocks = new StoredBlock[150];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = createStoredBlock(i + 1);
+            store.put(blocks[i]);
+        }
+        store.setChainHead(blocks[blocks.length - 1]);
+        checkRing(store, blocks, 100);
+        store.close();
+
+        // Opening the file with the default size keeps the size it has, and opening it with a bigger one grows it.
+        store = new SPVBlockStore(params, f);
+        assertEquals(100, store.getCapacity());
+        checkRing(store, blocks, 100);
+        store.close();
+        store = new SPVBlockStore(params, f, 300);
+        assertEquals(300, store.getCapacity());
+        assertEquals(SPVBlockStore.FILE_PROLOGUE_BYTES + 300 * SPVBlockStore.RECORD_SIZE, f.length());
+        checkRing(store, blocks, 100);
+        assertEquals(blocks[blocks.length - 1], store.getChainHead());
+        try {
+            store.grow(200);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        store.close();
+    }
+
+    @Test
+    public void growWrappedRing() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockIndex.indexFileFor(f).deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 1000);
+        StoredBlock[] blocks = new StoredBlock[4000];
+        for (int i = 0; i < blocks.length; i++)
+            blocks[i] = createStoredBlock(i + 1);
+        // Wrap the ring part of the way round, so the newest blocks are at the start of the file.
+        for (int i = 0; i < 1300; i++)
+            store.put(blocks[i]);
+        store.setChainHead(blocks[1299]);
+        store.grow(3000);
+        assertEquals(3000, store.getCapacity());
+        checkRing(store, Arrays.copyOf(blocks, 1300), 1000);
+        assertEquals(blocks[1299], store.getChainHead());
+
+        // The new room is used before anything more is overwritten.
+        for (int i = 1300; i < 3300; i++)
+            store.put(blocks[i]);
+        checkRing(store, Arrays.copyOf(blocks, 3300), 3000);
+        // And then the ring wraps again, oldest first.
+        for (int i = 3300; i < blocks.length; i++)
+            store.put(blocks[i]);
+        checkRing(store, blocks, 3000);
+        store.close();
+        store = new SPVBlockStore(params, f);
+        assertEquals(3000, store.getCapacity());
+        checkRing(store, blocks, 3000);
+        store.close();
+    }
+
+    @Test
+    public void growWrappedRingALittle() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File indexFile = SPVBlockIndex.indexFileFor(f);
+        indexFile.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        StoredBlock[] blocks = new StoredBlock[300];
+        for (int i = 0; i < blocks.length; i++)
+            blocks[i] = createStoredBlock(i + 1);
+        for (int i = 0; i < 130; i++)
+            store.put(blocks[i]);
+        store.setChainHead(blocks[129]);
+        // The older records are moved up by less than there are of them, so they're moved a bit at a time.
+        store.grow(101);
+        store.grow(107);
+        checkRing(store, Arrays.copyOf(blocks, 130), 100);
+        store.close();
+
+        // The grown index took the old one's place, and is used as it is when the store is opened again.
+        assertFalse(new File(indexFile.getPath() + ".new").exists());
+        store = new SPVBlockStore(params, f);
+        checkRing(store, Arrays.copyOf(blocks, 130), 100);
+        store.close();
+
+        // The records that were moved leave copies behind, which the index mustn't go by when it's rebuilt.
+        assertTrue(indexFile.delete());
+        store = new SPVBlockStore(params, f);
+        assertEquals(107, store.getCapacity());
+        checkRing(store, Arrays.copyOf(blocks, 130), 100);
+        assertEquals(blocks[129], store.getChainHead());
+        for (int i = 130; i < blocks.length; i++)
+            store.put(blocks[i]);
+        checkRing(store, blocks, 107);
+        store.close();
+    }
+
+    @Test
+    public void readersDuringGrow() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockIndex.indexFileFor(f).deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f, 500);
+        final StoredBlock[] blocks = new StoredBlock[700];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = createStoredBlock(i + 1);
+            store.put(blocks[i]);
+        }
+        store.setChainHead(blocks[blocks.length - 1]);
+        // Nothing grows the store while the readers run, so the blocks in the ring stay put.
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            final Random random = new Random(r);
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            int i = blocks.length - 500 + random.nextInt(500);
+                            assertEquals(blocks[i], store.get(blocks[i].getHeader().getHash()));
+                            assertEquals(blocks[blocks.length - 1], store.getChainHead());
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        try {
+            for (int capacity = 600; capacity <= 5000; capacity += 100)
+                store.grow(capacity);
+        } finally {
+            done.set(true);
+        }
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        checkRing(store, blocks, 500);
+        store.close();
+    }
+
+    private void checkRing(SPVBlockStore store, StoredBlock[] blocks) throws Exception {
+        checkRing(store, blocks, SPVBlockStore.DEFAULT_NUM_HEADERS);
+    }
+
+    private void checkRing(SPVBlockStore store, StoredBlock[] blocks, int numHeaders) throws Exception {
+        // The genesis block and the first blocks put have been overwritten, the rest are still there.
+        int oldest = blocks.length - numHeaders;
+        for (int i = 0; i < blocks.length; i++) {
+            StoredBlock found = store.get(blocks[i].getHeader().getHash());
+            if (i < oldest)
+                assertNull(found);
+            else
+                assertEquals(blocks[i], found);
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.*;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class TransactionArchiveTest {
+    private NetworkParameters params;
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock chainHead;
+    private int nonce;
+    private File archiveFile;
+    private TransactionArchive archive;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        wallet = new Wallet(params);
+        key = new ECKey();
+        wallet.addKey(key);
+        chainHead = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+        archiveFile = File.createTempFile("transactions", ".archive");
+        archiveFile.delete();
+        archive = new TransactionArchive(params, archiveFile);
+        wallet.setTransactionArchive(archive);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        archive.close();
+        archiveFile.delete();
+        new File(archiveFile.getPath() + ".index").delete();
+    }
+
+    @Test
+    public void archivesBuriedSpentTransactions() throws Exception {
+        Transaction received = createFakeTx(params, toNanoCoins(1, 0), key);
+        received.setUpdateTime(new Date(1000));
+        receiveInBlock(received);
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 60));
+        spend.setUpdateTime(new Date(2000));
+        wallet.commitTx(spend);
+        Transaction pending = createFakeTx(params, toNanoCoins(2, 0), key);
+        pending.setUpdateTime(new Date(3000));
+        wallet.receivePending(pending, null);
+
+        // Nothing is archived until whatever spent it is buried deep enough too.
+        for (int i = 0; i < 5; i++)
+            wallet.notifyNewBestBlock(nextBlock());
+        assertEquals(0, wallet.archiveSpentTransactions(3));
+        receiveInBlock(spend);
+        assertEquals(0, wallet.archiveSpentTransactions(3));
+        for (int i = 0; i < 2; i++)
+            wallet.notifyNewBestBlock(nextBlock());
+        BigInteger balance = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+        assertEquals(1, wallet.archiveSpentTransactions(3));
+        assertTrue(archive.contains(received.getHash()));
+        assertFalse(wallet.getTransactions(true, true).contains(received));
+        assertEquals(balance, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+
+        // The archived transaction is read back, a copy each time, buried under the blocks since.
+        wallet.notifyNewBestBlock(nextBlock());
+        Transaction archived = wallet.getTransaction(received.getHash());
+        assertEquals(received, archived);
+        assertNotSame(received, archived);
+        assertEquals(10, archived.getConfidence().getDepthInBlocks());
+        assertFalse(archived.getOutput(0).isAvailableForSpending());
+        assertEquals(received.getUpdateTime(), archived.getUpdateTime());
+
+        // Both tiers are listed newest first, and the archive is still there when opened again.
+        assertEquals(Lists.newArrayList(pending, spend, received), Lists.newArrayList(wallet.getAllTransactionsByTime()));
+        archive.close();
+        archive = new TransactionArchive(params, archiveFile);
+        assertEquals(1, archive.size());
+        List<Transaction> reopened = Lists.newArrayList(archive.getTransactionsByTime(chainHead.getHeight()));
+        assertEquals(Lists.newArrayList(received), reopened);
+        assertEquals(10, reopened.get(0).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void trimArchivesInsteadOfDropping() throws Exception {
+        Transaction received = createFakeTx(params, toNanoCoins(1, 0), key);
+        receiveInBlock(received);
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 60));
+        wallet.commitTx(spend);
+        receiveInBlock(spend);
+        for (int i = 0; i < 2020; i++)
+            wallet.notifyNewBestBlock(nextBlock());
+        wallet.trim(1);
+        assertEquals(1, archive.size());
+        assertEquals(received, wallet.getTransaction(received.getHash()));
+        assertEquals(1, wallet.getTransactions(true, true).size());
+    }
+
+    private void receiveInBlock(Transaction tx) throws Exception {
+        StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(block);
+    }
+
+    /** Returns a header on top of the chain head. Nothing here checks its proof of work or what it builds on. */
+    private StoredBlock nextBlock() throws Exception {
+        byte[] header = params.genesisBlock.cloneAsHeader().anoncoinSerialize();
+        header[76] = (byte) ++nonce;
+        header[77] = (byte) (nonce >> 8);
+        Block block = new Block(params, header);
+        chainHead = new StoredBlock(block, chainHead.getChainWork().add(block.getWork()), chainHead.getHeight() + 1);
+        return chainHead;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.Sha256Hash;
+import com.google.anoncoin.core.StoredTransactionOutput;
+import com.google.anoncoin.core.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UnspentOutputSlabTest {
+    private UnspentOutputSlab slab;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        slab = new UnspentOutputSlab();
+        random = new Random(1);
+    }
+
+    @Test
+    public void putGetRemove() {
+        StoredTransactionOutput coinbase = createOutput(0, true);
+        StoredTransactionOutput other = new StoredTransactionOutput(coinbase.getHash(), 1, Utils.toNanoCoins(3, 0),
+                10, false, new byte[0]);
+        slab.put(coinbase);
+        slab.put(other);
+        assertEquals(2, slab.size());
+        assertOutputEquals(coinbase, slab.get(coinbase.getHash(), 0));
+        assertOutputEquals(other, slab.get(coinbase.getHash(), 1));
+        assertNull(slab.get(coinbase.getHash(), 2));
+
+        assertTrue(slab.remove(coinbase.getHash(), 0));
+        assertFalse(slab.remove(coinbase.getHash(), 0));
+        assertNull(slab.get(coinbase.getHash(), 0));
+        assertOutputEquals(other, slab.get(coinbase.getHash(), 1));
+        assertEquals(1, slab.size());
+
+        // Putting an outpoint again replaces what was there.
+        StoredTransactionOutput replacement = new StoredTransactionOutput(coinbase.getHash(), 1,
+                Utils.toNanoCoins(4, 0), 11, true, new byte[] {1});
+        slab.put(replacement);
+        assertEquals(1, slab.size());
+        assertOutputEquals(replacement, slab.get(coinbase.getHash(), 1));
+    }
+
+    @Test
+    public void growAndCompact() {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 100000; i++) {
+            StoredTransactionOutput out = createOutput(i % 5, i % 7 == 0);
+            slab.put(out);
+            outputs.add(out);
+        }
+        assertEquals(outputs.size(), slab.size());
+        long fullBytes = slab.getBytesUsed();
+        for (StoredTransactionOutput out : outputs)
+            assertOutputEquals(out, slab.get(out.getHash(), out.getIndex()));
+
+        // Spending most of the outputs gets their memory back.
+        for (int i = 0; i < outputs.size(); i++) {
+            if (i % 10 != 0)
+                assertTrue(slab.remove(outputs.get(i).getHash(), outputs.get(i).getIndex()));
+        }
+        assertEquals(outputs.size() / 10, slab.size());
+        assertTrue(slab.getBytesUsed() < fullBytes);
+        for (int i = 0; i < outputs.size(); i++) {
+            StoredTransactionOutput out = outputs.get(i);
+            if (i % 10 == 0)
+                assertOutputEquals(out, slab.get(out.getHash(), out.getIndex()));
+            else
+                assertNull(slab.get(out.getHash(), out.getIndex()));
+        }
+    }
+
+    @Test
+    public void outputBiggerThanPage() {
+        StoredTransactionOutput small = createOutput(0, false);
+        StoredTransactionOutput big = new StoredTransactionOutput(small.getHash(), 1, Utils.toNanoCoins(1, 0), 5,
+                false, new byte[UnspentOutputSlab.PAGE_SIZE + 100]);
+        slab.put(small);
+        slab.put(big);
+        StoredTransactionOutput after = createOutput(0, false);
+        slab.put(after);
+        assertOutputEquals(small, slab.get(small.getHash(), 0));
+        assertOutputEquals(big, slab.get(small.getHash(), 1));
+        assertOutputEquals(after, slab.get(after.getHash(), 0));
+    }
+
+    private StoredTransactionOutput createOutput(int index, boolean isCoinbase) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        byte[] script = new byte[random.nextInt(70)];
+        random.nextBytes(script);
+        return new StoredTransactionOutput(new Sha256Hash(hash), index, Utils.toNanoCoins(random.nextInt(1000), 0),
+                random.nextInt(100000), isCoinbase, script);
+    }
+
+    private static void assertOutputEquals(StoredTransactionOutput expected, StoredTransactionOutput found) {
+        assertEquals(expected, found);
+        assertEquals(expected.getValue(), found.getValue());
+        assertEquals(expected.getHeight(), found.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), found.getScriptBytes());
+    }
+}
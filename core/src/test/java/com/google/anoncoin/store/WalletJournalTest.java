@@ -0,0 +1,187 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.anoncoin.store;
+
+import com.google.anoncoin.core.*;
+import com.google.common.io.Files;
+import org.anoncoinj.wallet.Protos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.anoncoin.core.TestUtils.createFakeTx;
+import static com.google.anoncoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest {
+    private NetworkParameters params;
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock chainHead;
+    private int nonce;
+    private File walletFile;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+        wallet = new Wallet(params);
+        key = new ECKey();
+        wallet.addKey(key);
+        chainHead = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+        walletFile = File.createTempFile("journal", ".wallet");
+        journalFile = WalletJournal.fileFor(walletFile);
+        wallet.setAutosaveJournal(1024 * 1024);
+        wallet.autosaveToFile(walletFile, 0, TimeUnit.SECONDS, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        walletFile.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void appendsChangesAfterCheckpoint() throws Exception {
+        Transaction first = receiveInBlock(toNanoCoins(1, 0));
+        // The first save writes the whole wallet, and the ones after that only add to the journal.
+        byte[] checkpoint = Files.toByteArray(walletFile);
+        long journalSize = journalFile.length();
+        Transaction second = receiveInBlock(toNanoCoins(2, 0));
+        Transaction pending = createFakeTx(params, toNanoCoins(3, 0), key);
+        wallet.receivePending(pending, null);
+        ECKey added = new ECKey();
+        wallet.addKey(added);
+        for (int i = 0; i < 5; i++)
+            wallet.notifyNewBestBlock(nextBlock());
+        assertArrayEquals(checkpoint, Files.toByteArray(walletFile));
+        assertTrue(journalFile.length() > journalSize);
+
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertSameAs(wallet, loaded);
+        assertEquals(toNanoCoins(6, 0), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(loaded.hasKey(added));
+        assertEquals(7, loaded.getTransaction(first.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(6, loaded.getTransaction(second.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getTransaction(first.getHash()).getConfidence().getWorkDone(),
+                loaded.getTransaction(first.getHash()).getConfidence().getWorkDone());
+        assertEquals(TransactionConfidence.ConfidenceType.NOT_SEEN_IN_CHAIN,
+                loaded.getTransaction(pending.getHash()).getConfidence().getConfidenceType());
+    }
+
+    @Test
+    public void checkpointsWhenJournalIsFull() throws Exception {
+        wallet.setAutosaveJournal(1);
+        receiveInBlock(toNanoCoins(1, 0));
+        byte[] checkpoint = Files.toByteArray(walletFile);
+        receiveInBlock(toNanoCoins(2, 0));
+        // The header of the journal alone is over the limit, so every save writes the whole wallet.
+        assertFalse(Arrays.equals(checkpoint, Files.toByteArray(walletFile)));
+        assertEquals(12, journalFile.length());
+        assertSameAs(wallet, Wallet.loadFromFile(walletFile));
+    }
+
+    @Test
+    public void ignoresCutShortRecordsAndOtherGenerations() throws Exception {
+        receiveInBlock(toNanoCoins(1, 0));
+        byte[] oldCheckpoint = Files.toByteArray(walletFile);
+        receiveInBlock(toNanoCoins(2, 0));
+        ECKey added = new ECKey();
+        wallet.addKey(added);
+
+        // A record cut short by a crash is dropped, along with the key it was adding.
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        journal.setLength(journal.length() - 3);
+        journal.close();
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertFalse(loaded.hasKey(added));
+        assertEquals(toNanoCoins(3, 0), loaded.getBalance());
+
+        // Starting the journal afresh writes a new checkpoint, and the new journal doesn't go with the old one.
+        wallet.setAutosaveJournal(1024 * 1024);
+        receiveInBlock(toNanoCoins(4, 0));
+        assertSameAs(wallet, Wallet.loadFromFile(walletFile));
+        Files.write(oldCheckpoint, walletFile);
+        loaded = Wallet.loadFromFile(walletFile);
+        assertEquals(toNanoCoins(1, 0), loaded.getBalance());
+    }
+
+    @Test
+    public void dropsOutOfDateChanges() throws Exception {
+        File otherFile = File.createTempFile("journal", ".wallet");
+        WalletJournal journal = new WalletJournal(otherFile);
+        try {
+            Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(wallet);
+            journal.newSnapshot(walletProto);
+            journal.start();
+            long generation = journal.getGeneration();
+            assertTrue(journal.append(walletProto, 1, BigInteger.ONE, generation));
+            assertTrue(journal.size() > 12);
+
+            // Changes taken before a checkpoint that started a new journal would be played back onto the wrong file.
+            journal.newSnapshot(walletProto);
+            journal.start();
+            assertFalse(journal.append(walletProto, 1, BigInteger.ONE, generation));
+            assertEquals(12, journal.size());
+            assertEquals(12, journal.getFile().length());
+            journal.close();
+            assertFalse(journal.append(walletProto, 1, BigInteger.ONE, journal.getGeneration()));
+        } finally {
+            journal.close();
+            otherFile.delete();
+            journal.getFile().delete();
+        }
+    }
+
+    private static void assertSameAs(Wallet expected, Wallet actual) {
+        assertEquals(expected.getBalance(), actual.getBalance());
+        assertEquals(expected.getBalance(Wallet.BalanceType.ESTIMATED), actual.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(expected.getTransactions(true, true), actual.getTransactions(true, true));
+        assertEquals(expected.getKeychainSize(), actual.getKeychainSize());
+        assertEquals(expected.getLastBlockSeenHash(), actual.getLastBlockSeenHash());
+        assertEquals(expected.getLastBlockSeenHeight(), actual.getLastBlockSeenHeight());
+        for (Transaction tx : expected.getTransactions(true, true)) {
+            TransactionConfidence confidence = actual.getTransaction(tx.getHash()).getConfidence();
+            assertEquals(tx.getConfidence().getConfidenceType(), confidence.getConfidenceType());
+            if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                assertEquals(tx.getConfidence().getDepthInBlocks(), confidence.getDepthInBlocks());
+        }
+    }
+
+    private Transaction receiveInBlock(BigInteger value) throws Exception {
+        Transaction tx = createFakeTx(params, value, key);
+        StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(block);
+        return tx;
+    }
+
+    /** Returns a header on top of the chain head. Nothing here checks its proof of work or what it builds on. */
+    private StoredBlock nextBlock() throws Exception {
+        byte[] header = params.genesisBlock.cloneAsHeader().anoncoinSerialize();
+        header[76] = (byte) ++nonce;
+        Block block = new Block(params, header);
+        chainHead = new StoredBlock(block, chainHead.getChainWork().add(block.getWork()), chainHead.getHeight() + 1);
+        return chainHead;
+    }
+}
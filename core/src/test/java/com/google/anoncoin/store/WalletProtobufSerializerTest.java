@@ -4,7 +4,9 @@ package com.google.anoncoin.store;
 import com.google.anoncoin.core.*;
 import com.google.anoncoin.core.TransactionConfidence.ConfidenceType;
 import com.google.anoncoin.utils.BriefLogFormatter;
+import com.google.anoncoin.utils.Threading;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import org.anoncoinj.wallet.Protos;
 import org.junit.Before;
 import org.junit.Test;
@@ -160,7 +162,7 @@ public class WalletProtobufSerializerTest {
             public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
                 txns.add(tx);
             }
-        });
+        }, Threading.SAME_THREAD);
 
         // Start by building two blocks on top of the genesis block.
         Block b1 = params.genesisBlock.createNextBlock(myAddress);
@@ -225,6 +227,78 @@ public class WalletProtobufSerializerTest {
         assertEquals(work2, rebornConfidence1.getWorkDone());
     }
 
+    @Test
+    public void lazyTransactions() throws Exception {
+        BlockChain chain = new BlockChain(params, myWallet, new MemoryBlockStore(params));
+        Block b1 = params.genesisBlock.createNextBlock(myAddress);
+        Block b2 = b1.createNextBlock(myAddress);
+        assertTrue(chain.add(b1));
+        Transaction pending = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        myWallet.receivePending(pending, null);
+        Transaction coinbase = b1.getTransactions().get(0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertTrue(wallet1.hasTransactionsToLoad());
+        assertTrue(wallet1.hasKey(myKey));
+        assertEquals(myWallet.getLastBlockSeenHash(), wallet1.getLastBlockSeenHash());
+
+        // A block that arrives before the transactions are wanted still buries them.
+        StoredBlock stored2 = new StoredBlock(b2.cloneAsHeader(),
+                params.genesisBlock.getWork().add(b1.getWork()).add(b2.getWork()), 2);
+        myWallet.notifyNewBestBlock(stored2);
+        wallet1.notifyNewBestBlock(stored2);
+        assertTrue(wallet1.hasTransactionsToLoad());
+
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertFalse(wallet1.hasTransactionsToLoad());
+        assertEquals(2, wallet1.getTransactions(true, true).size());
+        TransactionConfidence confidence = wallet1.getTransaction(coinbase.getHash()).getConfidence();
+        assertEquals(2, confidence.getDepthInBlocks());
+        assertEquals(myWallet.getTransaction(coinbase.getHash()).getConfidence().getWorkDone(), confidence.getWorkDone());
+        assertEquals(ConfidenceType.NOT_SEEN_IN_CHAIN,
+                wallet1.getTransaction(pending.getHash()).getConfidence().getConfidenceType());
+    }
+
+    @Test
+    public void lazyTransactionsThatFailToLoad() throws Exception {
+        Transaction tx1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        Transaction tx2 = createFakeTx(params, Utils.toNanoCoins(2, 0), myAddress);
+        myWallet.receivePending(tx1, null);
+        myWallet.receivePending(tx2, null);
+        // A wallet file with the first transaction in it twice, which is only found once one copy has been added.
+        Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(myWallet);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        walletProto.toBuilder().clearTransaction().build().writeTo(output);
+        CodedOutputStream out = CodedOutputStream.newInstance(output);
+        for (int i : new int[] { 0, 1, 0 })
+            out.writeMessage(Protos.Wallet.TRANSACTION_FIELD_NUMBER, walletProto.getTransaction(i));
+        out.flush();
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                wallet1.getBalance(Wallet.BalanceType.ESTIMATED);
+                fail();
+            } catch (IllegalStateException e) {
+                // Expected.
+            }
+            // The wallet still has its transactions to load, rather than just the ones that loaded, and tries again.
+            assertTrue(wallet1.hasTransactionsToLoad());
+        }
+        try {
+            wallet1.saveToFileStream(new ByteArrayOutputStream());
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected: it isn't saved without them.
+        }
+    }
+
     private Wallet roundTrip(Wallet wallet) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         //System.out.println(WalletProtobufSerializer.walletToText(wallet));
@@ -18,24 +18,38 @@ package com.google.anoncoin.tools;
 
 import com.google.anoncoin.core.Block;
 import com.google.anoncoin.core.FullPrunedBlockChain;
+import com.google.anoncoin.core.HeaderVerifier;
 import com.google.anoncoin.core.NetworkParameters;
 import com.google.anoncoin.core.Utils;
 import com.google.anoncoin.store.FullPrunedBlockStore;
 import com.google.anoncoin.store.H2FullPrunedBlockStore;
+import com.google.anoncoin.store.MappedFullPrunedBlockStore;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class reads block files stored in the reference/Satoshi clients format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.
+ *
+ * <p>Blocks go into an H2 database by default. Pass "mapped" as the only argument to use a
+ * {@link MappedFullPrunedBlockStore} instead. The time taken is printed at the end, so the two can be compared.</p>
  */
 public class BlockImporter {
+    // How many blocks to read ahead and check the proof of work of in parallel before adding them to the chain.
+    private static final int VERIFY_BATCH_SIZE = 500;
+
     public static void main(String[] args) throws Exception {
         NetworkParameters params = NetworkParameters.prodNet();
-        FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, "toy-full.blockchain", 100);
+        FullPrunedBlockStore store;
+        if (args.length > 0 && args[0].equals("mapped"))
+            store = new MappedFullPrunedBlockStore(params, new File("toy-full.mappedchain"), 100);
+        else
+            store = new H2FullPrunedBlockStore(params, "toy-full.blockchain", 100);
         FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
         
         String defaultDataDir;
@@ -47,6 +61,9 @@ public class BlockImporter {
         
         // TODO: Move this to a library function
         FileInputStream stream = new FileInputStream(new File(defaultDataDir + "blk0001.dat"));
+        HeaderVerifier verifier = new HeaderVerifier();
+        List<Block> batch = new ArrayList<Block>(VERIFY_BATCH_SIZE);
+        long start = System.currentTimeMillis();
         int i = 0;
         while (stream.available() > 0) {
             try {
@@ -65,13 +82,28 @@ public class BlockImporter {
             stream.read(bytes, 0, (int)size);
             Block block = new Block(params, bytes);
             if (store.get(block.getHash()) == null)
-                chain.add(block);
+                batch.add(block);
+            if (batch.size() >= VERIFY_BATCH_SIZE) {
+                addBatch(chain, verifier, batch);
+                batch.clear();
+            }
             
             if (i % 10000 == 0)
                 System.out.println(i);
             i++;
         }
+        addBatch(chain, verifier, batch);
+        verifier.shutdown();
         stream.close();
-        System.out.println("Imported " + chain.getChainHead().getHeight() + " blocks.");
+        System.out.println("Imported " + chain.getChainHead().getHeight() + " blocks in " +
+                (System.currentTimeMillis() - start) / 1000 + " seconds.");
+        store.close();
+    }
+
+    private static void addBatch(FullPrunedBlockChain chain, HeaderVerifier verifier, List<Block> batch)
+            throws Exception {
+        // Proof of work is checked for the whole batch at once, the chain then only has to connect the blocks. Adding
+        // them together lets the chain look up each block's inputs whilst the previous block's scripts are verified.
+        chain.addAll(verifier.verify(batch));
     }
 }
@@ -331,7 +331,10 @@ public class WalletTool {
 
         try {
             WalletProtobufSerializer loader = new WalletProtobufSerializer();
-            wallet = loader.readWallet(new BufferedInputStream(new FileInputStream(walletFile)));
+            // Play back the journal the wallet may have been auto-saved with.
+            Protos.Wallet walletProto =
+                    WalletProtobufSerializer.parseToProto(new BufferedInputStream(new FileInputStream(walletFile)));
+            wallet = loader.readWallet(WalletJournal.replay(walletProto, WalletJournal.fileFor(walletFile)));
             if (!wallet.getParams().equals(params)) {
                 System.err.println("Wallet does not match requested network parameters: " +
                         wallet.getParams().getId() + " vs " + params.getId());